@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.serenegiant.camera.CameraUtils;
+
+/**
+ * camera settings logic that CameraManager runs on every setup(open, resize, rotation)
+ * against the capability lists of DeviceProfile.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CameraSettingsBenchmark {
+	// landscape size of the view {width, height}
+	private static final int[][] VIEW_SIZES = {
+		{1920, 1080}, {1280, 800}, {960, 720}, {800, 480}, {640, 640},
+	};
+
+	@Param({"back_4_3", "back_16_9", "front_fixed", "tablet_landscape", "many_sizes"})
+	public String profile;
+
+	private int[] mSizes;
+	private List<String> mFocusModes;
+	private int mOrientation;
+	private boolean mIsFrontFace;
+	private int mViewIndex;
+	private int mRotation;
+
+	@Setup
+	public void setup() {
+		final DeviceProfile device = DeviceProfile.load(profile);
+		mSizes = device.getPreviewSizes();
+		mFocusModes = device.getFocusModes();
+		mOrientation = device.getOrientation();
+		mIsFrontFace = device.isFrontFace();
+	}
+
+	/**
+	 * CameraManager#findBestPreviewSizeValue, view size changes on each call
+	 * @return
+	 */
+	@Benchmark
+	public int findBestPreviewSize() {
+		final int[] view = VIEW_SIZES[mViewIndex];
+		mViewIndex = (mViewIndex + 1) % VIEW_SIZES.length;
+		return CameraUtils.findBestPreviewSize(mSizes, view[0], view[1]);
+	}
+
+	/**
+	 * focus-mode selection with and without macro-mode
+	 * @param bh
+	 */
+	@Benchmark
+	public void selectFocusMode(Blackhole bh) {
+		bh.consume(CameraUtils.selectFocusMode(mFocusModes, false, true));
+		bh.consume(CameraUtils.selectFocusMode(mFocusModes, true, true));
+	}
+
+	/**
+	 * rotation of preview for the next display rotation(Surface.ROTATION_0 to ROTATION_270)
+	 * @return
+	 */
+	@Benchmark
+	public int getDisplayOrientation() {
+		mRotation = (mRotation + 1) & 3;
+		return CameraUtils.getDisplayOrientation(mOrientation, mIsFrontFace, mRotation, 0);
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Properties;
+
+import com.serenegiant.camera.CameraBackend;
+import com.serenegiant.camera.CameraUtils;
+import com.serenegiant.camera.FakeCameraBackend;
+
+/**
+ * capabilities of a camera that are replayed without device.</br>
+ * The values are same format as Camera.Parameters#flatten(preview-size-values,
+ * focus-mode-values, max-zoom) and Camera.CameraInfo(orientation, facing),
+ * so the dump of a real device can be used as it is.
+ * Profiles are loaded from the directory of system property "camera.profiles" if it is set,
+ * otherwise from the bundled resources(/profiles/NAME.properties).
+ */
+public final class DeviceProfile {
+	public static final String PROPERTY_PROFILE_DIR = "camera.profiles";
+
+	private final String mName;
+	private final int[] mPreviewSizes;
+	private final List<String> mFocusModes;
+	private final int mMaxZoom;
+	private final int mOrientation;
+	private final boolean mIsFrontFace;
+
+	private DeviceProfile(String name, Properties props) {
+		mName = name;
+		mPreviewSizes = CameraUtils.parseSizes(props.getProperty("preview-size-values"));
+		mFocusModes = CameraUtils.parseValues(props.getProperty("focus-mode-values"));
+		mMaxZoom = Integer.parseInt(props.getProperty("max-zoom", "0").trim());
+		mOrientation = Integer.parseInt(props.getProperty("orientation", "90").trim());
+		mIsFrontFace = "front".equals(props.getProperty("facing", "back").trim());
+	}
+
+	/**
+	 * load the profile
+	 * @param name file name without ".properties"
+	 * @return
+	 * @throws IllegalArgumentException the profile is not found or could not be read
+	 */
+	public static DeviceProfile load(String name) {
+		final Properties props = new Properties();
+		final String dir = System.getProperty(PROPERTY_PROFILE_DIR);
+		try {
+			final InputStream in = (dir != null)
+				? new FileInputStream(new File(dir, name + ".properties"))
+				: DeviceProfile.class.getResourceAsStream("/profiles/" + name + ".properties");
+			if (in == null) {
+				throw new IllegalArgumentException("profile not found:" + name);
+			}
+			try {
+				props.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("could not read profile:" + name, e);
+		}
+		return new DeviceProfile(name, props);
+	}
+
+	/**
+	 * create fake camera that has the capabilities of this profile
+	 * @param callback
+	 * @return
+	 */
+	public FakeCameraBackend createBackend(CameraBackend.Callback callback) {
+		return new FakeCameraBackend(callback, mPreviewSizes, mFocusModes,
+			mOrientation, mIsFrontFace, mMaxZoom);
+	}
+
+	/**
+	 * get preview size that CameraManager selects for the view
+	 * @param viewWidth
+	 * @param viewHeight
+	 * @return {width, height}, null if no size is suitable
+	 */
+	public int[] negotiatePreviewSize(int viewWidth, int viewHeight) {
+		final int index = CameraUtils.findBestPreviewSize(mPreviewSizes,
+			Math.max(viewWidth, viewHeight), Math.min(viewWidth, viewHeight));
+		return index >= 0 ? new int[] {mPreviewSizes[index * 2], mPreviewSizes[index * 2 + 1]} : null;
+	}
+
+	/**
+	 * get preview size that CameraManager selects for the view
+	 * @param view "WxH"
+	 * @return {width, height}
+	 * @throws IllegalArgumentException the format is invalid or no size is suitable
+	 */
+	public int[] negotiatePreviewSize(String view) {
+		final int pos = view.indexOf('x');
+		if (pos <= 0) {
+			throw new IllegalArgumentException("invalid view size:" + view);
+		}
+		final int[] size = negotiatePreviewSize(
+			Integer.parseInt(view.substring(0, pos)), Integer.parseInt(view.substring(pos + 1)));
+		if (size == null) {
+			throw new IllegalArgumentException("no preview size for " + view + " on " + mName);
+		}
+		return size;
+	}
+
+	public String getName() {
+		return mName;
+	}
+
+	/**
+	 * @return {width0, height0, width1, height1,...}, this should not be modified
+	 */
+	public int[] getPreviewSizes() {
+		return mPreviewSizes;
+	}
+
+	public List<String> getFocusModes() {
+		return mFocusModes;
+	}
+
+	public int getMaxZoom() {
+		return mMaxZoom;
+	}
+
+	/**
+	 * @return [degrees]
+	 */
+	public int getOrientation() {
+		return mOrientation;
+	}
+
+	public boolean isFrontFace() {
+		return mIsFrontFace;
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.serenegiant.camera.CameraBackend;
+import com.serenegiant.camera.FakeCameraBackend;
+import com.serenegiant.camera.FrameListener;
+import com.serenegiant.camera.FrameTracer;
+import com.serenegiant.camera.ImageFrame;
+import com.serenegiant.camera.PreviewFrame;
+import com.serenegiant.camera.PreviewFramePool;
+
+import android.graphics.ImageFormat;
+
+/**
+ * end-to-end frame delivery without device at the preview sizes that are negotiated
+ * for the view sizes on "back_16_9" profile.</br>
+ * #callbackBuffer replays NV21 frames through PreviewFramePool and FrameListeners
+ * same as the preview callback of CameraManager(CameraView#onPreviewFrame is one of the consumers),
+ * #camera2 delivers I420 frames of FakeCameraBackend as ImageFrame.
+ * Run with "-prof gc" to check the allocation rate of steady-state delivery, it should be almost zero.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameDeliveryBenchmark {
+	private static final String PROFILE = "back_16_9";
+	private static final int NUM_BUFFERS = 3;
+	// step of the pixels that consumers read
+	private static final int SAMPLE_STEP = 97;
+
+	@State(Scope.Thread)
+	public static class CallbackBufferState {
+		@Param({"1280x720", "960x720", "800x480", "640x480"})
+		public String view;
+
+		/**
+		 * number of FrameListeners in addition to CameraView
+		 */
+		@Param({"1", "3"})
+		public int listeners;
+
+		@Param({"false", "true"})
+		public boolean directBuffer;
+
+		private PreviewFramePool mPool;
+		private FrameReplaySource mSource;
+		private FrameListener[] mListeners;
+		private int mChecksum;
+
+		@Setup
+		public void setup() {
+			final DeviceProfile device = DeviceProfile.load(PROFILE);
+			final int[] size = device.negotiatePreviewSize(view);
+			mPool = new PreviewFramePool();
+			mPool.setUseDirectBuffer(directBuffer);
+			mSource = FrameReplaySource.create(mPool, size[0], size[1], ImageFormat.NV21);
+			mSource.start(NUM_BUFFERS, device.getOrientation(), device.isFrontFace());
+			mListeners = new FrameListener[listeners + 1];
+			for (int i = 0; i < mListeners.length; i++) {
+				mListeners[i] = mFrameListener;
+			}
+		}
+
+		@TearDown
+		public void tearDown() {
+			mSource.stop();
+			mPool.clear();
+		}
+
+		private final FrameListener mFrameListener = new FrameListener() {
+			@Override
+			public void onPreviewFrame(PreviewFrame frame) {
+				int sum = 0;
+				final ByteBuffer buffer = frame.getDirectBuffer();
+				if (buffer != null) {
+					final int n = buffer.limit();
+					for (int i = 0; i < n; i += SAMPLE_STEP) {
+						sum += buffer.get(i);
+					}
+				} else {
+					final byte[] data = frame.data;
+					for (int i = 0; i < data.length; i += SAMPLE_STEP) {
+						sum += data[i];
+					}
+				}
+				mChecksum += sum;
+			}
+		};
+	}
+
+	@State(Scope.Thread)
+	public static class Camera2State {
+		@Param({"1280x720", "960x720", "800x480", "640x480"})
+		public String view;
+
+		private FakeCameraBackend mCamera;
+		private FrameReplaySource mSource;
+		private long mTimestampNs;
+		private int mChecksum;
+
+		@Setup
+		public void setup() {
+			final DeviceProfile device = DeviceProfile.load(PROFILE);
+			final int[] size = device.negotiatePreviewSize(view);
+			mCamera = device.createBackend(mCallback);
+			mCamera.open(0);
+			if (!mCamera.startPreview(null, size[0], size[1], NUM_BUFFERS, null, false, device.getOrientation())) {
+				throw new IllegalStateException("could not start preview of fake camera");
+			}
+			mSource = FrameReplaySource.create(null, size[0], size[1], ImageFormat.YUV_420_888);
+		}
+
+		@TearDown
+		public void tearDown() {
+			mCamera.close();
+		}
+
+		private final CameraBackend.Callback mCallback = new CameraBackend.Callback() {
+			@Override
+			public void onOpened(boolean success) {
+			}
+
+			@Override
+			public void onFrame(ImageFrame frame) {
+				int sum = 0;
+				for (int plane = 0; plane < frame.getPlaneCount(); plane++) {
+					final ByteBuffer buffer = frame.getBuffer(plane);
+					final int n = buffer.limit();
+					for (int i = 0; i < n; i += SAMPLE_STEP) {
+						sum += buffer.get(i);
+					}
+				}
+				mChecksum += sum;
+			}
+		};
+	}
+
+	/**
+	 * same as the preview callback of CameraManager
+	 * @param state
+	 * @return
+	 */
+	@Benchmark
+	public int callbackBuffer(CallbackBufferState state) {
+		final PreviewFrame frame = state.mSource.next();
+		if (frame != null) {
+			try {
+				frame.trace(FrameTracer.STAGE_DISPATCH_START);
+				final FrameListener[] listeners = state.mListeners;
+				for (int i = 0; i < listeners.length; i++) {
+					listeners[i].onPreviewFrame(frame);
+				}
+				frame.trace(FrameTracer.STAGE_DISPATCH_END);
+			} finally {
+				frame.release();
+			}
+		}
+		return state.mChecksum;
+	}
+
+	@Benchmark
+	public int camera2(Camera2State state) {
+		state.mTimestampNs += 33333333L;
+		state.mSource.next(state.mCamera, state.mTimestampNs);
+		return state.mChecksum;
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Random;
+
+import com.serenegiant.camera.FakeCameraBackend;
+import com.serenegiant.camera.PreviewFrame;
+import com.serenegiant.camera.PreviewFramePool;
+
+import android.graphics.ImageFormat;
+
+/**
+ * replays preview frames without device.</br>
+ * For Camera API, this works as the buffer queue of the camera: buffers released by consumers
+ * are returned to this source through PreviewFramePool, and #next fills the oldest one and
+ * obtains the frame from the pool same as Camera.PreviewCallback. If no buffer is returned yet,
+ * the frame is dropped like the camera does. For Camera2 API, #next(FakeCameraBackend, long)
+ * fills the planes of the fake camera, frames should be ImageFormat.YUV_420_888(I420).</br>
+ * Frames are raw dumps of a device(system property "camera.frames", frames of same size and format
+ * are concatenated) or synthetic frames that have a gradient, noise and a moving barcode-like block.
+ */
+public class FrameReplaySource implements PreviewFramePool.BufferQueue {
+	public static final String PROPERTY_FRAMES = "camera.frames";
+	private static final int SYNTHETIC_FRAMES = 8;
+
+	private final PreviewFramePool mPool;
+	private final byte[][] mFrames;
+	private final int mWidth, mHeight, mFormat;
+	private final ArrayDeque<byte[]> mQueue = new ArrayDeque<byte[]>();
+	private int mIndex;
+	private long mDroppedCount;
+
+	/**
+	 * create the source with the frames of system property "camera.frames" or synthetic frames
+	 * @param pool pool of callback buffers, null if only Camera2 path is used
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12, ImageFormat.YUY2 or ImageFormat.YUV_420_888
+	 * @return
+	 */
+	public static FrameReplaySource create(PreviewFramePool pool, int width, int height, int format) {
+		final int frameSize = PreviewFramePool.getFrameBufferSize(width, height, format);
+		final String path = System.getProperty(PROPERTY_FRAMES);
+		final byte[][] frames = (path != null)
+			? load(new File(path), frameSize)
+			: synthesize(width, height, format, SYNTHETIC_FRAMES);
+		return new FrameReplaySource(pool, frames, width, height, format);
+	}
+
+	public FrameReplaySource(PreviewFramePool pool, byte[][] frames, int width, int height, int format) {
+		if ((frames == null) || (frames.length == 0)) {
+			throw new IllegalArgumentException("no frame to replay");
+		}
+		mPool = pool;
+		mFrames = frames;
+		mWidth = width;
+		mHeight = height;
+		mFormat = format;
+	}
+
+	/**
+	 * allocate callback buffers of the pool and start receiving them like Camera#startPreview
+	 * @param numBuffers
+	 * @param rotation
+	 * @param isFrontFace
+	 */
+	public void start(int numBuffers, int rotation, boolean isFrontFace) {
+		synchronized (mQueue) {
+			mQueue.clear();
+		}
+		mPool.resize(numBuffers, PreviewFramePool.getFrameBufferSize(mWidth, mHeight, mFormat));
+		mPool.setFrameInfo(mWidth, mHeight, mFormat, rotation, isFrontFace);
+		mPool.attach(this);
+	}
+
+	public void stop() {
+		mPool.detach();
+		synchronized (mQueue) {
+			mQueue.clear();
+		}
+	}
+
+	@Override
+	public void addCallbackBuffer(byte[] buffer) {
+		synchronized (mQueue) {
+			mQueue.addLast(buffer);
+		}
+	}
+
+	/**
+	 * fill next frame into the oldest returned buffer and obtain it from the pool
+	 * @return null if all buffers are held by consumers(the frame is dropped)
+	 */
+	public PreviewFrame next() {
+		final byte[] buffer;
+		synchronized (mQueue) {
+			buffer = mQueue.pollFirst();
+		}
+		if (buffer == null) {
+			mDroppedCount++;
+			return null;
+		}
+		final byte[] src = nextFrame();
+		System.arraycopy(src, 0, buffer, 0, Math.min(src.length, buffer.length));
+		return mPool.obtain(buffer);
+	}
+
+	/**
+	 * fill next frame into the planes of the fake camera and deliver it on the caller thread
+	 * @param camera
+	 * @param timestampNs
+	 * @return false if the frame was dropped
+	 */
+	public boolean next(FakeCameraBackend camera, long timestampNs) {
+		camera.fillFrame(nextFrame());
+		return camera.deliverFrame(timestampNs);
+	}
+
+	/**
+	 * get the frame that is replayed next without copying
+	 * @return
+	 */
+	public byte[] nextFrame() {
+		final byte[] result = mFrames[mIndex];
+		mIndex = (mIndex + 1) % mFrames.length;
+		return result;
+	}
+
+	/**
+	 * get number of frames that were dropped because no buffer was returned
+	 * @return
+	 */
+	public long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * read raw frames that were dumped from a device
+	 * @param file concatenated frames
+	 * @param frameSize bytes of each frame
+	 * @return
+	 */
+	public static byte[][] load(File file, int frameSize) {
+		final long length = file.length();
+		if ((length < frameSize) || (length % frameSize != 0)) {
+			throw new IllegalArgumentException(String.format(
+				"size of %s(%d) is not multiple of frame size(%d)", file, length, frameSize));
+		}
+		final byte[][] result = new byte[(int)(length / frameSize)][frameSize];
+		try {
+			final DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				for (int i = 0; i < result.length; i++) {
+					in.readFully(result[i]);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new IllegalArgumentException("could not read frames:" + file, e);
+		}
+		return result;
+	}
+
+	/**
+	 * generate frames that have a gradient, sensor-like noise and a barcode-like block
+	 * that moves on each frame, so adaptive threshold and candidate search have work to do.
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12, ImageFormat.YUY2 or ImageFormat.YUV_420_888
+	 * @param count
+	 * @return
+	 */
+	public static byte[][] synthesize(int width, int height, int format, int count) {
+		final int frameSize = PreviewFramePool.getFrameBufferSize(width, height, format);
+		final Random random = new Random(width * 31L + height);
+		final byte[][] result = new byte[count][frameSize];
+		final boolean isYUY2 = (format == ImageFormat.YUY2);
+		final int yRowStride = isYUY2 ? width * 2
+			: (format == ImageFormat.YV12 ? (int)Math.ceil(width / 16.0) * 16 : width);
+		final int yPixelStride = isYUY2 ? 2 : 1;
+		final int block = Math.max(8, Math.min(width, height) / 4);
+		for (int n = 0; n < count; n++) {
+			final byte[] frame = result[n];
+			// chroma is around neutral gray, luma of YUY2 is overwritten below
+			for (int i = 0; i < frameSize; i++) {
+				frame[i] = (byte)(128 + random.nextInt(16) - 8);
+			}
+			final int bx = (width - block) * n / Math.max(1, count - 1);
+			final int by = (height - block) / 2;
+			for (int y = 0; y < height; y++) {
+				final int rowOffset = y * yRowStride;
+				for (int x = 0; x < width; x++) {
+					int luma = 32 + (x * 160 / width) + random.nextInt(12);
+					if ((x >= bx) && (x < bx + block) && (y >= by) && (y < by + block)) {
+						// 1D barcode-like bars of 1 to 4 pixels width
+						luma = ((x - bx) * 7 / 3 + (x - bx) / 5) % 4 < 2 ? 24 : 232;
+					}
+					frame[rowOffset + x * yPixelStride] = (byte)luma;
+				}
+			}
+		}
+		return result;
+	}
+}
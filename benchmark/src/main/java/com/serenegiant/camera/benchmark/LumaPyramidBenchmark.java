@@ -0,0 +1,91 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.serenegiant.camera.LumaPyramid;
+
+import android.graphics.ImageFormat;
+
+/**
+ * LumaPyramid at the preview sizes that are negotiated for the view sizes on "back_16_9" profile.</br>
+ * #firstLevel is the consumer that needs only 1/2 resolution(lazy build stops at level 1),
+ * #allLevels builds down to 1/8. Scores are frames per second.
+ * Steady state should not allocate, check with "-prof gc".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LumaPyramidBenchmark {
+	private static final String PROFILE = "back_16_9";
+
+	@Param({"1280x720", "960x720", "800x480", "640x480"})
+	public String view;
+
+	@Param({"NV21", "YV12", "YUY2"})
+	public String format;
+
+	@Param({"false", "true"})
+	public boolean chroma;
+
+	private final LumaPyramid mPyramid = new LumaPyramid();
+	private FrameReplaySource mSource;
+
+	@Setup
+	public void setup() {
+		final int[] size = DeviceProfile.load(PROFILE).negotiatePreviewSize(view);
+		final int imageFormat = "YV12".equals(format) ? ImageFormat.YV12
+			: ("YUY2".equals(format) ? ImageFormat.YUY2 : ImageFormat.NV21);
+		mSource = FrameReplaySource.create(null, size[0], size[1], imageFormat);
+		mPyramid.setChromaEnabled(chroma);
+	}
+
+	@Benchmark
+	public void firstLevel(Blackhole bh) {
+		mPyramid.update(mSource.nextFrame(), mSource.getWidth(), mSource.getHeight(), mSource.getFormat());
+		bh.consume(mPyramid.getLuma(1));
+		if (chroma) {
+			bh.consume(mPyramid.getU(1));
+		}
+	}
+
+	@Benchmark
+	public void allLevels(Blackhole bh) {
+		mPyramid.update(mSource.nextFrame(), mSource.getWidth(), mSource.getHeight(), mSource.getFormat());
+		bh.consume(mPyramid.getLuma(LumaPyramid.MAX_LEVEL));
+		if (chroma) {
+			bh.consume(mPyramid.getU(LumaPyramid.MAX_LEVEL));
+		}
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.serenegiant.camera.LuminanceBinarizer;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+/**
+ * frames per second of LuminanceBinarizer at the preview sizes that are negotiated
+ * for the view sizes on "back_16_9" profile.</br>
+ * threads=1 is the single-threaded baseline(all bands run on the caller thread without executor),
+ * compare other values with it to see the scaling on the machine.
+ * roi=center binarizes the center half of the frame like a viewfinder of barcode reader.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LuminanceBinarizerBenchmark {
+	private static final String PROFILE = "back_16_9";
+
+	@Param({"1280x720", "960x720", "800x480", "640x480"})
+	public String view;
+
+	@Param({"1", "2", "4"})
+	public int threads;
+
+	@Param({"full", "center"})
+	public String roi;
+
+	private LuminanceBinarizer mBinarizer;
+	private FrameReplaySource mSource;
+	private Rect mRoi;
+
+	@Setup
+	public void setup() {
+		final int[] size = DeviceProfile.load(PROFILE).negotiatePreviewSize(view);
+		mSource = FrameReplaySource.create(null, size[0], size[1], ImageFormat.NV21);
+		mRoi = "center".equals(roi)
+			? new Rect(size[0] / 4, size[1] / 4, size[0] * 3 / 4, size[1] * 3 / 4) : null;
+		mBinarizer = new LuminanceBinarizer(threads);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mBinarizer.release();
+	}
+
+	/**
+	 * binarize one frame and find candidate regions
+	 * @return number of candidate regions
+	 */
+	@Benchmark
+	public int binarize() {
+		mBinarizer.binarize(mSource.nextFrame(), mSource.getWidth(), mSource.getHeight(),
+			mSource.getFormat(), mRoi);
+		return mBinarizer.getCandidateCount();
+	}
+}
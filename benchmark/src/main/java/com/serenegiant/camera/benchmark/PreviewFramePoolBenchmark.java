@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera.benchmark;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.serenegiant.camera.LumaPyramid;
+import com.serenegiant.camera.PreviewFrame;
+import com.serenegiant.camera.PreviewFramePool;
+
+import android.graphics.ImageFormat;
+
+/**
+ * churn of pooled buffers.</br>
+ * #obtainRelease replays frames while consumers hold the last "hold" frames
+ * (frames are dropped when no buffer is returned, same as the camera),
+ * #resize and #pyramidResize switch between two negotiated preview sizes on every call
+ * like the view is resized/rotated repeatedly, so they measure re-allocation of the buffers.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PreviewFramePoolBenchmark {
+	private static final String PROFILE = "back_16_9";
+	private static final int NUM_BUFFERS = 3;
+	// view sizes that negotiate different preview sizes
+	private static final String VIEW_LARGE = "960x720";
+	private static final String VIEW_SMALL = "800x480";
+
+	@State(Scope.Thread)
+	public static class HoldState {
+		/**
+		 * number of frames that consumers hold after the callback returned
+		 */
+		@Param({"0", "1", "2", "3"})
+		public int hold;
+
+		private PreviewFramePool mPool;
+		private FrameReplaySource mSource;
+		private final ArrayDeque<PreviewFrame> mHeld = new ArrayDeque<PreviewFrame>();
+
+		@Setup
+		public void setup() {
+			final int[] size = DeviceProfile.load(PROFILE).negotiatePreviewSize(VIEW_LARGE);
+			mPool = new PreviewFramePool();
+			mSource = FrameReplaySource.create(mPool, size[0], size[1], ImageFormat.NV21);
+			mSource.start(NUM_BUFFERS, 90, false);
+		}
+
+		@TearDown
+		public void tearDown() {
+			while (!mHeld.isEmpty()) {
+				mHeld.pollFirst().release();
+			}
+			mSource.stop();
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class ResizeState {
+		private final PreviewFramePool mPool = new PreviewFramePool();
+		private final LumaPyramid mPyramid = new LumaPyramid();
+		private int[][] mSizes;
+		private byte[][] mFrames;
+		private int mIndex;
+
+		@Setup(Level.Trial)
+		public void setup() {
+			final DeviceProfile device = DeviceProfile.load(PROFILE);
+			mSizes = new int[][] {
+				device.negotiatePreviewSize(VIEW_LARGE), device.negotiatePreviewSize(VIEW_SMALL),
+			};
+			mFrames = new byte[][] {
+				FrameReplaySource.synthesize(mSizes[0][0], mSizes[0][1], ImageFormat.NV21, 1)[0],
+				FrameReplaySource.synthesize(mSizes[1][0], mSizes[1][1], ImageFormat.NV21, 1)[0],
+			};
+		}
+
+		private int next() {
+			mIndex = (mIndex + 1) & 1;
+			return mIndex;
+		}
+	}
+
+	/**
+	 * obtain and release one frame, older frames held by consumers are released
+	 * when more than "hold" frames are held
+	 * @param state
+	 * @return sequence of the frame, -1 if the frame was dropped
+	 */
+	@Benchmark
+	public long obtainRelease(HoldState state) {
+		final PreviewFrame frame = state.mSource.next();
+		if (frame == null) {
+			// consumer finished oldest one while the frame was dropped
+			final PreviewFrame oldest = state.mHeld.pollFirst();
+			if (oldest != null) {
+				oldest.release();
+			}
+			return -1;
+		}
+		try {
+			if (state.hold > 0) {
+				state.mHeld.addLast(frame.acquire());
+				if (state.mHeld.size() > state.hold) {
+					state.mHeld.pollFirst().release();
+				}
+			}
+			return frame.getSequence();
+		} finally {
+			frame.release();
+		}
+	}
+
+	/**
+	 * setup of callback buffers when the preview size changed
+	 * @param state
+	 * @return
+	 */
+	@Benchmark
+	public boolean resize(ResizeState state) {
+		final int[] size = state.mSizes[state.next()];
+		final boolean reallocated = state.mPool.resize(NUM_BUFFERS,
+			PreviewFramePool.getFrameBufferSize(size[0], size[1], ImageFormat.NV21));
+		state.mPool.setFrameInfo(size[0], size[1], ImageFormat.NV21, 90, false);
+		return reallocated;
+	}
+
+	/**
+	 * LumaPyramid that receives frames of alternate sizes
+	 * @param state
+	 * @return
+	 */
+	@Benchmark
+	public byte[] pyramidResize(ResizeState state) {
+		final int index = state.next();
+		state.mPyramid.update(state.mFrames[index],
+			state.mSizes[index][0], state.mSizes[index][1], ImageFormat.NV21);
+		return state.mPyramid.getLuma(LumaPyramid.MAX_LEVEL);
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+/**
+ * reusable 2D matrix of bits, 1 means black.</br>
+ * Each row is packed into #getRowSize ints and bit x of the row is
+ * (bits[y * rowSize + x / 32] >>> (x & 31)) & 1, same layout as ZXing's BitMatrix
+ * so decoders can wrap #getBits without converting.
+ * The array is reused while the size does not exceed its capacity.
+ */
+public final class BitMatrix {
+	private int mWidth, mHeight;
+	private int mRowSize;
+	private int[] mBits;
+
+	/**
+	 * change the size of this matrix, contents are undefined after this call
+	 * @param width
+	 * @param height
+	 */
+	public void reset(int width, int height) {
+		mWidth = width;
+		mHeight = height;
+		mRowSize = (width + 31) >> 5;
+		final int size = mRowSize * height;
+		if ((mBits == null) || (mBits.length < size)) {
+			mBits = new int[size];
+		}
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * get number of ints for each row
+	 * @return
+	 */
+	public int getRowSize() {
+		return mRowSize;
+	}
+
+	/**
+	 * get internal array, this may be larger than getRowSize() * getHeight()
+	 * @return
+	 */
+	public int[] getBits() {
+		return mBits;
+	}
+
+	/**
+	 * get whether the pixel is black
+	 * @param x
+	 * @param y
+	 * @return
+	 */
+	public boolean get(int x, int y) {
+		return ((mBits[y * mRowSize + (x >> 5)] >>> (x & 31)) & 1) != 0;
+	}
+
+	/**
+	 * store packed bits of the row
+	 * @param y
+	 * @param word index of int in the row
+	 * @param bits
+	 */
+	/* package */void setWord(int y, int word, int bits) {
+		mBits[y * mRowSize + word] = bits;
+	}
+
+	/**
+	 * release internal array, it is re-allocated when #reset is called next time
+	 */
+	public void clear() {
+		mBits = null;
+		mWidth = mHeight = mRowSize = 0;
+	}
+
+	/**
+	 * get size of internal array
+	 * @return [bytes]
+	 */
+	public int getMemorySize() {
+		return mBits != null ? mBits.length * 4 : 0;
+	}
+}
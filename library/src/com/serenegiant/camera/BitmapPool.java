@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.util.Log;
+
+/**
+ * pool of mutable Bitmaps keyed by size and config.</br>
+ * Only the sizes that were obtained since last #clear are pooled, so the bitmap
+ * that is returned after the frame size changed(and the pool was cleared) is recycled
+ * instead of being kept at the old size.
+ */
+public class BitmapPool implements MemoryBudget.Resource {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "BitmapPool" : null;
+	/**
+	 * maximum number of sizes that are pooled at a time(e.g. full frame and snapshot crops)
+	 */
+	private static final int MAX_SIZES = 16;
+
+	private final List<Bitmap> mBitmaps = new ArrayList<Bitmap>();
+	// sizes that were obtained since last #clear, guarded by mBitmaps
+	private final List<Size> mSizes = new ArrayList<Size>();
+	private int mMaxPerSize;
+
+	/**
+	 * constructor
+	 * @param maxPerSize maximum number of pooled bitmaps for each size and config
+	 */
+	public BitmapPool(int maxPerSize) {
+		mMaxPerSize = maxPerSize;
+	}
+
+	/**
+	 * get mutable bitmap from the pool, new bitmap is created if there is no pooled bitmap.</br>
+	 * the contents of the bitmap are undefined.
+	 * @param width
+	 * @param height
+	 * @param config
+	 * @return
+	 */
+	public Bitmap obtain(int width, int height, Bitmap.Config config) {
+		synchronized (mBitmaps) {
+			if (findSize(width, height, config) < 0) {
+				if (mSizes.size() >= MAX_SIZES) {
+					removeSize(0);
+				}
+				mSizes.add(new Size(width, height, config));
+			}
+			for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+				final Bitmap bitmap = mBitmaps.get(i);
+				if ((bitmap.getWidth() == width) && (bitmap.getHeight() == height)
+					&& (bitmap.getConfig() == config)) {
+					return mBitmaps.remove(i);
+				}
+			}
+		}
+		if (DEBUG) Log.v(TAG, String.format("create:%dx%d,%s", width, height, config));
+		return Bitmap.createBitmap(width, height, config);
+	}
+
+	/**
+	 * return the bitmap to the pool, it is recycled if the pool is full
+	 * or its size was not obtained since last #clear(e.g. the frame size changed while it was used)
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap) {
+		if ((bitmap == null) || bitmap.isRecycled()) return;
+		synchronized (mBitmaps) {
+			if (findSize(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()) >= 0) {
+				int n = 0;
+				for (Bitmap pooled: mBitmaps) {
+					if (pooled == bitmap) return;
+					if ((pooled.getWidth() == bitmap.getWidth()) && (pooled.getHeight() == bitmap.getHeight())
+						&& (pooled.getConfig() == bitmap.getConfig())) {
+						n++;
+					}
+				}
+				if (n < mMaxPerSize) {
+					mBitmaps.add(bitmap);
+					return;
+				}
+			} else if (DEBUG) {
+				Log.v(TAG, String.format("drop:%dx%d,%s",
+					bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig()));
+			}
+		}
+		bitmap.recycle();
+	}
+
+	/**
+	 * recycle all pooled bitmaps and forget the sizes,
+	 * bitmaps in use are recycled when they are returned unless the same size is obtained again
+	 */
+	public void clear() {
+		synchronized (mBitmaps) {
+			for (Bitmap bitmap: mBitmaps) {
+				bitmap.recycle();
+			}
+			mBitmaps.clear();
+			mSizes.clear();
+		}
+	}
+
+	/**
+	 * get total size of pooled bitmaps
+	 * @return [bytes]
+	 */
+	@Override
+	public int getMemorySize() {
+		int result = 0;
+		synchronized (mBitmaps) {
+			for (Bitmap bitmap: mBitmaps) {
+				result += bitmap.getRowBytes() * bitmap.getHeight();
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+			clear();
+		}
+	}
+
+	public int getCount() {
+		synchronized (mBitmaps) {
+			return mBitmaps.size();
+		}
+	}
+
+	/**
+	 * should be called while holding the lock of mBitmaps
+	 * @return index in mSizes, -1 if not found
+	 */
+	private int findSize(int width, int height, Bitmap.Config config) {
+		for (int i = mSizes.size() - 1; i >= 0; i--) {
+			final Size size = mSizes.get(i);
+			if ((size.mWidth == width) && (size.mHeight == height) && (size.mConfig == config)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * forget the size and recycle its pooled bitmaps.
+	 * should be called while holding the lock of mBitmaps
+	 * @param index
+	 */
+	private void removeSize(int index) {
+		final Size size = mSizes.remove(index);
+		for (int i = mBitmaps.size() - 1; i >= 0; i--) {
+			final Bitmap bitmap = mBitmaps.get(i);
+			if ((bitmap.getWidth() == size.mWidth) && (bitmap.getHeight() == size.mHeight)
+				&& (bitmap.getConfig() == size.mConfig)) {
+				mBitmaps.remove(i).recycle();
+			}
+		}
+	}
+
+	private static final class Size {
+		private final int mWidth, mHeight;
+		private final Bitmap.Config mConfig;
+
+		private Size(int width, int height, Bitmap.Config config) {
+			mWidth = width;
+			mHeight = height;
+			mConfig = config;
+		}
+	}
+}
@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.hardware.Camera.AutoFocusCallback;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraDevice;
+import android.hardware.camera2.CameraMetadata;
+import android.hardware.camera2.CaptureRequest;
+import android.hardware.camera2.CaptureResult;
+import android.hardware.camera2.TotalCaptureResult;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.util.Size;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * camera backend using Camera2 API(API>=21).</br>
+ * All callbacks of the camera are called on the Handler that is passed to the constructor
+ * (the camera thread of CameraManager).
+ * Preview frames are delivered as ImageFrame that directly refers the planes of ImageReader.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2Backend implements CameraBackend {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "Camera2Backend" : null;
+
+	/**
+	 * number of capture results that are kept to match with frames
+	 */
+	private static final int RESULT_HISTORY = 8;
+	/**
+	 * number of zoom steps for each 1x of digital zoom
+	 */
+	// CONTROL_AF_MODE_XX and corresponding focus-mode of Camera.Parameters
+	private static final int[] AF_MODES = {
+		CameraMetadata.CONTROL_AF_MODE_OFF,
+		CameraMetadata.CONTROL_AF_MODE_AUTO,
+		CameraMetadata.CONTROL_AF_MODE_MACRO,
+		CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_VIDEO,
+		CameraMetadata.CONTROL_AF_MODE_CONTINUOUS_PICTURE,
+		CameraMetadata.CONTROL_AF_MODE_EDOF,
+	};
+	private static final String[] FOCUS_MODES = {
+		Camera.Parameters.FOCUS_MODE_FIXED,
+		Camera.Parameters.FOCUS_MODE_AUTO,
+		Camera.Parameters.FOCUS_MODE_MACRO,
+		Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO,
+		Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE,
+		Camera.Parameters.FOCUS_MODE_EDOF,
+	};
+
+	private final android.hardware.camera2.CameraManager mManager;
+	private final Handler mHandler;
+	private final Callback mCallback;
+	private String mCameraId;
+	private CameraCharacteristics mCharacteristics;
+	private CameraDevice mDevice;
+	private boolean mOpening;
+	private CameraCaptureSession mSession;
+	private CaptureRequest.Builder mRequestBuilder;
+	private FrameReader mFrameReader;
+	private int mRotation;
+	private boolean mIsFrontFace;
+	private long mSequence;
+	// recent capture results to attach them to the frames that have same timestamp
+	private final long[] mResultTimestamps = new long[RESULT_HISTORY];
+	private final CaptureResult[] mResults = new CaptureResult[RESULT_HISTORY];
+	private int mResultIx;
+	private int mAFState = CameraMetadata.CONTROL_AF_STATE_INACTIVE;
+	private AutoFocusCallback mAutoFocusCallback;
+
+	/**
+	 * constructor
+	 * @param context
+	 * @param handler Handler of the camera thread
+	 * @param callback
+	 */
+	public Camera2Backend(Context context, Handler handler, Callback callback) {
+		mManager = (android.hardware.camera2.CameraManager)context.getSystemService(Context.CAMERA_SERVICE);
+		mHandler = handler;
+		mCallback = callback;
+	}
+
+	/**
+	 * get whether Camera2 API is available on this device
+	 * @return
+	 */
+	public static boolean isAvailable() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+	}
+
+	/**
+	 * start opening the camera, Callback#onOpened is called when the camera is opened
+	 * @param cameraID index of the camera same as Camera#open
+	 * @return false if the camera could not be opened
+	 */
+	@Override
+	public synchronized boolean open(int cameraID) {
+		if (DEBUG) Log.v(TAG, "open:" + cameraID);
+		try {
+			final String[] ids = mManager.getCameraIdList();
+			if ((cameraID < 0) || (cameraID >= ids.length)) {
+				Log.w(TAG, "camera not found:" + cameraID);
+				return false;
+			}
+			mCameraId = ids[cameraID];
+			mCharacteristics = mManager.getCameraCharacteristics(mCameraId);
+			final Integer facing = mCharacteristics.get(CameraCharacteristics.LENS_FACING);
+			mIsFrontFace = (facing != null) && (facing == CameraMetadata.LENS_FACING_FRONT);
+			mOpening = true;
+			mManager.openCamera(mCameraId, mStateCallback, mHandler);
+			return true;
+		} catch (CameraAccessException e) {
+			Log.w(TAG, e);
+		} catch (SecurityException e) {
+			Log.w(TAG, e);
+		}
+		mOpening = false;
+		return false;
+	}
+
+	@Override
+	public synchronized boolean isOpened() {
+		return mDevice != null;
+	}
+
+	public synchronized boolean isOpening() {
+		return mOpening;
+	}
+
+	@Override
+	public synchronized boolean isFrontFace() {
+		return mIsFrontFace;
+	}
+
+	/**
+	 * get orientation of the camera sensor
+	 * @return [degrees]
+	 */
+	@Override
+	public synchronized int getSensorOrientation() {
+		final Integer orientation = mCharacteristics != null
+			? mCharacteristics.get(CameraCharacteristics.SENSOR_ORIENTATION) : null;
+		return orientation != null ? orientation : 0;
+	}
+
+	/**
+	 * get supported preview sizes
+	 * @param withReader whether the size should be also available for ImageReader(YUV_420_888)
+	 * @return sizes as {width0, height0, width1, height1,...}
+	 */
+	@Override
+	public synchronized int[] getOutputSizes(boolean withReader) {
+		final StreamConfigurationMap map = mCharacteristics != null
+			? mCharacteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP) : null;
+		if (map == null) return new int[0];
+		final Size[] previewSizes = map.getOutputSizes(SurfaceHolder.class);
+		final Size[] readerSizes = withReader ? map.getOutputSizes(ImageFormat.YUV_420_888) : null;
+		if (previewSizes == null) return new int[0];
+		final int[] result = new int[previewSizes.length * 2];
+		int n = 0;
+		for (Size size: previewSizes) {
+			if ((readerSizes != null) && !contains(readerSizes, size)) continue;
+			result[n++] = size.getWidth();
+			result[n++] = size.getHeight();
+		}
+		if (n < result.length) {
+			final int[] sizes = new int[n];
+			System.arraycopy(result, 0, sizes, 0, n);
+			return sizes;
+		}
+		return result;
+	}
+
+	private static boolean contains(Size[] sizes, Size size) {
+		for (Size s: sizes) {
+			if (s.equals(size)) return true;
+		}
+		return false;
+	}
+
+	/**
+	 * get supported focus-modes
+	 * @return Camera.Parameters.FOCUS_MODE_XX
+	 */
+	@Override
+	public synchronized List<String> getFocusModes() {
+		final List<String> result = new ArrayList<String>();
+		final int[] modes = mCharacteristics != null
+			? mCharacteristics.get(CameraCharacteristics.CONTROL_AF_AVAILABLE_MODES) : null;
+		if (modes != null) {
+			for (int mode: modes) {
+				final String focusMode = toFocusMode(mode);
+				if (focusMode != null) {
+					result.add(focusMode);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * get maximum zoom scale
+	 * @return number of zoom steps, 0 if zoom is not supported
+	 */
+	@Override
+	public synchronized int getMaxZoom() {
+		final Float maxZoom = mCharacteristics != null
+			? mCharacteristics.get(CameraCharacteristics.SCALER_AVAILABLE_MAX_DIGITAL_ZOOM) : null;
+		return maxZoom != null ? Math.max(0, (int)((maxZoom - 1.0f) * CameraUtils.ZOOM_STEPS_PER_X)) : 0;
+	}
+
+	/**
+	 * start preview.</br>
+	 * the surface of the holder should have the preview size
+	 * because SurfaceView is not scaled by Camera2 API.
+	 * @param holder
+	 * @param width
+	 * @param height
+	 * @param numImages number of images of ImageReader, 0 means no frames are delivered
+	 * @param focusMode Camera.Parameters.FOCUS_MODE_XX, null for default
+	 * @param monoEffect
+	 * @param rotation rotation of preview[degrees], this is set to the frames
+	 * @return false if the preview could not be started
+	 */
+	@Override
+	public synchronized boolean startPreview(SurfaceHolder holder, int width, int height,
+		int numImages, String focusMode, boolean monoEffect, int rotation) {
+
+		if (DEBUG) Log.v(TAG, String.format("startPreview:%dx%d,images=%d", width, height, numImages));
+		if (mDevice == null) return false;
+		stopPreview();
+		mRotation = rotation;
+		mSequence = 0;
+		try {
+			final List<Surface> surfaces = new ArrayList<Surface>(2);
+			final Surface previewSurface = holder.getSurface();
+			surfaces.add(previewSurface);
+			mRequestBuilder = mDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
+			mRequestBuilder.addTarget(previewSurface);
+			if (numImages > 0) {
+				final ImageReader reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, numImages);
+				reader.setOnImageAvailableListener(mOnImageAvailableListener, mHandler);
+				mFrameReader = new FrameReader(reader);
+				surfaces.add(reader.getSurface());
+				mRequestBuilder.addTarget(reader.getSurface());
+			}
+			final int afMode = toAFMode(focusMode);
+			if (afMode >= 0) {
+				mRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+			}
+			if (monoEffect) {
+				mRequestBuilder.set(CaptureRequest.CONTROL_EFFECT_MODE, CameraMetadata.CONTROL_EFFECT_MODE_MONO);
+			}
+			mDevice.createCaptureSession(surfaces, mSessionCallback, mHandler);
+			return true;
+		} catch (CameraAccessException e) {
+			Log.w(TAG, e);
+		} catch (IllegalArgumentException e) {
+			// the surface does not have supported size
+			Log.w(TAG, e);
+		}
+		stopPreview();
+		return false;
+	}
+
+	/**
+	 * stop preview and release ImageReader.
+	 * frames that are held by consumers are still valid,
+	 * the ImageReader is closed when the last of them is released.
+	 */
+	@Override
+	public synchronized void stopPreview() {
+		if (mSession != null) {
+			mSession.close();
+			mSession = null;
+		}
+		if (mFrameReader != null) {
+			mFrameReader.retire();
+			mFrameReader = null;
+		}
+		mRequestBuilder = null;
+		mAutoFocusCallback = null;
+		for (int i = 0; i < RESULT_HISTORY; i++) {
+			mResults[i] = null;
+		}
+	}
+
+	/**
+	 * change focus-mode while previewing
+	 * @param focusMode Camera.Parameters.FOCUS_MODE_XX
+	 * @return false if the focus-mode is not available
+	 */
+	@Override
+	public synchronized boolean setFocusMode(String focusMode) {
+		final int afMode = toAFMode(focusMode);
+		if ((afMode < 0) || (mRequestBuilder == null)) return false;
+		mRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE, afMode);
+		return updateRepeatingRequest();
+	}
+
+	/**
+	 * set digital zoom
+	 * @param zoom 0 to #getMaxZoom
+	 */
+	@Override
+	public synchronized void setZoom(int zoom) {
+		if ((mRequestBuilder == null) || (mCharacteristics == null)) return;
+		final Rect active = mCharacteristics.get(CameraCharacteristics.SENSOR_INFO_ACTIVE_ARRAY_SIZE);
+		if (active == null) return;
+		mRequestBuilder.set(CaptureRequest.SCALER_CROP_REGION,
+			CameraUtils.getZoomCropRegion(active, zoom, getMaxZoom(), new Rect()));
+		updateRepeatingRequest();
+	}
+
+	/**
+	 * start auto-focus, the result is notified to the callback
+	 * with null as the Camera on the camera thread
+	 * @param callback
+	 */
+	@Override
+	public synchronized void autoFocus(AutoFocusCallback callback) {
+		if ((mSession == null) || (mRequestBuilder == null)) return;
+		final Integer afMode = mRequestBuilder.get(CaptureRequest.CONTROL_AF_MODE);
+		if ((afMode != null) && ((afMode == CameraMetadata.CONTROL_AF_MODE_AUTO)
+			|| (afMode == CameraMetadata.CONTROL_AF_MODE_MACRO))) {
+			// trigger one-shot scan and wait for the locked state
+			mAutoFocusCallback = callback;
+			try {
+				mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_START);
+				mSession.capture(mRequestBuilder.build(), mCaptureCallback, mHandler);
+			} catch (CameraAccessException e) {
+				Log.w(TAG, e);
+				mAutoFocusCallback = null;
+			} finally {
+				mRequestBuilder.set(CaptureRequest.CONTROL_AF_TRIGGER, CameraMetadata.CONTROL_AF_TRIGGER_IDLE);
+			}
+		} else if (callback != null) {
+			// continuous focus-modes keep focusing, just notify current state
+			callback.onAutoFocus((mAFState == CameraMetadata.CONTROL_AF_STATE_PASSIVE_FOCUSED)
+				|| (mAFState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED), null);
+		}
+	}
+
+	/**
+	 * close the camera
+	 */
+	@Override
+	public synchronized void close() {
+		if (DEBUG) Log.v(TAG, "close:");
+		stopPreview();
+		if (mDevice != null) {
+			mDevice.close();
+			mDevice = null;
+		}
+		mOpening = false;
+	}
+
+	private boolean updateRepeatingRequest() {
+		if (mSession != null) {
+			try {
+				mSession.setRepeatingRequest(mRequestBuilder.build(), mCaptureCallback, mHandler);
+				return true;
+			} catch (CameraAccessException e) {
+				Log.w(TAG, e);
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * ImageReader and the frames that refer its images.</br>
+	 * closing ImageReader invalidates all images acquired from it,
+	 * so the reader is closed after the last frame is released by consumers.
+	 */
+	private static final class FrameReader implements ImageFrame.Recycler {
+		private final ImageReader mReader;
+		private final List<ImageFrame> mPool = new ArrayList<ImageFrame>();
+		private int mHeldFrames;
+		private boolean mRetired;
+
+		private FrameReader(ImageReader reader) {
+			mReader = reader;
+		}
+
+		private synchronized ImageFrame obtain() {
+			mHeldFrames++;
+			return !mPool.isEmpty() ? mPool.remove(mPool.size() - 1) : new ImageFrame(this);
+		}
+
+		@Override
+		public synchronized void recycle(ImageFrame frame) {
+			mPool.add(frame);
+			if ((--mHeldFrames == 0) && mRetired) {
+				mReader.close();
+			}
+		}
+
+		/**
+		 * stop receiving images and close the reader if no frame is held
+		 */
+		private synchronized void retire() {
+			if (mRetired) return;
+			mRetired = true;
+			mReader.setOnImageAvailableListener(null, null);
+			if (mHeldFrames == 0) {
+				mReader.close();
+			}
+		}
+	}
+
+	private synchronized CaptureResult findResult(long timestampNs) {
+		for (int i = 0; i < RESULT_HISTORY; i++) {
+			if ((mResults[i] != null) && (mResultTimestamps[i] == timestampNs)) {
+				return mResults[i];
+			}
+		}
+		return null;
+	}
+
+	private static String toFocusMode(int afMode) {
+		for (int i = 0; i < AF_MODES.length; i++) {
+			if (AF_MODES[i] == afMode) return FOCUS_MODES[i];
+		}
+		return null;
+	}
+
+	private static int toAFMode(String focusMode) {
+		if (focusMode != null) {
+			for (int i = 0; i < FOCUS_MODES.length; i++) {
+				if (FOCUS_MODES[i].equals(focusMode)) return AF_MODES[i];
+			}
+		}
+		return -1;
+	}
+
+	private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
+		@Override
+		public void onOpened(CameraDevice camera) {
+			if (DEBUG) Log.v(TAG, "onOpened:");
+			synchronized (Camera2Backend.this) {
+				if (!mOpening) {
+					// closed while opening
+					camera.close();
+					return;
+				}
+				mDevice = camera;
+				mOpening = false;
+			}
+			mCallback.onOpened(true);
+		}
+
+		@Override
+		public void onDisconnected(CameraDevice camera) {
+			if (DEBUG) Log.v(TAG, "onDisconnected:");
+			synchronized (Camera2Backend.this) {
+				camera.close();
+				if (mDevice == camera) {
+					mDevice = null;
+				}
+			}
+		}
+
+		@Override
+		public void onError(CameraDevice camera, int error) {
+			Log.w(TAG, "onError:" + error);
+			final boolean opening;
+			synchronized (Camera2Backend.this) {
+				opening = mOpening;
+				mOpening = false;
+				camera.close();
+				if (mDevice == camera) {
+					mDevice = null;
+				}
+			}
+			if (opening) {
+				mCallback.onOpened(false);
+			}
+		}
+	};
+
+	private final CameraCaptureSession.StateCallback mSessionCallback = new CameraCaptureSession.StateCallback() {
+		@Override
+		public void onConfigured(CameraCaptureSession session) {
+			if (DEBUG) Log.v(TAG, "onConfigured:");
+			synchronized (Camera2Backend.this) {
+				if ((mDevice == null) || (mRequestBuilder == null)) {
+					// preview was stopped while configuring
+					session.close();
+					return;
+				}
+				mSession = session;
+				updateRepeatingRequest();
+			}
+		}
+
+		@Override
+		public void onConfigureFailed(CameraCaptureSession session) {
+			Log.w(TAG, "onConfigureFailed:");
+		}
+	};
+
+	private final CameraCaptureSession.CaptureCallback mCaptureCallback = new CameraCaptureSession.CaptureCallback() {
+		@Override
+		public void onCaptureCompleted(CameraCaptureSession session,
+			CaptureRequest request, TotalCaptureResult result) {
+
+			final Long timestamp = result.get(CaptureResult.SENSOR_TIMESTAMP);
+			final Integer afState = result.get(CaptureResult.CONTROL_AF_STATE);
+			AutoFocusCallback callback = null;
+			boolean focused = false;
+			synchronized (Camera2Backend.this) {
+				if (timestamp != null) {
+					mResultTimestamps[mResultIx] = timestamp;
+					mResults[mResultIx] = result;
+					mResultIx = (mResultIx + 1) % RESULT_HISTORY;
+				}
+				if (afState != null) {
+					mAFState = afState;
+					if ((mAutoFocusCallback != null)
+						&& ((afState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED)
+							|| (afState == CameraMetadata.CONTROL_AF_STATE_NOT_FOCUSED_LOCKED))) {
+						callback = mAutoFocusCallback;
+						mAutoFocusCallback = null;
+						focused = afState == CameraMetadata.CONTROL_AF_STATE_FOCUSED_LOCKED;
+					}
+				}
+			}
+			if (callback != null) {
+				callback.onAutoFocus(focused, null);
+			}
+		}
+	};
+
+	private final ImageReader.OnImageAvailableListener mOnImageAvailableListener
+		= new ImageReader.OnImageAvailableListener() {
+
+		@Override
+		public void onImageAvailable(ImageReader reader) {
+			final Image image;
+			final ImageFrame frame;
+			final long sequence;
+			final int rotation;
+			final boolean isFrontFace;
+			synchronized (Camera2Backend.this) {
+				if ((mFrameReader == null) || (reader != mFrameReader.mReader)) return;
+				try {
+					image = reader.acquireNextImage();
+				} catch (IllegalStateException e) {
+					// all images are held by consumers, this frame is dropped
+					if (DEBUG) Log.v(TAG, "frame dropped");
+					return;
+				}
+				if (image == null) return;
+				// obtain while holding the lock so that the reader is not closed by #stopPreview
+				frame = mFrameReader.obtain();
+				sequence = mSequence++;
+				rotation = mRotation;
+				isFrontFace = mIsFrontFace;
+			}
+			frame.onFilled(image, findResult(image.getTimestamp()), sequence, rotation, isFrontFace);
+			try {
+				mCallback.onFrame(frame);
+			} finally {
+				frame.release();
+			}
+		}
+	};
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.List;
+
+import android.hardware.Camera.AutoFocusCallback;
+import android.view.SurfaceHolder;
+
+/**
+ * camera device that delivers frames as ImageFrame(YUV_420_888).</br>
+ * CameraManager accesses Camera2 API only through this interface, so you can replace
+ * the device with a fake(e.g. FakeCameraBackend of the JVM tests) by overriding CameraManager#createBackend.
+ * Focus-modes are exposed with the names of Camera.Parameters.FOCUS_MODE_XX
+ * so the same selection logic(CameraUtils) is used for all backends.
+ * All methods and callbacks are called on the camera thread of CameraManager.
+ */
+public interface CameraBackend {
+	/**
+	 * callbacks from the backend, these are called on the camera thread
+	 */
+	public interface Callback {
+		/**
+		 * called when the camera is opened or failed to open
+		 * @param success
+		 */
+		public void onOpened(boolean success);
+		/**
+		 * called when preview frame is available,
+		 * the frame is released after this method returned
+		 * @param frame
+		 */
+		public void onFrame(ImageFrame frame);
+	}
+
+	/**
+	 * start opening the camera, Callback#onOpened is called when the camera is opened
+	 * @param cameraID index of the camera same as Camera#open
+	 * @return false if the camera could not be opened
+	 */
+	public boolean open(int cameraID);
+
+	public boolean isOpened();
+
+	public boolean isFrontFace();
+
+	/**
+	 * get orientation of the camera sensor
+	 * @return [degrees]
+	 */
+	public int getSensorOrientation();
+
+	/**
+	 * get supported preview sizes
+	 * @param withReader whether the size should be also available for frame delivery
+	 * @return sizes as {width0, height0, width1, height1,...}
+	 */
+	public int[] getOutputSizes(boolean withReader);
+
+	/**
+	 * get supported focus-modes
+	 * @return Camera.Parameters.FOCUS_MODE_XX
+	 */
+	public List<String> getFocusModes();
+
+	/**
+	 * get maximum zoom scale
+	 * @return number of zoom steps, 0 if zoom is not supported
+	 */
+	public int getMaxZoom();
+
+	/**
+	 * start preview
+	 * @param holder
+	 * @param width
+	 * @param height
+	 * @param numImages number of frame buffers, 0 means no frames are delivered
+	 * @param focusMode Camera.Parameters.FOCUS_MODE_XX, null for default
+	 * @param monoEffect
+	 * @param rotation rotation of preview[degrees], this is set to the frames.
+	 * Camera2 API rotates the preview on the surface by itself, so this(and the rotation offset
+	 * that is included in this) affects only the frames
+	 * @return false if the preview could not be started
+	 */
+	public boolean startPreview(SurfaceHolder holder, int width, int height,
+		int numImages, String focusMode, boolean monoEffect, int rotation);
+
+	/**
+	 * stop preview, frames that are held by consumers stay valid until they are released.
+	 */
+	public void stopPreview();
+
+	/**
+	 * change focus-mode while previewing
+	 * @param focusMode Camera.Parameters.FOCUS_MODE_XX
+	 * @return false if the focus-mode is not available
+	 */
+	public boolean setFocusMode(String focusMode);
+
+	/**
+	 * set digital zoom
+	 * @param zoom 0 to #getMaxZoom
+	 */
+	public void setZoom(int zoom);
+
+	/**
+	 * start auto-focus, the result is notified to the callback with null as the Camera
+	 * @param callback
+	 */
+	public void autoFocus(AutoFocusCallback callback);
+
+	/**
+	 * close the camera
+	 */
+	public void close();
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.graphics.Point;
+import android.hardware.Camera;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * process-wide cache of CameraInfo and negotiated preview sizes of each camera.</br>
+ * CameraInfo of all cameras are prefetched on background thread by #prefetch,
+ * negotiated preview sizes are stored the first time each camera is set up
+ * because getting capabilities needs to open the camera.
+ */
+public final class CameraInfoCache {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "CameraInfoCache" : null;
+
+	private static final SparseArray<Camera.CameraInfo> sCameraInfos = new SparseArray<Camera.CameraInfo>();
+	private static final Map<String, Point> sPreviewSizes = new HashMap<String, Point>();
+	private static boolean sPrefetchStarted;
+
+	private CameraInfoCache() {
+	}
+
+	/**
+	 * start prefetching CameraInfo of all cameras on background thread.
+	 * this method does nothing when prefetching is already started.
+	 */
+	public static synchronized void prefetch() {
+		if (sPrefetchStarted) return;
+		sPrefetchStarted = true;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final int n = Camera.getNumberOfCameras();
+				for (int i = 0; i < n; i++) {
+					getCameraInfo(i);
+				}
+				if (DEBUG) Log.v(TAG, "prefetched:" + n);
+			}
+		}, "CameraInfoCache").start();
+	}
+
+	/**
+	 * get CameraInfo of the camera, if it is not cached yet, get it from the camera and cache it.
+	 * @param cameraID
+	 * @return
+	 */
+	public static Camera.CameraInfo getCameraInfo(int cameraID) {
+		synchronized (sCameraInfos) {
+			Camera.CameraInfo info = sCameraInfos.get(cameraID);
+			if (info == null) {
+				info = new Camera.CameraInfo();
+				Camera.getCameraInfo(cameraID, info);
+				sCameraInfos.put(cameraID, info);
+			}
+			return info;
+		}
+	}
+
+	/**
+	 * get whether the camera is front camera
+	 * @param cameraID
+	 * @return
+	 */
+	public static boolean isFrontFace(int cameraID) {
+		return getCameraInfo(cameraID).facing == Camera.CameraInfo.CAMERA_FACING_FRONT;
+	}
+
+	/**
+	 * get cached preview size that was negotiated for the view size
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @return null if not cached yet
+	 */
+	public static Point getPreviewSize(int cameraID, int width, int height) {
+		synchronized (sPreviewSizes) {
+			final Point size = sPreviewSizes.get(getKey(cameraID, width, height));
+			return size != null ? new Point(size) : null;
+		}
+	}
+
+	/**
+	 * store preview size that was negotiated for the view size
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @param previewSize
+	 */
+	public static void setPreviewSize(int cameraID, int width, int height, Point previewSize) {
+		synchronized (sPreviewSizes) {
+			sPreviewSizes.put(getKey(cameraID, width, height), new Point(previewSize));
+		}
+	}
+
+	private static String getKey(int cameraID, int width, int height) {
+		return cameraID + ":" + width + "x" + height;
+	}
+}
@@ -19,72 +19,128 @@ package com.serenegiant.camera;
 
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
 
-import com.serenegiant.widget.CameraView;
-
 import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
 import android.graphics.ImageFormat;
+import android.graphics.Bitmap;
 import android.graphics.Point;
+import android.graphics.Rect;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
 import android.os.Handler;
 import android.os.Looper;
-import android.util.DisplayMetrics;
+import android.os.SystemClock;
 import android.util.Log;
-import android.view.Display;
-import android.view.Surface;
 import android.view.SurfaceHolder;
-import android.view.WindowManager;
 
 @SuppressLint("InlinedApi")
 public class CameraManager {
 	private static final boolean DEBUG = false; // TODO set false when production
 	private static final String TAG = DEBUG ? "CameraManager" : null;
 
+	private static final String PARAMS_ROTATION = "rotation";
 	/**
-	 * Minimum pixels on preview screen
+	 * priorities of events on camera thread, smaller value is executed first
 	 */
-	private static final int MIN_PREVIEW_PIXELS = 480 * 320;
+	public static final int PRIORITY_LIFECYCLE = 0;
+	public static final int PRIORITY_USER = 1;
+	public static final int PRIORITY_AUTOFOCUS = 2;
+	public static final int PRIORITY_HOUSEKEEPING = 3;
+	private static final int PRIORITY_NUM = 4;
 	/**
-	 * Maximum pixels on preview screen
-	 * 
+	 * camera API that is used to access the camera
 	 */
-	private static final int MAX_PREVIEW_PIXELS = 960 * 720;
+	public static final int BACKEND_CAMERA = 0;		// android.hardware.Camera
+	public static final int BACKEND_CAMERA2 = 1;	// android.hardware.camera2(API>=21)
 	/**
-	 * maximum aspect difference limit when selecting preview size
+	 * number of worker threads for encoding snapshots
 	 */
-	private static final double MAX_ASPECT_DISTORTION = 0.3;
-	
-	private static final String PARAMS_ROTATION = "rotation";
-	// collection of focus-mode that can auto-focus
-	private static final Collection<String> FOCUS_MODES_CALLING_AF;
-	static {
-		FOCUS_MODES_CALLING_AF = new ArrayList<String>(4);
-		FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
-		FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
-		FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_AUTO);
-		FOCUS_MODES_CALLING_AF.add(Camera.Parameters.FOCUS_MODE_MACRO);
-	}
-	// collection of focus-mode that the macro is available
-	private static final Collection<String> FOCUS_MODES_CALLING_MACRO;
-	static {
-		FOCUS_MODES_CALLING_MACRO = new ArrayList<String>(2);
-		FOCUS_MODES_CALLING_MACRO.add(Camera.Parameters.FOCUS_MODE_MACRO);
-		FOCUS_MODES_CALLING_MACRO.add(Camera.Parameters.FOCUS_MODE_EDOF);
-	}
-
-	private final CameraView mView;
+	private static final int SNAPSHOT_THREADS = 2;
+	/**
+	 * maximum number of pooled bitmaps for each size
+	 */
+	private static final int BITMAP_POOL_PER_SIZE = 2;
+	/**
+	 * minimum number of callback buffers when the buffers are limited by memory budget
+	 */
+	private static final int MIN_CALLBACK_BUFFERS = 2;
+	/**
+	 * maximum time to wait for the camera thread to apply the lifecycle transition[ms]
+	 */
+	/*package*/static final long TRANSITION_TIMEOUT_MS = 2000;
+	// names of traced camera operations
+	private static final String TRACE_OPEN = "open";
+	private static final String TRACE_SETUP = "setup";
+	private static final String TRACE_AUTOFOCUS = "autofocus";
+	private static final String TRACE_ZOOM = "zoom";
+	private static final String TRACE_CLOSE = "close";
+	// names of events on camera thread for each priority
+	private static final String[] TRACE_PRIORITY_NAMES = {
+		"lifecycle event", "user event", "autofocus event", "housekeeping event",
+	};
+	// lifecycle state of the camera
+	private static final int STATE_CLOSED = 0;
+	private static final int STATE_OPENED = 1;
+	private static final int STATE_PREVIEWING = 2;
+
+	/**
+	 * the view that shows the preview of this manager.</br>
+	 * CameraManager accesses the view and its display only through this interface,
+	 * so the lifecycle can be driven without View/Display(e.g. with FakeCameraBackend on JVM).
+	 */
+	public interface Host {
+		/**
+		 * @return Context to access the camera service and the quirks, this may be null
+		 * if #createBackend and #createQuirks are overridden
+		 */
+		public Context getContext();
+		/**
+		 * get rotation of the display that shows the preview
+		 * @return Surface.ROTATION_XX
+		 */
+		public int getDisplayRotation();
+		/**
+		 * get whether the display that shows the preview is portrait
+		 * @return
+		 */
+		public boolean isDisplayPortrait();
+		/**
+		 * run the task on UI thread
+		 * @param action
+		 * @return
+		 */
+		public boolean post(Runnable action);
+		/**
+		 * called on camera thread when the preview started
+		 * @param force
+		 */
+		public void startRead(boolean force);
+		/**
+		 * called on camera thread when preview frame is available with callback buffer
+		 * @param frame
+		 * @param camera
+		 */
+		public void onPreviewFrame(PreviewFrame frame, Camera camera);
+		/**
+		 * called on camera thread when preview frame is available with Camera2 API
+		 * @param frame
+		 */
+		public void onPreviewFrame(ImageFrame frame);
+	}
+
+	// view that shows the preview, this is changed when CameraSession hands over the camera
+	private volatile Host mView;
 	private int mCameraID;
 	// Camera instance
 	private Camera mCamera;
 	private Camera.Parameters mParams;
+	// Camera2 backend, this is not null while the camera is opened with Camera2 API
+	private CameraBackend mCamera2;
+	private int mBackend = BACKEND_CAMERA;
 	// Camera thread for asynchronous camera access
 	private CameraThread mCameraThread;
 	private Point mViewSize;
@@ -94,30 +150,119 @@ public class CameraManager {
 	private boolean mCanMacroMode, mCanAutoFocus;
 	private boolean mIsMacroMode, mIsAutoFocus, mIsMonoEffect;
 	private int mRot_offset;						// rotation offset value to adjust preview rotation
+	private boolean mHasRotOffset;					// whether mRot_offset was set by the app
+	private int mAppliedRotOffset;					// rotation offset actually applied(mRot_offset or quirk value)
+	private CameraQuirks mQuirks;					// device specific quirks, this is created when first needed
 	private boolean mIsZoomSupported;
 	private boolean mIsSmoothZoomSupported;
 	private boolean mInZooming;
 	private int mZoom;								// current zoom scale
+	private int mReqZoom;							// requested zoom scale, applied on camera thread
 	private int mMaxZomm;							// maximum zoom scale
 	public int mPreviewWidth, mPreviewHeight;		// preview size applied screen rotation
+	private int mPreviewFormat;						// applied preview format(ImageFormat.XX)
+	// pool of callback buffers, used only when mNumCallbackBuffers > 0
+	private final PreviewFramePool mFramePool = new PreviewFramePool();
+	private int mNumCallbackBuffers;
+	// additional consumers of preview frames, copied on write to iterate without allocation
+	private volatile FrameListener[] mFrameListeners = new FrameListener[0];
+	// pooled bitmaps to convert preview frames, released when preview size changed or camera closed
+	private final BitmapPool mBitmapPool = new BitmapPool(BITMAP_POOL_PER_SIZE);
+	private final FrameBitmapConverter mBitmapConverter = new FrameBitmapConverter(mBitmapPool);
+	private int mBitmapRotation;
+	// memory budget of all pooled resources
+	private final MemoryBudget mMemoryBudget = new MemoryBudget();
+	// recorder of camera thread events and frame pipeline stages, null if tracing is not used
+	private volatile TraceRecorder mTraceRecorder;
+	// encoder for snapshot/burst, this is created when first requested
+	private volatile SnapshotEncoder mSnapshotEncoder;
+	// pre-decode stage for barcode readers, this is created when first requested
+	private LuminanceBinarizer mBinarizer;
+	// lifecycle state of the camera, this is updated on camera thread
+	private int mState = STATE_CLOSED;
+	// requested lifecycle, merged into the current state on camera thread
+	private boolean mReqOpen;
+	private int mReqCameraID;
+	private SurfaceHolder mReqHolder;
+	private int mReqViewWidth, mReqViewHeight;
+	private AutoFocusCallback mReqAutoFocusCallback;
+	private boolean mTransitionQueued;
+	// parameters that were applied last time, setup is skipped if these are not changed
+	private Object mAppliedCamera;
+	private SurfaceHolder mAppliedHolder;
+	private int mAppliedViewWidth, mAppliedViewHeight, mAppliedDisplayRotation;
+	private int mTransitionRequestCount, mMergedTransitionCount;
+	// request count that the running/finished transition has taken, to wait for the transition
+	private int mRunningTransitionCount, mFinishedTransitionCount;
+	private int mAppliedSetupCount, mSkippedSetupCount;
+	// metrics of frame delivery with callback buffers
+	private final Object mDeliverySync = new Object();
+	private long mDeliveredFrameCount;
+	private long mTotalDispatchNs, mMaxDispatchNs;
+	private long mFirstFrameNs, mLastFrameNs;
+	// highest trim level that is waiting on camera thread
+	private int mReqTrimLevel;
 
-	public CameraManager(CameraView view) {
+	public CameraManager(Host view) {
 		mView = view;
+		mMemoryBudget.register("frames", mFramePoolResource);
+		mMemoryBudget.register("bitmaps", mBitmapPool);
+		mMemoryBudget.register("converter", mBitmapConverter);
 	}
 	
+	/**
+	 * change the view that receives preview frames and callbacks of this manager.</br>
+	 * CameraSession calls this to hand over the opened camera to other view without closing it,
+	 * the preview is moved to the surface of the view by next #OpenCamera with its holder.
+	 * @param view
+	 */
+	public void setView(Host view) {
+		mView = view;
+	}
+
+	public Host getView() {
+		return mView;
+	}
+
+	/**
+	 * copy the settings(focus-mode, rotation offset, backend and callback buffers) from other manager.</br>
+	 * this should be called before the camera is opened.
+	 * @param src
+	 */
+	public void copySettings(CameraManager src) {
+		final boolean macroMode, autoFocus, monoEffect, hasRotOffset, useDirectBuffer;
+		final int rotOffset, backend, numCallbackBuffers;
+		synchronized (src) {
+			macroMode = src.mIsMacroMode;
+			autoFocus = src.mIsAutoFocus;
+			monoEffect = src.mIsMonoEffect;
+			hasRotOffset = src.mHasRotOffset;
+			rotOffset = src.mRot_offset;
+			backend = src.mBackend;
+			numCallbackBuffers = src.mNumCallbackBuffers;
+			useDirectBuffer = src.isUseDirectBuffer();
+		}
+		setFocusMode(macroMode, autoFocus, monoEffect);
+		if (hasRotOffset) {
+			setRotationOffset(rotOffset);
+		}
+		setBackend(backend);
+		setUseDirectBuffer(useDirectBuffer);
+		setCallbackBufferNum(numCallbackBuffers);
+	}
+
 	public synchronized void OpenCamera(final int cameraID, final SurfaceHolder holder) {
 		if (mCameraThread == null) {
 			mCameraThread = new CameraThread();
+			mCameraThread.setTraceRecorder(mTraceRecorder);
 			mCameraThread.start();
 		}
 		// request cametha thread to call camera open method
 		// because that method may take a long time to complete on some devices.
-		mCameraThread.queueEvent(new Runnable() {
-			@Override
-			public void run() {
-				internalOpenCamera(cameraID, holder);
-			}
-		});
+		mReqOpen = true;
+		mReqCameraID = cameraID;
+		mReqHolder = holder;
+		requestTransition();
  	}
 
 	private void internalOpenCamera(int cameraID, final SurfaceHolder holder) {
@@ -130,137 +275,1103 @@ public class CameraManager {
 					throw new IOException();
 				}
 				mCamera.setPreviewDisplay(holder);
+				mAppliedHolder = holder;
 				mPrevDegrees = -1;
+				mState = STATE_OPENED;
 			} catch (Exception e) {
 				Log.w(TAG, e);
 			}
 		}	
 	}
-	
+	
+	/**
+	 * release camera</br>
+	 * the camera is released and camera thread is terminated on camera thread
+	 * unless the camera is requested to open again before that.
+	 * The close is queued at the front of the queue and this method waits until it is finished
+	 * (at most TRANSITION_TIMEOUT_MS), so the camera does not use the surface after this returned.
+	 * When this is called on camera thread, the camera is closed after current event without waiting.
+	 */
+	public synchronized void closeCamera() {
+		if (DEBUG) Log.v(TAG, "closeCamera:");
+		mReqOpen = false;
+		mReqViewWidth = mReqViewHeight = 0;
+		requestTransition(true);
+		if (!awaitTransition(TRANSITION_TIMEOUT_MS)) {
+			Log.w(TAG, "camera was not closed within " + TRANSITION_TIMEOUT_MS + "ms");
+		}
+	}
+
+	/**
+	 * wait until camera thread finishes the lifecycle transition that was requested before.</br>
+	 * This never waits on camera thread, and the lock of this instance is released while waiting.
+	 * With Camera2 backend, opening the camera finishes asynchronously after the transition.
+	 * @param timeoutMs
+	 * @return false if timed out
+	 */
+	/*package*/synchronized boolean awaitTransition(long timeoutMs) {
+		if ((mCameraThread == null) || (mCameraThread == Thread.currentThread())) return true;
+		final int request = mTransitionRequestCount;
+		final long limit = SystemClock.uptimeMillis() + timeoutMs;
+		// camera thread is null when the camera was closed, following requests never run
+		while ((mFinishedTransitionCount < request) && (mCameraThread != null)) {
+			final long remain = limit - SystemClock.uptimeMillis();
+			if (remain <= 0) return false;
+			try {
+				wait(remain);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * release camera and terminate camera thread.</br>
+	 * this is called on camera thread while holding the lock of this instance
+	 */
+	private void internalCloseCamera() {
+		if (DEBUG) Log.v(TAG, "internalCloseCamera:");
+		mParams = null;
+		mViewSize = null;
+		internalReleaseCamera();
+		releaseBitmaps();
+		if (mSnapshotEncoder != null) {
+			// return the frames waiting for encoding and stop worker threads
+			mMemoryBudget.unregister(mSnapshotEncoder);
+			mSnapshotEncoder.release();
+			mSnapshotEncoder = null;
+		}
+		if (mCameraThread != null) {
+			mCameraThread.quit();
+			mCameraThread = null;
+		}
+		// run pending trim request that was discarded with the camera thread
+		if (mReqTrimLevel > 0) {
+			mMemoryBudget.trimMemory(mReqTrimLevel);
+			mReqTrimLevel = 0;
+		}
+	}
+	
+	/**
+	 * release camera but keep camera thread and callback buffers
+	 */
+	private void internalReleaseCamera() {
+		mFramePool.detach();
+		if (mSnapshotEncoder != null) {
+			mSnapshotEncoder.cancel();
+		}
+		if (mCamera != null) {
+			traceBegin(TRACE_CLOSE);
+			mCamera.stopPreview();
+			mCamera.release();
+			mCamera = null;
+			traceEnd(TRACE_CLOSE);
+		}
+		if (mCamera2 != null) {
+			traceBegin(TRACE_CLOSE);
+			mCamera2.close();
+			mCamera2 = null;
+			traceEnd(TRACE_CLOSE);
+		}
+		mState = STATE_CLOSED;
+		mAppliedCamera = null;
+		mAppliedHolder = null;
+	}
+
+	/**
+	 * show the preview on other surface without closing the camera.</br>
+	 * this is called on camera thread, the preview is restarted by following setup.
+	 * @param holder
+	 */
+	private void internalChangePreviewDisplay(final SurfaceHolder holder) {
+		if (DEBUG) Log.v(TAG, "internalChangePreviewDisplay:");
+		mCamera.stopPreview();
+		try {
+			mCamera.setPreviewDisplay(holder);
+			mAppliedHolder = holder;
+		} catch (Exception e) {
+			Log.w(TAG, e);
+		}
+		mState = STATE_OPENED;
+	}
+
+	/**
+	 * switch to other camera without terminating camera thread.</br>
+	 * Callback buffers are reused if the preview size of new camera is same as current one.
+	 * @param cameraID
+	 * @param holder
+	 * @param viewWidth
+	 * @param viewHeight
+	 * @param autoFocusCallback
+	 */
+	public synchronized void switchCamera(final int cameraID, final SurfaceHolder holder,
+		final int viewWidth, final int viewHeight, final AutoFocusCallback autoFocusCallback) {
+
+		if (DEBUG) Log.v(TAG, "switchCamera:" + cameraID);
+		mReqViewWidth = viewWidth;
+		mReqViewHeight = viewHeight;
+		mReqAutoFocusCallback = autoFocusCallback;
+		OpenCamera(cameraID, holder);
+	}
+
+	public void setFocusMode(final boolean macroMode, final boolean autoFocus, final boolean monoEffect) {
+		mIsMacroMode = macroMode;
+		mIsAutoFocus = autoFocus;
+		mIsMonoEffect = monoEffect;
+	}
+	
+	/**
+	 * setup camera parameters
+	 * @param viewWidth
+	 * @param viewHeight
+	 * @param macroMode
+	 * @param autofocus
+	 * @param monoEffect
+	 * @param autoFocusCallback
+	 */
+	public synchronized void setupCameraParams(final int viewWidth, final int viewHeight,
+		final AutoFocusCallback autoFocusCallback) {
+		
+		// request camera thread to call setup method to guarantee
+		// that setup method is called after camera opened. 
+		// previous request that is not processed yet is superseded by this request.
+		mReqViewWidth = viewWidth;
+		mReqViewHeight = viewHeight;
+		mReqAutoFocusCallback = autoFocusCallback;
+		requestTransition();
+	}
+
+	/**
+	 * request camera thread to merge the requested lifecycle(open/setup/switch/close)
+	 * into the current state.</br>
+	 * only one transition is queued at a time, requests until it runs are merged into it.
+	 */
+	private synchronized void requestTransition() {
+		requestTransition(false);
+	}
+
+	/**
+	 * @param atFront true if the transition should run before other queued events(e.g. close)
+	 */
+	private synchronized void requestTransition(boolean atFront) {
+		mTransitionRequestCount++;
+		if (mCameraThread == null) return;	// camera is not requested to open yet
+		if (mTransitionQueued) {
+			mMergedTransitionCount++;
+			if (atFront) {
+				// move the queued transition to the front
+				mCameraThread.queueEventAtFront(mTransitionRunnable, mTransitionRunnable);
+			}
+		} else {
+			mTransitionQueued = true;
+			if (atFront) {
+				mCameraThread.queueEventAtFront(mTransitionRunnable, mTransitionRunnable);
+			} else {
+				mCameraThread.queueEvent(mTransitionRunnable, mTransitionRunnable, PRIORITY_LIFECYCLE, 0);
+			}
+		}
+	}
+
+	/**
+	 * Runnable to apply the requested lifecycle on camera thread
+	 */
+	private final Runnable mTransitionRunnable = new Runnable() {
+		@Override
+		public void run() {
+			try {
+				applyTransition();
+			} finally {
+				// wake up #awaitTransition
+				synchronized (CameraManager.this) {
+					mFinishedTransitionCount = mRunningTransitionCount;
+					CameraManager.this.notifyAll();
+				}
+			}
+		}
+	};
+
+	/**
+	 * apply the requested lifecycle on camera thread
+	 */
+	private void applyTransition() {
+		final int cameraID;
+		final SurfaceHolder holder;
+		final int viewWidth, viewHeight;
+		final AutoFocusCallback autoFocusCallback;
+		final boolean useCamera2;
+		synchronized (this) {
+			mTransitionQueued = false;
+			// requests until here are applied by this transition
+			mRunningTransitionCount = mTransitionRequestCount;
+			if (!mReqOpen) {
+				// close is the final state
+				internalCloseCamera();
+				return;
+			}
+			cameraID = mReqCameraID;
+			holder = mReqHolder;
+			viewWidth = mReqViewWidth;
+			viewHeight = mReqViewHeight;
+			autoFocusCallback = mReqAutoFocusCallback;
+			useCamera2 = mBackend == BACKEND_CAMERA2;
+			if (((mCamera != null) || (mCamera2 != null))
+				&& ((mCameraID != cameraID) || (useCamera2 != (mCamera2 != null)))) {
+				// switch camera or backend
+				mParams = null;
+				mViewSize = null;
+				internalReleaseCamera();
+			}
+		}
+		if (useCamera2) {
+			applyCamera2Transition(cameraID, holder, viewWidth, viewHeight, autoFocusCallback);
+			return;
+		}
+		if (mCamera == null) {
+			traceBegin(TRACE_OPEN);
+			internalOpenCamera(cameraID, holder);
+			traceEnd(TRACE_OPEN);
+			if (mCamera == null) return;
+		} else if (holder != mAppliedHolder) {
+			// the camera was handed over to other view
+			internalChangePreviewDisplay(holder);
+		}
+		if ((viewWidth <= 0) || (viewHeight <= 0)) return;	// view size is not fixed yet
+		final int displayRotation = mView.getDisplayRotation();
+		if ((mState == STATE_PREVIEWING) && (mAppliedCamera == mCamera)
+			&& (mAppliedViewWidth == viewWidth) && (mAppliedViewHeight == viewHeight)
+			&& (mAppliedDisplayRotation == displayRotation)) {
+			// nothing changed since last setup
+			synchronized (this) {
+				mSkippedSetupCount++;
+			}
+			return;
+		}
+		traceBegin(TRACE_SETUP);
+		internalSetupCameraParams(viewWidth, viewHeight);
+		traceEnd(TRACE_SETUP);
+		mAppliedCamera = mCamera;
+		mAppliedViewWidth = viewWidth;
+		mAppliedViewHeight = viewHeight;
+		mAppliedDisplayRotation = displayRotation;
+		mState = STATE_PREVIEWING;
+		synchronized (this) {
+			mAppliedSetupCount++;
+		}
+		autoFocus(autoFocusCallback);
+		mView.startRead(true);
+	}
+
+	/**
+	 * apply the requested lifecycle with Camera2 backend on camera thread.</br>
+	 * Opening the camera is asynchronous, the transition is requested again when it is opened.
+	 * Setup is also deferred until the surface is resized to the preview size.
+	 */
+	private void applyCamera2Transition(final int cameraID, final SurfaceHolder holder,
+		final int viewWidth, final int viewHeight, final AutoFocusCallback autoFocusCallback) {
+
+		if (mCamera2 == null) {
+			traceBegin(TRACE_OPEN);
+			final CameraBackend camera = createBackend(new Handler(Looper.myLooper()), mCamera2Callback);
+			mCameraID = cameraID;
+			if (camera.open(cameraID)) {
+				mCamera2 = camera;
+				mPrevDegrees = -1;
+			}
+			traceEnd(TRACE_OPEN);
+			return;
+		}
+		if (!mCamera2.isOpened()) return;	// wait until the camera is opened
+		if (mState == STATE_CLOSED) {
+			mState = STATE_OPENED;
+		}
+		if ((viewWidth <= 0) || (viewHeight <= 0)) return;	// view size is not fixed yet
+		final int displayRotation = mView.getDisplayRotation();
+		if ((mState == STATE_PREVIEWING) && (mAppliedCamera == mCamera2) && (mAppliedHolder == holder)
+			&& (mAppliedViewWidth == viewWidth) && (mAppliedViewHeight == viewHeight)
+			&& (mAppliedDisplayRotation == displayRotation)) {
+			// nothing changed since last setup
+			synchronized (CameraManager.this) {
+				mSkippedSetupCount++;
+			}
+			return;
+		}
+		traceBegin(TRACE_SETUP);
+		final boolean started = internalSetupCamera2(holder, viewWidth, viewHeight);
+		traceEnd(TRACE_SETUP);
+		if (!started) {
+			mState = STATE_OPENED;
+			return;
+		}
+		mAppliedCamera = mCamera2;
+		mAppliedHolder = holder;
+		mAppliedViewWidth = viewWidth;
+		mAppliedViewHeight = viewHeight;
+		mAppliedDisplayRotation = displayRotation;
+		mState = STATE_PREVIEWING;
+		synchronized (CameraManager.this) {
+			mAppliedSetupCount++;
+		}
+		autoFocus(autoFocusCallback);
+		mView.startRead(true);
+	}
+
+	/**
+	 * internal method to setup camera parameters and start preview with Camera2 backend.</br>
+	 * rotation, preview size and focus-mode are selected with same logic as Camera.
+	 * @param holder
+	 * @param viewWidth
+	 * @param viewHeight
+	 * @return false if preview is not started yet
+	 */
+	private final boolean internalSetupCamera2(final SurfaceHolder holder, int viewWidth, int viewHeight) {
+		if (DEBUG) Log.v(TAG, String.format("internalSetupCamera2:viewWidth=%d,viewHeight=%d",
+			viewWidth, viewHeight));
+		final CameraBackend camera = mCamera2;
+		camera.stopPreview();
+		applyRotationOffset(getQuirks());
+		mIsPortrite = mView.isDisplayPortrait();
+		mIsFrontFace = camera.isFrontFace();
+		// Camera2 API rotates the preview on the surface by itself,
+		// the rotation offset(or the quirk) is applied only to the rotation of the frames
+		mPrevDegrees = CameraUtils.getDisplayOrientation(camera.getSensorOrientation(),
+			mIsFrontFace, mView.getDisplayRotation(), mAppliedRotOffset);
+		mViewSize = new Point(viewWidth, viewHeight);
+		final int landscapeWidth = mIsPortrite ? viewHeight : viewWidth;
+		final int landscapeHeight = mIsPortrite ? viewWidth : viewHeight;
+		final int[] sizes = camera.getOutputSizes(mNumCallbackBuffers > 0);
+		if (sizes.length == 0) {
+			Log.w(TAG, "Device returned no supported preview sizes");
+			return false;
+		}
+		// if there is nothing at all suitable, use the first one
+		final int best = Math.max(0, CameraUtils.findBestPreviewSize(sizes, landscapeWidth, landscapeHeight));
+		mPreviewSize = new Point(sizes[best * 2], sizes[best * 2 + 1]);
+		if (DEBUG) Log.v(TAG, "setPreviewSize: " + mPreviewSize);
+		final Rect surfaceFrame = holder.getSurfaceFrame();
+		if ((surfaceFrame.width() != mPreviewSize.x) || (surfaceFrame.height() != mPreviewSize.y)) {
+			// Camera2 API needs the surface that has supported size,
+			// preview is started when the surface is changed to the preview size
+			final int width = mPreviewSize.x, height = mPreviewSize.y;
+			mView.post(new Runnable() {
+				@Override
+				public void run() {
+					holder.setFixedSize(width, height);
+				}
+			});
+			return false;
+		}
+		final String focusMode = CameraUtils.selectFocusMode(camera.getFocusModes(),
+			mIsMacroMode, mIsAutoFocus);
+		mCanMacroMode = CameraUtils.canMacroMode(focusMode);
+		mCanAutoFocus = CameraUtils.canAutoFocus(focusMode);
+		mMaxZomm = camera.getMaxZoom();
+		mIsZoomSupported = mMaxZomm > 0;
+		mIsSmoothZoomSupported = false;
+		mZoom = mReqZoom = 0;
+		mPreviewFormat = ImageFormat.YUV_420_888;
+		mPreviewWidth = mIsPortrite ? mPreviewSize.y : mPreviewSize.x;
+		mPreviewHeight = mIsPortrite ? mPreviewSize.x : mPreviewSize.y;
+		return camera.startPreview(holder, mPreviewSize.x, mPreviewSize.y,
+			mNumCallbackBuffers, focusMode, mIsMonoEffect, mPrevDegrees);
+	}
+
+	/**
+	 * create backend that is used with BACKEND_CAMERA2, this is called on camera thread.</br>
+	 * override this to replace the device with FakeCameraBackend etc.
+	 * @param handler handler of camera thread
+	 * @param callback
+	 * @return
+	 */
+	protected CameraBackend createBackend(Handler handler, CameraBackend.Callback callback) {
+		return new Camera2Backend(mView.getContext(), handler, callback);
+	}
+
+	/**
+	 * callbacks from Camera2 backend, these are called on camera thread
+	 */
+	private final CameraBackend.Callback mCamera2Callback = new CameraBackend.Callback() {
+		@Override
+		public void onOpened(boolean success) {
+			if (success) {
+				// continue the transition to setup
+				requestTransition();
+			} else {
+				synchronized (CameraManager.this) {
+					mCamera2 = null;
+					mState = STATE_CLOSED;
+				}
+			}
+		}
+
+		@Override
+		public void onFrame(ImageFrame frame) {
+			mView.onPreviewFrame(frame);
+		}
+	};
+
+	/**
+	 * select camera API that is used when the camera is opened next time.</br>
+	 * If the camera is already opened with other API, it is reopened with the selected API.
+	 * With Camera2 API, frames are delivered to CameraView#onPreviewFrame(ImageFrame)
+	 * only when callback buffers are set, and snapshot/pooled PreviewFrame are not available.
+	 * CameraSession is not supported with Camera2 API(CameraView#setSession rejects it).
+	 * @param backend BACKEND_CAMERA or BACKEND_CAMERA2
+	 * @return false if the backend is not available on this device, BACKEND_CAMERA is used instead
+	 */
+	public synchronized boolean setBackend(int backend) {
+		final boolean available = (backend != BACKEND_CAMERA2) || Camera2Backend.isAvailable();
+		final int newBackend = available ? backend : BACKEND_CAMERA;
+		if (mBackend != newBackend) {
+			mBackend = newBackend;
+			if (mReqOpen) {
+				requestTransition();
+			}
+		}
+		return available;
+	}
+
+	/**
+	 * get camera API that is selected
+	 * @return BACKEND_CAMERA or BACKEND_CAMERA2
+	 */
+	public synchronized int getBackend() {
+		return mBackend;
+	}
+
+	/**
+	 * get number of lifecycle requests(open/setup/switch)
+	 * @return
+	 */
+	public synchronized int getTransitionRequestCount() {
+		return mTransitionRequestCount;
+	}
+
+	/**
+	 * get number of lifecycle requests that were merged into already queued transition
+	 * @return
+	 */
+	public synchronized int getMergedTransitionCount() {
+		return mMergedTransitionCount;
+	}
+
+	/**
+	 * get number of times that camera parameters were actually applied
+	 * @return
+	 */
+	public synchronized int getAppliedSetupCount() {
+		return mAppliedSetupCount;
+	}
+
+	/**
+	 * get number of setup requests that were skipped because nothing changed
+	 * @return
+	 */
+	public synchronized int getSkippedSetupCount() {
+		return mSkippedSetupCount;
+	}
+
+	private void updateDeliveryStatistics(long arrivedNs, long finishedNs) {
+		final long dispatchNs = finishedNs - arrivedNs;
+		synchronized (mDeliverySync) {
+			if (mDeliveredFrameCount == 0) {
+				mFirstFrameNs = arrivedNs;
+			}
+			mLastFrameNs = arrivedNs;
+			mDeliveredFrameCount++;
+			mTotalDispatchNs += dispatchNs;
+			if (dispatchNs > mMaxDispatchNs) {
+				mMaxDispatchNs = dispatchNs;
+			}
+		}
+	}
+
+	/**
+	 * get number of frames that were delivered with callback buffers
+	 * @return
+	 */
+	public long getDeliveredFrameCount() {
+		synchronized (mDeliverySync) {
+			return mDeliveredFrameCount;
+		}
+	}
+
+	/**
+	 * get average time from arrival of the frame until CameraView#onPreviewFrame returned
+	 * @return [milliseconds]
+	 */
+	public float getAverageDispatchTimeMs() {
+		synchronized (mDeliverySync) {
+			return mDeliveredFrameCount > 0 ? (mTotalDispatchNs / 1000000.0f) / mDeliveredFrameCount : 0;
+		}
+	}
+
+	/**
+	 * get maximum time from arrival of the frame until CameraView#onPreviewFrame returned
+	 * @return [milliseconds]
+	 */
+	public float getMaxDispatchTimeMs() {
+		synchronized (mDeliverySync) {
+			return mMaxDispatchNs / 1000000.0f;
+		}
+	}
+
+	/**
+	 * get frame rate of delivered frames since the statistics were reset
+	 * @return [frames/second]
+	 */
+	public float getDeliveryFrameRate() {
+		synchronized (mDeliverySync) {
+			final long duration = mLastFrameNs - mFirstFrameNs;
+			return duration > 0 ? (mDeliveredFrameCount - 1) * 1000000000.0f / duration : 0;
+		}
+	}
+
+	/**
+	 * get estimated number of frames that the camera dropped.</br>
+	 * This is estimated from the interval of arrival time of callback buffers
+	 * against the preview fps range, see PreviewFrame#getDroppedFrames
+	 * @return
+	 */
+	public long getDroppedFrameCount() {
+		return mFramePool.getDroppedFrameCount();
+	}
+
+	public void resetDeliveryStatistics() {
+		synchronized (mDeliverySync) {
+			mDeliveredFrameCount = mTotalDispatchNs = mMaxDispatchNs = 0;
+			mFirstFrameNs = mLastFrameNs = 0;
+		}
+	}
+
+	/**
+	 * get store of device specific quirks
+	 * @return
+	 */
+	public synchronized CameraQuirks getQuirks() {
+		if (mQuirks == null) {
+			mQuirks = createQuirks(mView.getContext());
+		}
+		return mQuirks;
+	}
+
+	/**
+	 * create store of device specific quirks.</br>
+	 * override this to use other SharedPreferences(e.g. on JVM without resources)
+	 * @param context
+	 * @return
+	 */
+	protected CameraQuirks createQuirks(Context context) {
+		return new CameraQuirks(context);
+	}
+
+	/**
+	 * internal method to setup cammera parameters
+	 * @param viewWidth
+	 * @param viewHeight
+	 */
+	private final void internalSetupCameraParams(int viewWidth, int viewHeight) {
+		
+		if (DEBUG) Log.v(TAG, String.format("setupCameraParams:viewWidth=%d,viewHeight=%d",
+			viewWidth, viewHeight));
+		
+		// if camera is not ready yet, return immediately
+		if (mCamera == null) return;
+        mCamera.stopPreview();
+		mParams = getCameraParams();
+		final CameraQuirks quirks = getQuirks();
+		// check image format
+		// if the image format is other than NV21/YV12/YUY2, change to NV21
+		// (skip this when it was already found that NV21 is not available on this camera)
+		final int previewFormat = mParams.getPreviewFormat();
+		if ((previewFormat != ImageFormat.NV21)
+			&& (previewFormat != ImageFormat.YV12)
+			&& (previewFormat != ImageFormat.YUY2)
+			&& !quirks.isNV21Unsupported(mCameraID)) {
+			final List<Integer>supportedPreviewFormats = mParams.getSupportedPreviewFormats();
+			if ((supportedPreviewFormats != null) && supportedPreviewFormats.contains(Integer.valueOf(ImageFormat.NV21))) { 
+				mParams.setPreviewFormat(ImageFormat.NV21);
+			} else {
+				if (supportedPreviewFormats != null)
+					Log.w(TAG, String.format("could not set previewFormat to NV21:=%d,supported=", previewFormat)
+							+ supportedPreviewFormats);
+				quirks.setNV21Unsupported(mCameraID);
+			}
+		}
+		applyRotationOffset(quirks);
+		mIsPortrite = mView.isDisplayPortrait();
+		// rotate preview screen
+		setRotation(mParams, mView.getDisplayRotation());
+		mViewSize = new Point(viewWidth, viewHeight);
+		// use cached preview size if this camera was already set up with same view size
+		final int landscapeWidth = mIsPortrite ? viewHeight : viewWidth;
+		final int landscapeHeight = mIsPortrite ? viewWidth : viewHeight;
+		// or the preview size that the camera actually applied on previous launch
+		mPreviewSize = CameraInfoCache.getPreviewSize(mCameraID, landscapeWidth, landscapeHeight);
+		final int[] supportedSizes = getSupportedPreviewSizes(mParams);
+		if (mPreviewSize == null) {
+			mPreviewSize = quirks.getValidPreviewSize(mCameraID, landscapeWidth, landscapeHeight, supportedSizes);
+		}
+		if (mPreviewSize == null) {
+			mPreviewSize = findBestPreviewSizeValue(mParams, supportedSizes, viewWidth, viewHeight);
+		}
+		if (DEBUG) Log.v(TAG, "setPreviewSize: " + mPreviewSize);
+	    mParams.setPreviewSize(mPreviewSize.x, mPreviewSize.y);
+	    selectFocusMode(mParams, mIsMacroMode, mIsAutoFocus);
+	    // set camera effect
+		if (mIsMonoEffect)
+			setColorEffect(mParams, Camera.Parameters.EFFECT_MONO);
+		// apply camera parameters
+	    mCamera.setParameters(mParams);
+	    // confirm camera parameters
+	    if (updateCameraFlag()) {
+	    	// record only when the camera applied other size than requested one
+	    	// and the size passes the same check as on lookup
+	    	quirks.recordPreviewSize(mCameraID, landscapeWidth, landscapeHeight, mPreviewSize, supportedSizes);
+	    }
+	    CameraInfoCache.setPreviewSize(mCameraID, landscapeWidth, landscapeHeight, mPreviewSize);
+	    setupCallbackBuffers();
+		mCamera.startPreview();
+	}
+
+	/**
+	 * apply rotation offset that was set by #setRotationOffset,
+	 * or the quirk of this device if it was not set
+	 * @param quirks
+	 */
+	private void applyRotationOffset(CameraQuirks quirks) {
+		mAppliedRotOffset = mHasRotOffset ? mRot_offset : quirks.getRotationOffset(mCameraID, 0);
+	}
+
+	/**
+	 * set the number of callback buffers.</br>
+	 * If this value is larger than zero, preview frames are delivered continuously to
+	 * CameraView#onPreviewFrame(PreviewFrame, Camera) using pooled buffers.
+	 * If zero(default), one-shot preview callback is used.</br>
+	 * If this is changed while previewing, callback buffers are set up again on camera thread.
+	 * @param num
+	 */
+	public synchronized void setCallbackBufferNum(int num) {
+		final int n = num > 0 ? num : 0;
+		if (mNumCallbackBuffers != n) {
+			mNumCallbackBuffers = n;
+			if (mState == STATE_PREVIEWING) {
+				// force setup on next transition
+				mAppliedCamera = null;
+				requestTransition();
+			}
+		}
+	}
+
+	/**
+	 * add listener to receive preview frames with callback buffers.</br>
+	 * Listeners are called after CameraView#onPreviewFrame on camera thread.
+	 * @param listener
+	 */
+	public synchronized void addFrameListener(FrameListener listener) {
+		if (listener == null) {
+			throw new NullPointerException("listener must not be null");
+		}
+		final FrameListener[] listeners = mFrameListeners;
+		for (FrameListener l: listeners) {
+			if (l == listener) return;
+		}
+		final FrameListener[] result = new FrameListener[listeners.length + 1];
+		System.arraycopy(listeners, 0, result, 0, listeners.length);
+		result[listeners.length] = listener;
+		mFrameListeners = result;
+	}
+
+	public synchronized void removeFrameListener(FrameListener listener) {
+		final FrameListener[] listeners = mFrameListeners;
+		for (int i = 0; i < listeners.length; i++) {
+			if (listeners[i] == listener) {
+				final FrameListener[] result = new FrameListener[listeners.length - 1];
+				System.arraycopy(listeners, 0, result, 0, i);
+				System.arraycopy(listeners, i + 1, result, i, listeners.length - i - 1);
+				mFrameListeners = result;
+				return;
+			}
+		}
+	}
+
+	public synchronized int getCallbackBufferNum() {
+		return mNumCallbackBuffers;
+	}
+
+	/**
+	 * get whether preview frames are delivered with pooled callback buffers
+	 * @return
+	 */
+	public synchronized boolean isCallbackBufferMode() {
+		return mNumCallbackBuffers > 0;
+	}
+
+	/**
+	 * set whether each pooled frame also has direct ByteBuffer for native analyzers.</br>
+	 * this method should be called before #setupCameraParams called
+	 * @param useDirectBuffer
+	 */
+	public void setUseDirectBuffer(boolean useDirectBuffer) {
+		mFramePool.setUseDirectBuffer(useDirectBuffer);
+	}
+
+	public boolean isUseDirectBuffer() {
+		return mFramePool.isUseDirectBuffer();
+	}
+
+	/**
+	 * set whether exposure statistics are computed for pooled frames.</br>
+	 * The statistics are computed once per frame when PreviewFrame#getStatistics is called first
+	 * and shared by all consumers of the frame.
+	 * @param enabled
+	 * @param gridCols number of columns of the grid for mean of each region
+	 * @param gridRows number of rows of the grid for mean of each region
+	 * @param subsample sampling interval of pixels
+	 */
+	public void setFrameStatistics(boolean enabled, int gridCols, int gridRows, int subsample) {
+		mFramePool.setStatistics(enabled, gridCols, gridRows, subsample);
+	}
+
+	/**
+	 * set tracer to receive pipeline stages of each preview frame
+	 * @param tracer null to disable tracing
+	 */
+	public void setFrameTracer(FrameTracer tracer) {
+		mFramePool.setTracer(tracer);
+	}
+
+	/**
+	 * request to encode next preview frames to JPEG/PNG on worker threads.</br>
+	 * The frames are cropped and rotated with current rotation of preview display.
+	 * This is available only when callback buffers are used, and frames are held
+	 * for encoding only while at least one buffer is left to the camera.
+	 * @param count number of frames to encode, 1 for snapshot and larger than 1 for burst
+	 * @param crop region of the frame(without screen rotation) to encode, null for full frame
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 * @return false if callback buffers are not used, Camera2 API is used
+	 * or the crop is outside of current preview frame
+	 */
+	public synchronized boolean takeSnapshot(int count, Rect crop,
+		Bitmap.CompressFormat format, int quality, SnapshotEncoder.Callback callback) {
+
+		if ((mNumCallbackBuffers <= 0) || (mBackend == BACKEND_CAMERA2)) return false;
+		if (crop != null) {
+			final Point size = mPreviewSize;
+			if (crop.isEmpty()
+				|| ((size != null) && !crop.intersects(0, 0, size.x, size.y))) return false;
+		}
+		getSnapshotEncoder().request(count, crop, format, quality, callback);
+		return true;
+	}
+
+	/**
+	 * get encoder for snapshot/burst, you can get throughput and queue depth from this.
+	 * @return
+	 */
+	public synchronized SnapshotEncoder getSnapshotEncoder() {
+		if (mSnapshotEncoder == null) {
+			mSnapshotEncoder = new SnapshotEncoder(SNAPSHOT_THREADS,
+				Math.max(1, mNumCallbackBuffers - SNAPSHOT_THREADS));
+			mMemoryBudget.register("snapshot", mSnapshotEncoder);
+			updateSnapshotLimit();
+		}
+		return mSnapshotEncoder;
+	}
+
+	/**
+	 * limit the frames held by the snapshot encoder to leave at least one buffer to the camera.</br>
+	 * this should be called every time the number of callback buffers changed.
+	 */
+	private void updateSnapshotLimit() {
+		final SnapshotEncoder encoder = mSnapshotEncoder;
+		if (encoder != null) {
+			final int num = mFramePool.getBufferNum();
+			encoder.setMaxHeldFrames(num > 0 ? num - 1 : Math.max(0, mNumCallbackBuffers - 1));
+		}
+	}
+
+	/**
+	 * get binarizer to use as pre-decode stage of barcode readers.</br>
+	 * You can call LuminanceBinarizer#binarize from CameraView#onPreviewFrame
+	 * and pass the BitMatrix or candidate regions to your decoder.
+	 * The working buffers are registered to the memory budget.
+	 * @return
+	 */
+	public synchronized LuminanceBinarizer getBinarizer() {
+		if (mBinarizer == null) {
+			mBinarizer = new LuminanceBinarizer();
+			mMemoryBudget.register("binarizer", mBinarizer);
+		}
+		return mBinarizer;
+	}
+
+	/**
+	 * (re)allocate callback buffers to fit the negotiated preview size and format
+	 * and register them to the camera. Same buffers are reused when the size did not change.
+	 */
+	private final void setupCallbackBuffers() {
+		// clear buffer queue of the camera
+		mCamera.setPreviewCallbackWithBuffer(null);
+		if (mNumCallbackBuffers > 0) {
+			final int bufferSize = PreviewFramePool.getFrameBufferSize(mPreviewSize.x, mPreviewSize.y, mPreviewFormat);
+			// limit the number of buffers if the memory budget is not enough
+			final long available = mMemoryBudget.getAvailable(mFramePoolResource);
+			final int frameSize = bufferSize * (mFramePool.isUseDirectBuffer() ? 2 : 1);
+			final int num = (int)Math.max(Math.min(mNumCallbackBuffers, available / frameSize),
+				Math.min(mNumCallbackBuffers, MIN_CALLBACK_BUFFERS));
+			if (mFramePool.resize(num, bufferSize)
+				|| (mBitmapRotation != mPrevDegrees)) {
+				// pooled bitmaps for previous preview size/rotation are never used again
+				releaseBitmaps();
+				mBitmapRotation = mPrevDegrees;
+			}
+			mFramePool.setFrameInfo(mPreviewSize.x, mPreviewSize.y, mPreviewFormat,
+				mPrevDegrees, mIsFrontFace);
+			mFramePool.setMinFrameRate(getMinPreviewFps(mCamera.getParameters()));
+			updateSnapshotLimit();
+			mFramePool.attach(mCamera);
+			mCamera.setPreviewCallbackWithBuffer(mFrameCallback);
+		} else {
+			mFramePool.clear();
+		}
+	}
+
+	/**
+	 * get minimum frame rate of current preview fps range
+	 * @param params
+	 * @return [frames/second], 0 if the camera did not return the range
+	 */
+	private static float getMinPreviewFps(Camera.Parameters params) {
+		final int[] range = new int[2];
+		try {
+			params.getPreviewFpsRange(range);
+		} catch (Exception e) {
+			return 0;
+		}
+		return range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX] / 1000.0f;
+	}
+
+	/**
+	 * get converter from preview frame to Bitmap.</br>
+	 * Bitmaps are obtained from the pool of this instance and should be returned
+	 * with FrameBitmapConverter#release. Pooled bitmaps are released when the preview size
+	 * is changed or the camera is closed.
+	 * @return
+	 */
+	public FrameBitmapConverter getBitmapConverter() {
+		return mBitmapConverter;
+	}
+
+	/**
+	 * get memory budget of pooled resources in the camera pipeline.</br>
+	 * You can set the limit of memory usage, get current usage
+	 * and register your own resources(e.g. LumaPyramid) to this.
+	 * @return
+	 */
+	public MemoryBudget getMemoryBudget() {
+		return mMemoryBudget;
+	}
+
+	/**
+	 * shrink pooled resources, you should call this from ComponentCallbacks2#onTrimMemory.</br>
+	 * Callback buffers are shrunk to the minimum number for current preview size
+	 * and rebuilt when the camera parameters are set up next time(e.g. resume).
+	 * @param level ComponentCallbacks2.TRIM_MEMORY_XX
+	 */
+	public void trimMemory(int level) {
+		if (DEBUG) Log.v(TAG, "trimMemory:" + level);
+		synchronized (this) {
+			if (mCameraThread != null) {
+				// trim on camera thread as housekeeping not to race with buffer setup,
+				// queued request is merged with the highest level
+				if (level > mReqTrimLevel) {
+					mReqTrimLevel = level;
+				}
+				mCameraThread.queueEvent(mTrimRunnable, mTrimRunnable, PRIORITY_HOUSEKEEPING, 0);
+				return;
+			}
+		}
+		mMemoryBudget.trimMemory(level);
+	}
+
+	/**
+	 * Runnable to trim pooled resources on camera thread
+	 */
+	private final Runnable mTrimRunnable = new Runnable() {
+		@Override
+		public void run() {
+			final int level;
+			synchronized (CameraManager.this) {
+				level = mReqTrimLevel;
+				mReqTrimLevel = 0;
+			}
+			if (level > 0) {
+				mMemoryBudget.trimMemory(level);
+			}
+		}
+	};
+
+	/**
+	 * release pooled resources as much as possible, you should call this from ComponentCallbacks#onLowMemory
+	 */
+	public void onLowMemory() {
+		trimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+	}
+
 	/**
-	 * release camera
+	 * adapter of callback buffers for memory budget
 	 */
-	public synchronized void closeCamera() {
-		if (DEBUG) Log.v(TAG, "closeCamera:");
-		mParams = null;
-		mViewSize = null;
-		if (mCamera != null) {
-			mCamera.stopPreview();
-			mCamera.release();
-			mCamera = null;
+	private final MemoryBudget.Resource mFramePoolResource = new MemoryBudget.Resource() {
+		@Override
+		public int getMemorySize() {
+			return mFramePool.getMemorySize();
 		}
+
+		@Override
+		public void trimMemory(int level) {
+			synchronized (CameraManager.this) {
+				if ((mCamera == null) && (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN)) {
+					// camera is closed, buffers are re-allocated when the camera is opened again
+					mFramePool.clear();
+				} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+					mFramePool.shrink(MIN_CALLBACK_BUFFERS);
+					updateSnapshotLimit();
+				}
+			}
+		}
+	};
+
+	/**
+	 * set recorder of events on camera thread(open, setup, autofocus, zoom, close)
+	 * and frame pipeline stages. this replaces the tracer that was set by #setFrameTracer.
+	 * @param recorder null to stop tracing
+	 */
+	public synchronized void setTraceRecorder(TraceRecorder recorder) {
+		mTraceRecorder = recorder;
+		mFramePool.setTracer(recorder);
 		if (mCameraThread != null) {
-			mCameraThread.terminate();
-			mCameraThread = null;
+			mCameraThread.setTraceRecorder(recorder);
 		}
 	}
-	
-	public void setFocusMode(final boolean macroMode, final boolean autoFocus, final boolean monoEffect) {
-		mIsMacroMode = macroMode;
-		mIsAutoFocus = autoFocus;
-		mIsMonoEffect = monoEffect;
+
+	public TraceRecorder getTraceRecorder() {
+		return mTraceRecorder;
 	}
-	
+
+	private void traceBegin(String name) {
+		final TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null) {
+			recorder.begin(name);
+		}
+	}
+
+	private void traceEnd(String name) {
+		final TraceRecorder recorder = mTraceRecorder;
+		if (recorder != null) {
+			recorder.end(name);
+		}
+	}
+
 	/**
-	 * setup camera parameters
-	 * @param viewWidth
-	 * @param viewHeight
-	 * @param macroMode
-	 * @param autofocus
-	 * @param monoEffect
-	 * @param autoFocusCallback
+	 * release pooled bitmaps and working buffer for converting frames
 	 */
-	public synchronized void setupCameraParams(final int viewWidth, final int viewHeight,
-		final AutoFocusCallback autoFocusCallback) {
-		
-		// request camera thread to call setup method to guarantee
-		// that setup method is called after camera opened. 
-		mCameraThread.queueEvent(new Runnable() {
-			@Override
-			public void run() {
-				internalSetupCameraParams(viewWidth, viewHeight);
-				autoFocus(autoFocusCallback);
-				mView.startRead(true);
-			}			
-		});
+	private void releaseBitmaps() {
+		mBitmapPool.clear();
+		mBitmapConverter.clear();
 	}
 
 	/**
-	 * internal method to setup cammera parameters
-	 * @param viewWidth
-	 * @param viewHeight
+	 * callback for preview frames when callback buffers are used
 	 */
-	private final void internalSetupCameraParams(int viewWidth, int viewHeight) {
-		
-		if (DEBUG) Log.v(TAG, String.format("setupCameraParams:viewWidth=%d,viewHeight=%d",
-			viewWidth, viewHeight));
-		
-		// if camera is not ready yet, return immediately
-		if (mCamera == null) return;
-        mCamera.stopPreview();
-		mParams = getCameraParams();
-		// check image format
-		// if the image format is other than NV21/YV12/YUY2, change to NV21
-		final int previewFormat = mParams.getPreviewFormat();
-		if ((previewFormat != ImageFormat.NV21)
-			&& (previewFormat != ImageFormat.YV12)
-			&& (previewFormat != ImageFormat.YUY2)) {
-			final List<Integer>supportedPreviewFormats = mParams.getSupportedPreviewFormats();
-			if ((supportedPreviewFormats != null) && supportedPreviewFormats.contains(Integer.valueOf(ImageFormat.NV21))) { 
-				mParams.setPreviewFormat(ImageFormat.NV21);
-			} else {
-				if (supportedPreviewFormats != null)
-					Log.w(TAG, String.format("could not set previewFormat to NV21:=%d,supported=", previewFormat)
-							+ supportedPreviewFormats);
+	private final Camera.PreviewCallback mFrameCallback = new Camera.PreviewCallback() {
+		@Override
+		public void onPreviewFrame(byte[] data, Camera camera) {
+			final PreviewFrame frame = mFramePool.obtain(data);
+			if (frame != null) {
+				try {
+					final SnapshotEncoder encoder = mSnapshotEncoder;
+					if (encoder != null) {
+						encoder.onFrame(frame);
+					}
+					frame.trace(FrameTracer.STAGE_DISPATCH_START);
+					mView.onPreviewFrame(frame, camera);
+					final FrameListener[] listeners = mFrameListeners;
+					for (int i = 0; i < listeners.length; i++) {
+						listeners[i].onPreviewFrame(frame);
+					}
+					frame.trace(FrameTracer.STAGE_DISPATCH_END);
+				} finally {
+					updateDeliveryStatistics(frame.getTimestampNs(), System.nanoTime());
+					frame.release();
+				}
 			}
 		}
-		final Display display = ((WindowManager)mView.getContext()
-				.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
-		final DisplayMetrics metrics = new DisplayMetrics();
-		display.getMetrics(metrics);
-		mIsPortrite = (metrics.widthPixels < metrics.heightPixels);
-		// rotate preview screen
-		setRotation(mParams, display.getRotation());
-		mViewSize = new Point(viewWidth, viewHeight);
-		mPreviewSize = findBestPreviewSizeValue(mParams, viewWidth, viewHeight);
-		if (DEBUG) Log.v(TAG, "setPreviewSize: " + mPreviewSize);
-	    mParams.setPreviewSize(mPreviewSize.x, mPreviewSize.y);
-	    selectFocusMode(mParams, mIsMacroMode, mIsAutoFocus);
-	    // set camera effect
-		if (mIsMonoEffect)
-			setColorEffect(mParams, Camera.Parameters.EFFECT_MONO);
-		// apply camera parameters
-	    mCamera.setParameters(mParams);
-	    // confirm camera parameters
-	    updateCameraFlag();
-		mCamera.startPreview();
-	}
+	};
 
 	public synchronized final void zoomIn() {
-		mZoom++;
-		if (mZoom > mMaxZomm) mZoom = mMaxZomm;
-		setZomm(mZoom);
+		requestZoom(mReqZoom + 1);
 	}
 	
 	public synchronized final void zoomOut() {
-		mZoom--;
-		if (mZoom < 0) mZoom = 0;
-		setZomm(mZoom);
+		requestZoom(mReqZoom - 1);
 	}
 
+	/**
+	 * request camera thread to change zoom scale as user control.</br>
+	 * queued request is replaced with newer one, so only the last scale is applied.
+	 * @param zoom
+	 */
+	private void requestZoom(int zoom) {
+		mReqZoom = Math.max(0, Math.min(zoom, mMaxZomm));
+		if (mCameraThread != null) {
+			mCameraThread.queueEvent(mZoomRunnable, mZoomRunnable, PRIORITY_USER, 0);
+		}
+	}
+
+	/**
+	 * Runnable to apply requested zoom scale on camera thread
+	 */
+	private final Runnable mZoomRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (CameraManager.this) {
+				setZomm(mReqZoom);
+			}
+		}
+	};
+
 	private final void setZomm(int zoom) {
 		if (DEBUG) Log.v(TAG,  "SetZoom:zoom=" + zoom);
 		
+		if (mCamera2 != null) {
+			if (mIsZoomSupported) {
+				traceBegin(TRACE_ZOOM);
+				mCamera2.setZoom(zoom);
+				mZoom = zoom;
+				traceEnd(TRACE_ZOOM);
+			}
+			return;
+		}
 		if (mCamera != null && (mZoom != zoom)) {
-			if (mIsSmoothZoomSupported && !mInZooming) {
-				mInZooming = true;
-				mCamera.setZoomChangeListener(mOnZoomChangeListener);
-				mCamera.startSmoothZoom(mMaxZomm);
+			traceBegin(TRACE_ZOOM);
+			if (mIsSmoothZoomSupported) {
+				// new scale is requested again when current smooth zoom stopped
+				if (!mInZooming) {
+					mInZooming = true;
+					mCamera.setZoomChangeListener(mOnZoomChangeListener);
+					mCamera.startSmoothZoom(zoom);
+				}
 			} else if (mIsZoomSupported) {
 				final Camera.Parameters params = mCamera.getParameters();
 				params.setZoom(zoom);
 				mCamera.setParameters(params);
+				mZoom = zoom;
 			}
+			traceEnd(TRACE_ZOOM);
 		}
 	}
 	
@@ -271,21 +1382,28 @@ public class CameraManager {
 
 		@Override
 		public void onZoomChange(int zoomValue, boolean stopped, Camera camera) {
-			mInZooming = !stopped;
-			if (zoomValue > mZoom) {
+			synchronized (CameraManager.this) {
+				mInZooming = !stopped;
 				mZoom = zoomValue;
-				camera.stopSmoothZoom();
+				if (stopped && (mZoom != mReqZoom)) {
+					// zoom scale was changed while smooth zooming
+					requestZoom(mReqZoom);
+				}
 			}
 		}
 		
 	};
 
+	/**
+	 * get Camera instance
+	 * @return null if the camera is not opened or Camera2 API is used
+	 */
 	public synchronized Camera getCamera() {
 		return mCamera;
 	}
 	
 	public synchronized boolean isActive() {
-		return (mCamera != null) && (mViewSize != null);
+		return ((mCamera != null) || (mCamera2 != null)) && (mViewSize != null);
 	}
 	
 	public synchronized Camera.Parameters getCameraParams() {
@@ -301,6 +1419,10 @@ public class CameraManager {
 	    return mPreviewSize;
 	}
 
+	public int getPreviewFormat() {
+		return mPreviewFormat;
+	}
+
 	public Point getViewSize() {
 		return mViewSize;
 	}
@@ -319,15 +1441,22 @@ public class CameraManager {
 
 	/**
 	 * set offset value of camera rotation.</br>
+	 * this value(including 0) is always given priority over the quirk of this device.
 	 * this method should be called before #setupCameraParams called
 	 * @param offset
 	 */
-	public void setRotationOffset(int offset) {
+	public synchronized void setRotationOffset(int offset) {
 		mRot_offset = offset;
+		mHasRotOffset = true;
 	}
-	
-	public int getRotationOffset() {
-		return mRot_offset;
+
+	/**
+	 * get offset value of camera rotation
+	 * @return the value that was set by #setRotationOffset,
+	 * or the quirk of this device that was applied on last setup if it was not set
+	 */
+	public synchronized int getRotationOffset() {
+		return mHasRotOffset ? mRot_offset : mAppliedRotOffset;
 	}
 
 	/**
@@ -347,22 +1476,49 @@ public class CameraManager {
 	}
 	
 	/**
-	 * set macro-mode on/off (this value is ignored when macro-mode is not available)
+	 * set macro-mode on/off (this value is ignored when macro-mode is not available)</br>
+	 * the focus-mode is changed on camera thread as user control,
+	 * queued request is replaced with newer one.
 	 * @param isMacroMode
-	 * @return whether current focus-mode is macro-mode
+	 * @return whether the focus-mode will be macro-mode
 	 */
 	public synchronized boolean setMacroMode(boolean isMacroMode) {
-		boolean b = false;
-		if ((mCamera != null) && mCanMacroMode) {
+		mIsMacroMode = isMacroMode;
+		if (mCameraThread != null) {
+			mCameraThread.queueEvent(mMacroModeRunnable, mMacroModeRunnable, PRIORITY_USER, 0);
+		}
+		return isMacroMode && mCanMacroMode;
+	}
+
+	/**
+	 * Runnable to apply requested macro-mode on camera thread
+	 */
+	private final Runnable mMacroModeRunnable = new Runnable() {
+		@Override
+		public void run() {
+			synchronized (CameraManager.this) {
+				internalSetMacroMode(mIsMacroMode);
+			}
+		}
+	};
+
+	private void internalSetMacroMode(boolean isMacroMode) {
+		if ((mCamera2 != null) && mCanMacroMode) {
+			final String focusMode = CameraUtils.selectFocusMode(mCamera2.getFocusModes(),
+				isMacroMode, mIsAutoFocus);
+			if (focusMode != null) {
+				mCamera2.setFocusMode(focusMode);
+			}
+			mCanMacroMode = CameraUtils.canMacroMode(focusMode);
+			mCanAutoFocus = CameraUtils.canAutoFocus(focusMode);
+		} else if ((mCamera != null) && mCanMacroMode) {
 			final Camera.Parameters params = getCameraParams();
 			mCamera.stopPreview();
-			b = selectFocusMode(params, isMacroMode, mIsAutoFocus);
+			selectFocusMode(params, isMacroMode, mIsAutoFocus);
 			mCamera.setParameters(params);
 			updateCameraFlag();
 			mCamera.startPreview();
 		}
-		mIsMacroMode = isMacroMode;
-		return b & isMacroMode;
 	}
 	
 	/**
@@ -371,110 +1527,124 @@ public class CameraManager {
 	 */
 	public synchronized void autoFocus(AutoFocusCallback callback) {
 		if ((mCamera != null) && (mCameraThread != null) && mCanAutoFocus) {
+			traceBegin(TRACE_AUTOFOCUS);
 			mCamera.autoFocus(callback);
+			traceEnd(TRACE_AUTOFOCUS);
+		} else if ((mCamera2 != null) && (mCameraThread != null) && mCanAutoFocus) {
+			traceBegin(TRACE_AUTOFOCUS);
+			mCamera2.autoFocus(callback);
+			traceEnd(TRACE_AUTOFOCUS);
 		}
 	}
 
-	public void queueEvent(Runnable event, long delayMillis) {
-		mCameraThread.queueEvent(event, delayMillis);
+	public synchronized void queueEvent(Runnable event, long delayMillis) {
+		if (mCameraThread != null) {
+			mCameraThread.queueEvent(event, delayMillis);
+		}
 	}
 	
-	public void queueEvent(Runnable event) {
-		mCameraThread.queueEvent(event);
+	public synchronized void queueEvent(Runnable event) {
+		if (mCameraThread != null) {
+			mCameraThread.queueEvent(event);
+		}
+	}
+
+	/**
+	 * queue event on camera thread with priority.</br>
+	 * If an event with same key is already queued, it is replaced with this event.
+	 * Events queued with #queueEvent(Runnable) or #queueEvent(Runnable, long) are never replaced.
+	 * @param key null means this event is never replaced
+	 * @param event
+	 * @param priority PRIORITY_XX
+	 * @param delayMillis
+	 */
+	public synchronized void queueEvent(Object key, Runnable event, int priority, long delayMillis) {
+		if (mCameraThread != null) {
+			mCameraThread.queueEvent(key, event, priority, delayMillis);
+		}
+	}
+
+	public synchronized void removeEvent(Runnable event) {
+		if (mCameraThread != null) {
+			mCameraThread.removeEvent(event);
+		}
+	}
+
+	/**
+	 * get number of events that are waiting on camera thread
+	 * @return
+	 */
+	public synchronized int getEventQueueDepth() {
+		return mCameraThread != null ? mCameraThread.getQueueDepth() : 0;
+	}
+
+	/**
+	 * get maximum number of events that were waiting on camera thread
+	 * @return
+	 */
+	public synchronized int getMaxEventQueueDepth() {
+		return mCameraThread != null ? mCameraThread.getMaxQueueDepth() : 0;
+	}
+
+	/**
+	 * get number of queued events that were replaced with newer event of same key
+	 * @return
+	 */
+	public synchronized int getReplacedEventCount() {
+		return mCameraThread != null ? mCameraThread.getReplacedCount() : 0;
 	}
 
-	public void removeEvent(Runnable event) {
-		mCameraThread.removeEvent(event);
+	/**
+	 * get average time that events waited on camera thread after they became ready
+	 * @param priority PRIORITY_XX
+	 * @return [milliseconds]
+	 */
+	public synchronized float getAverageEventWaitMs(int priority) {
+		return mCameraThread != null ? mCameraThread.getAverageWaitMs(priority) : 0;
 	}
 	
+	/**
+	 * get supported preview sizes of the camera
+	 * @param parameters
+	 * @return sizes as {width0, height0, width1, height1,...}, null if the camera did not return them
+	 */
+	private static int[] getSupportedPreviewSizes(Camera.Parameters parameters) {
+		final List<Camera.Size> supportedSizes = parameters.getSupportedPreviewSizes();
+		if (supportedSizes == null) return null;
+		final int n = supportedSizes.size();
+		final int[] sizes = new int[n * 2];
+		for (int i = 0; i < n; i++) {
+			final Camera.Size size = supportedSizes.get(i);
+			sizes[i * 2] = size.width;
+			sizes[i * 2 + 1] = size.height;
+		}
+		return sizes;
+	}
+
 	/**
 	 * get optimum preview size fit to the current view size 
 	 * @param parameters
+	 * @param sizes supported preview sizes from #getSupportedPreviewSizes, may be null
 	 * @param width viewの幅
 	 * @param height viewの高さ
 	 * @return
 	 */
-	private final Point findBestPreviewSizeValue(Camera.Parameters parameters, int viewWidth, int viewHeight) {
+	private final Point findBestPreviewSizeValue(Camera.Parameters parameters, int[] sizes,
+		int viewWidth, int viewHeight) {
 		if (DEBUG) Log.v(TAG, String.format("findBestPreviewSizeValue:width=%d,height=%d", viewWidth, viewHeight));
 		// get view size when device will be in landscape.
 		final int width = mIsPortrite ? viewHeight : viewWidth;
 		final int height = mIsPortrite ? viewWidth : viewHeight;
 		if (DEBUG) Log.v(TAG, String.format("findBestPreviewSizeValue:landscape size=(%d,%d)", width, height));
 
-		final List<Camera.Size> rawSupportedSizes = parameters.getSupportedPreviewSizes();
-		if (rawSupportedSizes == null) {
+		if (sizes == null) {
 			if (DEBUG) Log.w(TAG, "Device returned no supported preview sizes; using default");
 			final Camera.Size defaultSize = parameters.getPreviewSize();
 			return new Point(defaultSize.width, defaultSize.height);
 		}
-	    // Sort by size, descending
-		final List<Camera.Size> supportedPreviewSizes = new ArrayList<Camera.Size>(rawSupportedSizes);
-		Collections.sort(supportedPreviewSizes, new Comparator<Camera.Size>() {
-			@Override
-			public int compare(Camera.Size a, Camera.Size b) {
-				int aPixels = a.height * a.width;
-				int bPixels = b.height * b.width;
-				if (bPixels < aPixels) {
-					return -1;
-				}
-				if (bPixels > aPixels) {
-					return 1;
-				}
-				return 0;
-			}
-		});
-
-		final double screenAspectRatio = width / (double) height;
-
-	    // Remove sizes that are unsuitable
-		final Iterator<Camera.Size> it = supportedPreviewSizes.iterator();
-		Camera.Size supportedPreviewSize;
-		int realWidth, realHeight, realPixels;
-		boolean isCandidatePortrait;
-		int maybeFlippedWidth, maybeFlippedHeight;
-		double aspectRatio, distortion;
-		
-		while (it.hasNext()) {
-			supportedPreviewSize = it.next();
-			realWidth = supportedPreviewSize.width;
-			realHeight = supportedPreviewSize.height;
-			realPixels = realWidth * realHeight;
-			
-			if (realPixels < MIN_PREVIEW_PIXELS || realPixels > MAX_PREVIEW_PIXELS) {
-				if (DEBUG) Log.i(TAG, String.format("skipped by PIXEL LIMIT(%dx%d)=%d", realWidth, realHeight, realPixels));
-				it.remove();
-				continue;
-			}
-
-			isCandidatePortrait = realWidth < realHeight;
-			maybeFlippedWidth = isCandidatePortrait ? realHeight : realWidth;
-			maybeFlippedHeight = isCandidatePortrait ? realWidth : realHeight;
-			aspectRatio = (double) maybeFlippedWidth / (double) maybeFlippedHeight;
-			distortion = Math.abs(aspectRatio - screenAspectRatio);
-			if (distortion > MAX_ASPECT_DISTORTION) {
-				if (DEBUG) Log.i(TAG, String.format("skipped by MAX_ASPECT_DISTORTION screen=%f,aspect=%f,distortion=%f",
-					screenAspectRatio, aspectRatio, distortion));
-				it.remove();
-				continue;
-			}
-
-			if ((maybeFlippedWidth == width) && (maybeFlippedHeight == height)) {
-				// the size fit perfectly
-				final Point exactPoint = new Point(realWidth, realHeight);
-				if (DEBUG) Log.i(TAG, "Found preview size exactly matching screen size: " + exactPoint);
-				return exactPoint;
-			}
-		}
-
-		// If no exact match, use largest preview size. This was not a great
-		// idea on older devices because of the additional computation needed.
-		// We're likely to get here on newer Android 4+ devices,
-		// where the CPU is much more powerful.
-		if (!supportedPreviewSizes.isEmpty()) {
-			final Camera.Size largestPreview = supportedPreviewSizes.get(0);
-			final Point largestSize = new Point(largestPreview.width, largestPreview.height);
-			if (DEBUG) Log.i(TAG, "Using largest suitable preview size: " + largestSize);
-			return largestSize;
+		final int best = CameraUtils.findBestPreviewSize(sizes, width, height);
+		if (best >= 0) {
+			return new Point(sizes[best * 2], sizes[best * 2 + 1]);
 		}
 
 		// If there is nothing at all suitable, return current preview size
@@ -490,16 +1660,7 @@ public class CameraManager {
 	 * @param rotation: the value from Display#getRotation
 	 */
 	private final void setRotation(Camera.Parameters params, int rotation) {
-		final Camera.CameraInfo info =
-			new android.hardware.Camera.CameraInfo();
-		android.hardware.Camera.getCameraInfo(mCameraID, info);
-		int degrees = 0;
-		switch (rotation) {
-			case Surface.ROTATION_0: degrees = 0; break;
-			case Surface.ROTATION_90: degrees = 90; break;
-			case Surface.ROTATION_180: degrees = 180; break;
-			case Surface.ROTATION_270: degrees = 270; break;
-		}
+		final Camera.CameraInfo info = CameraInfoCache.getCameraInfo(mCameraID);
 		boolean flag = false;
 		try {
 			flag = params.getInt(PARAMS_ROTATION) == mPrevDegrees;
@@ -507,12 +1668,8 @@ public class CameraManager {
 		}
 		// get whether the camera is front camera
 		mIsFrontFace = (info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT);
-		if (mIsFrontFace) {	// front camera
-			degrees = (info.orientation + (flag ? mRot_offset : 0) + degrees) % 360;
-			degrees = (360 - degrees) % 360;  // compensate the mirror
-		} else {  // back camera
-			degrees = (info.orientation + (flag ? mRot_offset : 0) - degrees + 360) % 360;
-		}
+		final int degrees = CameraUtils.getDisplayOrientation(info.orientation, mIsFrontFace,
+			rotation, flag ? mAppliedRotOffset : 0);
 		// set rotation
 		mCamera.setDisplayOrientation(degrees);
 		params.setRotation(degrees);
@@ -552,18 +1709,10 @@ public class CameraManager {
 	 * @return return true if the requested value can be set correctly
 	 */
 	private final boolean selectFocusMode(Camera.Parameters params, boolean macroMode, boolean autofocus) {
-		String focusMode = null;
 		mIsAutoFocus = autofocus;
 		boolean result = false;
-		// if macroMode is true, try to set macro-mode preferentially
-	    if (macroMode) {
-	    	focusMode = findSettableValue(params.getSupportedFocusModes(), FOCUS_MODES_CALLING_MACRO);
-	    }
-	    // if macroMode is false ot macro-mode is not available and macroMode is true
-	    // try to set auto-focus mode
-	    if (autofocus && (focusMode == null)) {
-	    	focusMode = findSettableValue(params.getSupportedFocusModes(), FOCUS_MODES_CALLING_AF);
-	    }
+		final String focusMode = CameraUtils.selectFocusMode(params.getSupportedFocusModes(),
+			macroMode, autofocus);
 	    if (focusMode != null) {
 	    	result = setFocusMode(params, focusMode);
 	    }
@@ -592,70 +1741,76 @@ public class CameraManager {
 		return result;
 	}
 
-	/**
-	 * select an available value from the list
-	 * @param supportedValues
-	 * @param desiredValues
-	 * @return
-	 */
-	private static final String findSettableValue(Collection<String> supportedValues,
-		Collection<String> desiredValues) {
-		
-		if (DEBUG) Log.i(TAG, "Supported values: " + supportedValues);
-		String result = null;
-		if (supportedValues != null) {
-			for (String desiredValue : desiredValues) {
-				if (supportedValues.contains(desiredValue)) {
-					result = desiredValue;
-					break;
-				}
-			}
-		}
-		if (DEBUG) Log.i(TAG, "Settable value: " + result);
-		return result;
-	}
-
 	/**
 	 * confirm the camera parameters
+	 * @return true if the camera applied other preview size than requested one
 	 */
-    private final void updateCameraFlag() {
+    private final boolean updateCameraFlag() {
 	    final Camera.Parameters params = mCamera.getParameters();
 	    final String focusMode = params.getFocusMode();
 	    // whether macro-mode is available
-	    mCanMacroMode = FOCUS_MODES_CALLING_MACRO.contains(focusMode);
+	    mCanMacroMode = CameraUtils.canMacroMode(focusMode);
 	    // whether auto-focus is available
-	    mCanAutoFocus = FOCUS_MODES_CALLING_AF.contains(focusMode);
+	    mCanAutoFocus = CameraUtils.canAutoFocus(focusMode);
 		// whether zooming is available
 		mIsZoomSupported = params.isZoomSupported();
 		// whether smooth zooming is available
 		mIsSmoothZoomSupported = params.isSmoothZoomSupported();
 		if (mIsZoomSupported) {
 			// get current zoom scale
-			mZoom = params.getZoom();
+			mZoom = mReqZoom = params.getZoom();
 			// get maximum zoom scale
 			mMaxZomm = params.getMaxZoom();
 		} else {
-			mZoom = mMaxZomm = 0;
+			mZoom = mReqZoom = mMaxZomm = 0;
 		}
 	    final Camera.Size previewSize = params.getPreviewSize();
-	    if (previewSize!= null && (
-	    	(mPreviewSize.x != previewSize.width) || (mPreviewSize.y != previewSize.height)) ) {
+	    final boolean mismatch = (previewSize != null) && (
+	    	(mPreviewSize.x != previewSize.width) || (mPreviewSize.y != previewSize.height));
+	    if (mismatch) {
 	    	if (DEBUG) Log.w(TAG, "Camera said it supported preview size " + mPreviewSize.x + 'x' + mPreviewSize.y +
 	                 ", but after setting it, preview size is " + previewSize.width + 'x' + previewSize.height);
 	    	mPreviewSize.x = previewSize.width;
 	    	mPreviewSize.y = previewSize.height;
 	    }
+	    mPreviewFormat = params.getPreviewFormat();
 		// rotate preview size to adjust actual screen orientation
 		mPreviewWidth = mIsPortrite ? mPreviewSize.y : mPreviewSize.x;
 		mPreviewHeight = mIsPortrite ? mPreviewSize.x : mPreviewSize.y;
+		return mismatch;
     }
     
 	/**
-	 * Camera thread
+	 * event queued on camera thread
+	 */
+	private static final class CameraEvent {
+		private Runnable mTask;
+		private Object mKey;
+		private int mPriority;
+		private long mSequence;
+		private long mWhenMs;		// uptimeMillis when this event can run
+		private long mReadyNs;		// System#nanoTime when this event can run, for wait-time metrics
+	}
+
+	/**
+	 * Camera thread</br>
+	 * Events are executed one by one in priority order(FIFO in same priority)
+	 * and messages from the camera like preview/auto-focus callbacks are interleaved between them.
+	 * Queued event is replaced when new event with same key is queued.
 	 */
 	private static final class CameraThread extends Thread {
 		private Handler mHandler;
 		private CountDownLatch mHandlerInitLatch;
+		private final Object mSync = new Object();
+		private final List<CameraEvent> mEvents = new ArrayList<CameraEvent>();
+		private final List<CameraEvent> mEventPool = new ArrayList<CameraEvent>();
+		private long mSequence, mFrontSequence;
+		// metrics
+		private int mMaxQueueDepth;
+		private int mReplacedCount;
+		private final long[] mTotalWaitNs = new long[PRIORITY_NUM];
+		private final int[] mExecutedCount = new int[PRIORITY_NUM];
+		private volatile TraceRecorder mTraceRecorder;
 		
 		public CameraThread() {
 			mHandlerInitLatch = new CountDownLatch(1);
@@ -671,6 +1826,10 @@ public class CameraManager {
 		    if (DEBUG) Log.v("CameraThread", "finished");
 		}
 		
+		public void setTraceRecorder(TraceRecorder recorder) {
+			mTraceRecorder = recorder;
+		}
+
 		public Handler getHandler() {
 			try {
 				mHandlerInitLatch.await();
@@ -680,32 +1839,208 @@ public class CameraManager {
 		}
 		
 		public void queueEvent(Runnable event) {
-			if (event == null) {
-				throw new NullPointerException("Runnable must not be null");
-			}
-			final Handler handler = getHandler();
-			if (handler != null)
-				handler.post(event);
+			queueEvent(null, event, PRIORITY_USER, 0);
 		}
 
 		public void queueEvent(Runnable event, long delayMillis) {
+			queueEvent(null, event, PRIORITY_USER, delayMillis);
+		}
+
+		/**
+		 * queue event
+		 * @param key event that has same key is replaced with this event, null means never replaced
+		 * @param event
+		 * @param priority PRIORITY_XX
+		 * @param delayMillis
+		 */
+		public void queueEvent(Object key, Runnable event, int priority, long delayMillis) {
+			queueEvent(key, event, priority, delayMillis, false);
+		}
+
+		/**
+		 * queue lifecycle event that is executed before all queued events,
+		 * the event that is running now is not interrupted
+		 * @param key event that has same key is replaced with this event and moved to the front
+		 * @param event
+		 */
+		public void queueEventAtFront(Object key, Runnable event) {
+			queueEvent(key, event, PRIORITY_LIFECYCLE, 0, true);
+		}
+
+		private void queueEvent(Object key, Runnable event, int priority, long delayMillis, boolean atFront) {
 			if (event == null) {
 				throw new NullPointerException("Runnable must not be null");
 			}
+			if ((priority < 0) || (priority >= PRIORITY_NUM)) {
+				throw new IllegalArgumentException("invalid priority:" + priority);
+			}
 			final Handler handler = getHandler();
-			if (handler != null)
-				mHandler.postDelayed(event, delayMillis);
+			if (handler == null) return;
+			synchronized (mSync) {
+				CameraEvent ev = null;
+				final int n = key != null ? mEvents.size() : 0;
+				for (int i = 0; i < n; i++) {
+					final CameraEvent queued = mEvents.get(i);
+					if (queued.mKey == key) {
+						// newer request replaces queued one
+						ev = queued;
+						mReplacedCount++;
+						break;
+					}
+				}
+				if (ev == null) {
+					ev = mEventPool.isEmpty() ? new CameraEvent() : mEventPool.remove(mEventPool.size() - 1);
+					mEvents.add(ev);
+					if (mEvents.size() > mMaxQueueDepth) {
+						mMaxQueueDepth = mEvents.size();
+					}
+				}
+				ev.mTask = event;
+				ev.mKey = key;
+				ev.mPriority = priority;
+				// events at the front take negative sequence, the last one runs first
+				ev.mSequence = atFront ? --mFrontSequence : mSequence++;
+				ev.mWhenMs = SystemClock.uptimeMillis() + delayMillis;
+				ev.mReadyNs = System.nanoTime() + delayMillis * 1000000L;
+				scheduleDrain(handler);
+			}
 		}
 
-		public void removeEvent(Runnable event) {
+		/**
+		 * remove queued event that has the specific key or task
+		 * @param event
+		 */
+		public void removeEvent(Object event) {
 			if (event == null) {
 				throw new NullPointerException("Runnable must not be null");
 			}
 			final Handler handler = getHandler();
-			if (handler != null)
-				handler.removeCallbacks(event);
+			if (handler == null) return;
+			synchronized (mSync) {
+				for (int i = mEvents.size() - 1; i >= 0; i--) {
+					final CameraEvent ev = mEvents.get(i);
+					if (((ev.mKey != null) && (ev.mKey == event)) || (ev.mTask == event)) {
+						recycle(mEvents.remove(i));
+					}
+				}
+				scheduleDrain(handler);
+			}
 		}
-		
+
+		/**
+		 * post drain runnable at the time when the earliest event becomes ready.
+		 * should be called while holding mSync
+		 * @param handler
+		 */
+		private void scheduleDrain(Handler handler) {
+			handler.removeCallbacks(mDrainRunnable);
+			if (!mEvents.isEmpty()) {
+				long when = Long.MAX_VALUE;
+				final int n = mEvents.size();
+				for (int i = 0; i < n; i++) {
+					final CameraEvent ev = mEvents.get(i);
+					if (ev.mWhenMs < when) when = ev.mWhenMs;
+				}
+				handler.postAtTime(mDrainRunnable, when);
+			}
+		}
+
+		private void recycle(CameraEvent ev) {
+			ev.mTask = null;
+			ev.mKey = null;
+			mEventPool.add(ev);
+		}
+
+		/**
+		 * execute one event that has the highest priority in ready events
+		 */
+		private final Runnable mDrainRunnable = new Runnable() {
+			@Override
+			public void run() {
+				final Handler handler = mHandler;
+				if (handler == null) return;
+				final Runnable task;
+				final int priority;
+				synchronized (mSync) {
+					final long now = SystemClock.uptimeMillis();
+					CameraEvent best = null;
+					final int n = mEvents.size();
+					for (int i = 0; i < n; i++) {
+						final CameraEvent ev = mEvents.get(i);
+						if ((ev.mWhenMs <= now) && ((best == null)
+							|| (ev.mPriority < best.mPriority)
+							|| ((ev.mPriority == best.mPriority) && (ev.mSequence < best.mSequence)))) {
+							best = ev;
+						}
+					}
+					if (best != null) {
+						mEvents.remove(best);
+						final long wait = System.nanoTime() - best.mReadyNs;
+						mTotalWaitNs[best.mPriority] += wait > 0 ? wait : 0;
+						mExecutedCount[best.mPriority]++;
+						task = best.mTask;
+						priority = best.mPriority;
+						recycle(best);
+					} else {
+						task = null;
+						priority = 0;
+					}
+					scheduleDrain(handler);
+				}
+				if (task != null) {
+					final TraceRecorder recorder = mTraceRecorder;
+					if (recorder != null) {
+						recorder.begin(TRACE_PRIORITY_NAMES[priority]);
+					}
+					task.run();
+					if (recorder != null) {
+						recorder.end(TRACE_PRIORITY_NAMES[priority]);
+					}
+				}
+			}
+		};
+
+		public int getQueueDepth() {
+			synchronized (mSync) {
+				return mEvents.size();
+			}
+		}
+
+		public int getMaxQueueDepth() {
+			synchronized (mSync) {
+				return mMaxQueueDepth;
+			}
+		}
+
+		public int getReplacedCount() {
+			synchronized (mSync) {
+				return mReplacedCount;
+			}
+		}
+
+		public float getAverageWaitMs(int priority) {
+			synchronized (mSync) {
+				final int n = mExecutedCount[priority];
+				return n > 0 ? mTotalWaitNs[priority] / (n * 1000000.0f) : 0;
+			}
+		}
+
+		/**
+		 * quit the looper without waiting, this should be called on this thread.</br>
+		 * queued events are discarded.
+		 */
+		public void quit() {
+			if (DEBUG) Log.v(TAG, "CameraThread:quit");
+			synchronized (mSync) {
+				mEvents.clear();
+			}
+			final Handler handler = mHandler;
+			if (handler != null) {
+				handler.removeCallbacks(mDrainRunnable);
+				handler.getLooper().quit();
+			}
+		}
+
 		public void terminate() {
 			if (mHandlerInitLatch != null) {
 				if (DEBUG) Log.v(TAG, "CameraThread:terminate");
@@ -722,6 +2057,9 @@ public class CameraManager {
 				}
 				if (DEBUG) Log.v(TAG, "CameraThread:terminated");
 			}
+			synchronized (mSync) {
+				mEvents.clear();
+			}
 			mHandlerInitLatch = null;
 			mHandler = null;
 		}
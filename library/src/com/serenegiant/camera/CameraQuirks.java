@@ -0,0 +1,326 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.serenegiant.cameralib.R;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.res.XmlResourceParser;
+import android.graphics.Point;
+import android.os.Build;
+import android.util.Log;
+
+/**
+ * persistent store of device specific camera quirks keyed by device model and camera id.</br>
+ * The quirks that were found at runtime are recorded into SharedPreferences
+ * and applied up front on later launches. Values in the bundled table(res/xml/camera_quirks.xml)
+ * are used until the quirk is recorded on the device.
+ * Only quirks detected from the camera are recorded, settings of the app are never stored,
+ * and recorded values should be validated against the camera capabilities before applying.
+ */
+public class CameraQuirks {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "CameraQuirks" : null;
+
+	private static final String PREF_NAME = "camera_quirks";
+
+	public static final String KEY_ROTATION_OFFSET = "rotation_offset";
+	public static final String KEY_NO_NV21 = "no_nv21";
+	public static final String KEY_PREVIEW_SIZE = "preview_size_";
+
+	private static final String TAG_QUIRK = "quirk";
+	private static final String ATTR_MODEL = "model";
+	private static final String ATTR_CAMERA = "camera";
+	private static final String ATTR_NAME = "name";
+	private static final String ATTR_VALUE = "value";
+
+	private final SharedPreferences mPreferences;
+	private final Map<String, String> mDefaults = new HashMap<String, String>();
+	private final String mModel;
+
+	public CameraQuirks(Context context) {
+		this(context.getSharedPreferences(PREF_NAME, Context.MODE_PRIVATE), getModel());
+		final XmlResourceParser parser = context.getResources().getXml(R.xml.camera_quirks);
+		try {
+			loadDefaults(parser);
+		} catch (Exception e) {
+			Log.w(TAG, e);
+		} finally {
+			parser.close();
+		}
+	}
+
+	/**
+	 * constructor without bundled table, you can use this to test with your own SharedPreferences
+	 * @param preferences
+	 * @param model
+	 */
+	public CameraQuirks(SharedPreferences preferences, String model) {
+		mPreferences = preferences;
+		mModel = model;
+	}
+
+	/**
+	 * get the model name that is used as the key
+	 * @return
+	 */
+	public static String getModel() {
+		return Build.MANUFACTURER + "/" + Build.MODEL;
+	}
+
+	/**
+	 * read quirks of the specific model from the table
+	 * @param parser
+	 * @param model
+	 * @param dst key is cameraID/name
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	public static void loadDefaults(XmlPullParser parser, String model, Map<String, String> dst)
+		throws XmlPullParserException, IOException {
+
+		for (int eventType = parser.getEventType(); eventType != XmlPullParser.END_DOCUMENT;
+			eventType = parser.next()) {
+
+			if ((eventType == XmlPullParser.START_TAG) && TAG_QUIRK.equals(parser.getName())
+				&& model.equals(parser.getAttributeValue(null, ATTR_MODEL))) {
+
+				final String camera = parser.getAttributeValue(null, ATTR_CAMERA);
+				final String name = parser.getAttributeValue(null, ATTR_NAME);
+				final String value = parser.getAttributeValue(null, ATTR_VALUE);
+				if ((camera != null) && (name != null) && (value != null)) {
+					dst.put(camera + "/" + name, value);
+					if (DEBUG) Log.v(TAG, "default:" + camera + "/" + name + "=" + value);
+				}
+			}
+		}
+	}
+
+	/**
+	 * read quirks of this model from the table in the format of res/xml/camera_quirks.xml,
+	 * the values that were already read are overwritten
+	 * @param parser
+	 * @throws XmlPullParserException
+	 * @throws IOException
+	 */
+	public void loadDefaults(XmlPullParser parser) throws XmlPullParserException, IOException {
+		loadDefaults(parser, mModel, mDefaults);
+	}
+
+	/**
+	 * get the quirk value, the recorded value is given priority over the bundled table
+	 * @param cameraID
+	 * @param name
+	 * @return null if the quirk is not known
+	 */
+	public String get(int cameraID, String name) {
+		final String value = mPreferences.getString(getKey(cameraID, name), null);
+		return value != null ? value : mDefaults.get(cameraID + "/" + name);
+	}
+
+	/**
+	 * record the quirk value, nothing is written if the value is not changed
+	 * @param cameraID
+	 * @param name
+	 * @param value
+	 */
+	public void put(int cameraID, String name, String value) {
+		final String key = getKey(cameraID, name);
+		if ((value != null) && !value.equals(mPreferences.getString(key, null))) {
+			if (DEBUG) Log.v(TAG, "put:" + key + "=" + value);
+			mPreferences.edit().putString(key, value).apply();
+		}
+	}
+
+	/**
+	 * remove recorded quirk value, the value of the bundled table is not affected
+	 * @param cameraID
+	 * @param name
+	 */
+	public void remove(int cameraID, String name) {
+		final String key = getKey(cameraID, name);
+		if (mPreferences.contains(key)) {
+			if (DEBUG) Log.v(TAG, "remove:" + key);
+			mPreferences.edit().remove(key).apply();
+		}
+	}
+
+	/**
+	 * remove all recorded quirks of this model, the bundled table is not affected
+	 */
+	public void clear() {
+		final SharedPreferences.Editor editor = mPreferences.edit();
+		final String prefix = mModel + "/";
+		for (String key: mPreferences.getAll().keySet()) {
+			if (key.startsWith(prefix)) {
+				editor.remove(key);
+			}
+		}
+		editor.apply();
+	}
+
+	public int getRotationOffset(int cameraID, int defaultValue) {
+		final String value = get(cameraID, KEY_ROTATION_OFFSET);
+		try {
+			return value != null ? Integer.parseInt(value) : defaultValue;
+		} catch (NumberFormatException e) {
+			return defaultValue;
+		}
+	}
+
+	/**
+	 * record rotation offset that was found to be wrong on this device.</br>
+	 * CameraManager never calls this with the value of CameraManager#setRotationOffset,
+	 * use this only for calibrated values.
+	 * @param cameraID
+	 * @param offset
+	 */
+	public void setRotationOffset(int cameraID, int offset) {
+		put(cameraID, KEY_ROTATION_OFFSET, Integer.toString(offset));
+	}
+
+	/**
+	 * get whether the camera was found that it does not support NV21
+	 * @param cameraID
+	 * @return
+	 */
+	public boolean isNV21Unsupported(int cameraID) {
+		return Boolean.parseBoolean(get(cameraID, KEY_NO_NV21));
+	}
+
+	public void setNV21Unsupported(int cameraID) {
+		put(cameraID, KEY_NO_NV21, Boolean.toString(true));
+	}
+
+	/**
+	 * get preview size that was actually applied for the view size
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @return null if not recorded
+	 */
+	public Point getPreviewSize(int cameraID, int width, int height) {
+		final String value = get(cameraID, KEY_PREVIEW_SIZE + width + "x" + height);
+		if (value != null) {
+			final int ix = value.indexOf('x');
+			try {
+				return new Point(Integer.parseInt(value.substring(0, ix)),
+					Integer.parseInt(value.substring(ix + 1)));
+			} catch (Exception e) {
+				Log.w(TAG, "invalid preview size:" + value);
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * record preview size that was actually applied for the view size
+	 * when the camera applied other size than requested one
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @param previewSize
+	 */
+	public void setPreviewSize(int cameraID, int width, int height, Point previewSize) {
+		put(cameraID, KEY_PREVIEW_SIZE + width + "x" + height, previewSize.x + "x" + previewSize.y);
+	}
+
+	/**
+	 * get preview size that was actually applied for the view size
+	 * if it is still valid for the camera, the stale record(e.g. after OS update) is removed
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @param supportedSizes supported preview sizes as {width0, height0, width1, height1,...}
+	 * @return null if not recorded or not valid
+	 * @see #isValidPreviewSize(int[], Point)
+	 */
+	public Point getValidPreviewSize(int cameraID, int width, int height, int[] supportedSizes) {
+		final Point size = getPreviewSize(cameraID, width, height);
+		if ((size != null) && !isValidPreviewSize(supportedSizes, size)) {
+			// the record is stale or the bundled table is wrong
+			if (DEBUG) Log.w(TAG, "ignore recorded preview size:" + size);
+			removePreviewSize(cameraID, width, height);
+			return null;
+		}
+		return size;
+	}
+
+	/**
+	 * record preview size that the camera applied instead of the requested one.</br>
+	 * The size that #getValidPreviewSize rejects is not recorded,
+	 * otherwise it would be removed and recorded again on every launch.
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 * @param previewSize applied preview size
+	 * @param supportedSizes supported preview sizes as {width0, height0, width1, height1,...}
+	 * @return true if the size is valid and recorded
+	 */
+	public boolean recordPreviewSize(int cameraID, int width, int height,
+		Point previewSize, int[] supportedSizes) {
+
+		if (isValidPreviewSize(supportedSizes, previewSize)) {
+			setPreviewSize(cameraID, width, height, previewSize);
+			return true;
+		}
+		if (DEBUG) Log.w(TAG, "applied preview size is not valid, not recorded:" + previewSize);
+		return false;
+	}
+
+	/**
+	 * get whether the preview size is supported by the camera and within the pixel limits
+	 * @param supportedSizes supported preview sizes as {width0, height0, width1, height1,...}
+	 * @param size
+	 * @return false if supportedSizes is null
+	 */
+	public static boolean isValidPreviewSize(int[] supportedSizes, Point size) {
+		final int pixels = size.x * size.y;
+		if ((pixels < CameraUtils.MIN_PREVIEW_PIXELS) || (pixels > CameraUtils.MAX_PREVIEW_PIXELS)) {
+			return false;
+		}
+		final int n = supportedSizes != null ? supportedSizes.length / 2 : 0;
+		for (int i = 0; i < n; i++) {
+			if ((supportedSizes[i * 2] == size.x) && (supportedSizes[i * 2 + 1] == size.y)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * remove recorded preview size for the view size, e.g. when it is not supported any more
+	 * @param cameraID
+	 * @param width width of the view when the device is in landscape
+	 * @param height height of the view when the device is in landscape
+	 */
+	public void removePreviewSize(int cameraID, int width, int height) {
+		remove(cameraID, KEY_PREVIEW_SIZE + width + "x" + height);
+	}
+
+	private String getKey(int cameraID, String name) {
+		return mModel + "/" + cameraID + "/" + name;
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.serenegiant.widget.CameraView;
+
+import android.graphics.Point;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * camera shared by multiple CameraViews and frame consumers.</br>
+ * The first attached view is the primary view, the CameraManager of it opens the camera
+ * and its SurfaceView shows the preview. Other views(secondary views) never open the camera,
+ * they receive the preview frames from the callback buffers of the primary view and
+ * draw them on their drawer thread. The preview size is selected with the aspect ratio of
+ * the primary view and the area of the largest view, so it is large enough for each of them.</br>
+ * The session is reference counted by the attached views. When the primary view is detached
+ * or its surface is destroyed, the CameraManager is handed over to the next view that has
+ * a surface and the preview is moved to it without closing the camera.
+ * The camera is closed when no view has a surface.
+ * All methods except getters should be called on UI thread. The getters never take the lock
+ * of this session because they are also called on camera thread for every frame.
+ */
+public class CameraSession {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "CameraSession" : null;
+
+	/**
+	 * minimum number of callback buffers when frames are shared
+	 */
+	private static final int MIN_CALLBACK_BUFFERS = 3;
+
+	// sessions for each camera id
+	private static final SparseArray<CameraSession> sSessions = new SparseArray<CameraSession>();
+
+	/**
+	 * get shared session of the camera, it is created if not exist yet
+	 * @param cameraID
+	 * @return
+	 */
+	public static CameraSession getSession(int cameraID) {
+		synchronized (sSessions) {
+			CameraSession session = sSessions.get(cameraID);
+			if (session == null) {
+				session = new CameraSession(cameraID);
+				sSessions.put(cameraID, session);
+			}
+			return session;
+		}
+	}
+
+	private final int mCameraID;
+	private final List<CameraView> mViews = new ArrayList<CameraView>();
+	// listeners to deliver frames to secondary views
+	private final Map<CameraView, FrameListener> mViewListeners = new HashMap<CameraView, FrameListener>();
+	private final List<FrameListener> mListeners = new ArrayList<FrameListener>();
+	private volatile CameraView mPrimary;
+	// manager that opens the camera, this is kept while the camera is handed over between views
+	private volatile CameraManager mManager;
+	private volatile int mFrameInterval = 1;
+
+	private CameraSession(int cameraID) {
+		mCameraID = cameraID;
+	}
+
+	public int getCameraID() {
+		return mCameraID;
+	}
+
+	/**
+	 * get number of attached views(reference count)
+	 * @return
+	 */
+	public synchronized int getViewCount() {
+		return mViews.size();
+	}
+
+	/**
+	 * get whether the view opens the camera and shows the preview directly
+	 * @param view
+	 * @return
+	 */
+	public boolean isPrimary(CameraView view) {
+		return (view != null) && (view == mPrimary);
+	}
+
+	public CameraView getPrimaryView() {
+		return mPrimary;
+	}
+
+	/**
+	 * get CameraManager that opens the camera.</br>
+	 * this may be the manager that was created by other view than the primary view
+	 * because the manager is handed over with the opened camera.
+	 * @return null if no view is attached
+	 */
+	public CameraManager getCameraManager() {
+		return mManager;
+	}
+
+	/**
+	 * get converter of the primary view to draw frames on secondary views
+	 * @return null if no view is attached
+	 */
+	public FrameBitmapConverter getBitmapConverter() {
+		final CameraManager manager = mManager;
+		return manager != null ? manager.getBitmapConverter() : null;
+	}
+
+	/**
+	 * set interval of frames that are drawn on secondary views
+	 * @param interval 1 means every frame, 2 means every other frame...
+	 */
+	public void setSecondaryFrameInterval(int interval) {
+		mFrameInterval = Math.max(1, interval);
+	}
+
+	public int getSecondaryFrameInterval() {
+		return mFrameInterval;
+	}
+
+	/**
+	 * attach the view to this session and increment reference count.</br>
+	 * this is called from CameraView#setSession
+	 * @param view
+	 */
+	public void attach(CameraView view) {
+		synchronized (this) {
+			if (mViews.contains(view)) return;
+			if (DEBUG) Log.v(TAG, "attach:" + view);
+			mViews.add(view);
+			if (mPrimary == null) {
+				setPrimary(view);
+			} else {
+				addSecondary(view);
+			}
+		}
+		requestSetup();
+	}
+
+	/**
+	 * detach the view from this session and decrement reference count.</br>
+	 * If the view is the primary view, the camera is handed over to next view.
+	 * The camera is closed when the last view is detached.
+	 * @param view
+	 */
+	public void detach(CameraView view) {
+		final CameraManager closeManager;
+		final CameraView next;
+		synchronized (this) {
+			if (!mViews.remove(view)) return;
+			if (DEBUG) Log.v(TAG, "detach:" + view);
+			if (view == mPrimary) {
+				next = findNext(view, false);
+				closeManager = (next == null) || !next.hasSurface() ? mManager : null;
+				if (next != null) {
+					handOverTo(next);
+				} else {
+					releaseManager();
+				}
+			} else {
+				next = null;
+				closeManager = null;
+				final FrameListener listener = mViewListeners.remove(view);
+				if ((listener != null) && (mManager != null)) {
+					mManager.removeFrameListener(listener);
+				}
+			}
+			if (mViews.isEmpty() && mListeners.isEmpty()) {
+				synchronized (sSessions) {
+					if (sSessions.get(mCameraID) == this) {
+						sSessions.remove(mCameraID);
+					}
+				}
+			}
+		}
+		// call the manager without the lock, camera thread does not wait for this session
+		if (closeManager != null) {
+			closeManager.closeCamera();
+		}
+		if ((next != null) && next.hasSurface()) {
+			next.resume();
+		}
+		requestSetup();
+	}
+
+	/**
+	 * called from CameraView when its surface was destroyed.</br>
+	 * If the view is the primary view, the preview is moved to other view that has a surface,
+	 * otherwise the camera is closed until any view gets a surface.
+	 * @param view
+	 */
+	public void onSurfaceDestroyed(CameraView view) {
+		final CameraManager closeManager, handOverManager;
+		final CameraView next;
+		synchronized (this) {
+			if (view != mPrimary) return;
+			if (DEBUG) Log.v(TAG, "onSurfaceDestroyed:" + view);
+			next = findNext(view, true);
+			if (next != null) {
+				handOverTo(next);
+				// the view receives frames as secondary view while it is attached
+				addSecondary(view);
+				closeManager = null;
+				handOverManager = mManager;
+			} else {
+				// keep the view as primary view and open the camera again when any surface is created
+				closeManager = mManager;
+				handOverManager = null;
+			}
+		}
+		// closeCamera waits until the camera is closed
+		if (closeManager != null) {
+			closeManager.closeCamera();
+		}
+		if (next != null) {
+			next.resume();
+		}
+		requestSetup();
+		// the destroyed surface must not be used after this returned,
+		// wait until the preview is moved to the next view
+		if ((handOverManager != null)
+			&& !handOverManager.awaitTransition(CameraManager.TRANSITION_TIMEOUT_MS)) {
+			Log.w(TAG, "preview was not moved within " + CameraManager.TRANSITION_TIMEOUT_MS + "ms");
+		}
+	}
+
+	/**
+	 * called from CameraView when its surface was created.</br>
+	 * If no view shows the preview now, the view becomes the primary view and opens the camera.
+	 * @param view
+	 */
+	public synchronized void onSurfaceCreated(CameraView view) {
+		final CameraView primary = mPrimary;
+		if ((view == primary) || !mViews.contains(view)) return;
+		if ((primary != null) && primary.hasSurface()) return;
+		if (DEBUG) Log.v(TAG, "onSurfaceCreated:take over the camera," + view);
+		handOverTo(view);
+		if (primary != null) {
+			addSecondary(primary);
+		}
+	}
+
+	/**
+	 * add listener to receive preview frames of this session.
+	 * frames are delivered only while at least one view is attached.
+	 * @param listener
+	 */
+	public synchronized void addFrameListener(FrameListener listener) {
+		if (mListeners.contains(listener)) return;
+		mListeners.add(listener);
+		if (mManager != null) {
+			mManager.addFrameListener(listener);
+			updateCallbackBuffers();
+		}
+	}
+
+	public synchronized void removeFrameListener(FrameListener listener) {
+		if (mListeners.remove(listener) && (mManager != null)) {
+			mManager.removeFrameListener(listener);
+		}
+	}
+
+	/**
+	 * request the primary view to set up the camera with the negotiated size of all attached views.</br>
+	 * The size has the aspect ratio of the primary view that shows the preview directly
+	 * and the area of the largest view, so the sizes of the views that have other aspect ratio
+	 * are not mixed up(e.g. the width of landscape view and the height of portrait view).
+	 * this is called when the size of any view changed.
+	 */
+	public void requestSetup() {
+		final CameraManager manager;
+		final CameraView primary;
+		final int width, height;
+		long area = 0;
+		synchronized (this) {
+			manager = mManager;
+			primary = mPrimary;
+			if ((manager == null) || (primary == null)) return;
+			width = primary.getWidth();
+			height = primary.getHeight();
+			for (CameraView view: mViews) {
+				area = Math.max(area, (long)view.getWidth() * view.getHeight());
+			}
+		}
+		if ((width > 0) && (height > 0)) {
+			final Point size = CameraUtils.scaleToArea(width, height, area);
+			if (DEBUG) Log.v(TAG, String.format("requestSetup:negotiated size=(%d,%d)", size.x, size.y));
+			manager.setupCameraParams(size.x, size.y, primary);
+		}
+	}
+
+	/**
+	 * find next primary view, the view that has a surface is selected first.
+	 * should be called while holding the lock
+	 * @param view current primary view
+	 * @param requireSurface if true, the view without surface is not selected
+	 * @return null if no view is available
+	 */
+	private CameraView findNext(CameraView view, boolean requireSurface) {
+		CameraView next = null;
+		for (CameraView v: mViews) {
+			if (v == view) continue;
+			if (v.hasSurface()) return v;
+			if ((next == null) && !requireSurface) {
+				next = v;
+			}
+		}
+		return next;
+	}
+
+	/**
+	 * make the view primary view with current manager, the camera is not closed.
+	 * should be called while holding the lock
+	 * @param next
+	 */
+	private void handOverTo(CameraView next) {
+		// primary view receives frames directly from the manager
+		final FrameListener listener = mViewListeners.remove(next);
+		if ((listener != null) && (mManager != null)) {
+			mManager.removeFrameListener(listener);
+		}
+		if (mManager != null) {
+			mManager.setView(next);
+			mPrimary = next;
+		} else {
+			setPrimary(next);
+		}
+	}
+
+	/**
+	 * remove listeners from the manager when no view is attached.
+	 * should be called while holding the lock
+	 */
+	private void releaseManager() {
+		final CameraManager manager = mManager;
+		if (manager != null) {
+			for (FrameListener listener: mViewListeners.values()) {
+				manager.removeFrameListener(listener);
+			}
+			for (FrameListener listener: mListeners) {
+				manager.removeFrameListener(listener);
+			}
+		}
+		mViewListeners.clear();
+		mPrimary = null;
+		mManager = null;
+	}
+
+	private void setPrimary(CameraView view) {
+		mPrimary = view;
+		final CameraManager manager = view.getCameraManager();
+		mManager = manager;
+		for (FrameListener listener: mViewListeners.values()) {
+			manager.addFrameListener(listener);
+		}
+		for (FrameListener listener: mListeners) {
+			manager.addFrameListener(listener);
+		}
+		updateCallbackBuffers();
+	}
+
+	private void addSecondary(final CameraView view) {
+		if (mViewListeners.containsKey(view)) return;
+		final FrameListener listener = new FrameListener() {
+			@Override
+			public void onPreviewFrame(PreviewFrame frame) {
+				if (frame.getSequence() % mFrameInterval == 0) {
+					view.onSecondaryPreviewFrame(frame);
+				}
+			}
+		};
+		mViewListeners.put(view, listener);
+		mManager.addFrameListener(listener);
+		updateCallbackBuffers();
+	}
+
+	/**
+	 * frames are shared only with callback buffers,
+	 * each secondary view holds one buffer at most while it draws the frame
+	 */
+	private void updateCallbackBuffers() {
+		final CameraManager manager = mManager;
+		final int num = MIN_CALLBACK_BUFFERS + mViewListeners.size();
+		if ((!mViewListeners.isEmpty() || !mListeners.isEmpty())
+			&& (manager.getCallbackBufferNum() < num)) {
+			manager.setCallbackBufferNum(num);
+		}
+	}
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ * Copyright (C) 2010 ZXing authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import android.graphics.Point;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.util.Log;
+import android.view.Surface;
+
+/**
+ * camera settings logic shared by Camera and Camera2 backend.</br>
+ * These methods only use plain values(sizes as int array, focus-modes as String)
+ * and never call Android framework at runtime, so they can run on plain JVM.
+ */
+public final class CameraUtils {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "CameraUtils" : null;
+
+	/**
+	 * Minimum pixels on preview screen
+	 */
+	public static final int MIN_PREVIEW_PIXELS = 480 * 320;
+	/**
+	 * Maximum pixels on preview screen
+	 *
+	 */
+	public static final int MAX_PREVIEW_PIXELS = 960 * 720;
+	/**
+	 * maximum aspect difference limit when selecting preview size
+	 */
+	public static final double MAX_ASPECT_DISTORTION = 0.3;
+	/**
+	 * number of digital zoom steps to increase the scale by 1x with Camera2 API
+	 */
+	public static final int ZOOM_STEPS_PER_X = 10;
+
+	// collection of focus-mode that can auto-focus
+	/* package */ static final Collection<String> FOCUS_MODES_CALLING_AF;
+	static {
+		final Collection<String> modes = new ArrayList<String>(4);
+		modes.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_PICTURE);
+		modes.add(Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+		modes.add(Camera.Parameters.FOCUS_MODE_AUTO);
+		modes.add(Camera.Parameters.FOCUS_MODE_MACRO);
+		FOCUS_MODES_CALLING_AF = Collections.unmodifiableCollection(modes);
+	}
+	// collection of focus-mode that the macro is available
+	/* package */ static final Collection<String> FOCUS_MODES_CALLING_MACRO;
+	static {
+		final Collection<String> modes = new ArrayList<String>(2);
+		modes.add(Camera.Parameters.FOCUS_MODE_MACRO);
+		modes.add(Camera.Parameters.FOCUS_MODE_EDOF);
+		FOCUS_MODES_CALLING_MACRO = Collections.unmodifiableCollection(modes);
+	}
+
+	private CameraUtils() {
+	}
+
+	/**
+	 * get optimum preview size fit to the view size.</br>
+	 * The size that exactly matches the view is selected first,
+	 * otherwise the largest size within pixel limits and aspect distortion limit.
+	 * @param sizes supported sizes as {width0, height0, width1, height1,...}
+	 * @param width width of the view when the device is landscape
+	 * @param height height of the view when the device is landscape
+	 * @return index of the selected size(sizes[index * 2], sizes[index * 2 + 1]), -1 if no size is suitable
+	 */
+	public static int findBestPreviewSize(int[] sizes, int width, int height) {
+		if (DEBUG) Log.v(TAG, String.format("findBestPreviewSize:landscape size=(%d,%d)", width, height));
+		final double screenAspectRatio = width / (double) height;
+		final int n = sizes != null ? sizes.length / 2 : 0;
+		int best = -1, bestPixels = 0;
+		for (int i = 0; i < n; i++) {
+			final int realWidth = sizes[i * 2];
+			final int realHeight = sizes[i * 2 + 1];
+			final int realPixels = realWidth * realHeight;
+			if (realPixels < MIN_PREVIEW_PIXELS || realPixels > MAX_PREVIEW_PIXELS) {
+				if (DEBUG) Log.i(TAG, String.format("skipped by PIXEL LIMIT(%dx%d)=%d", realWidth, realHeight, realPixels));
+				continue;
+			}
+			final boolean isCandidatePortrait = realWidth < realHeight;
+			final int maybeFlippedWidth = isCandidatePortrait ? realHeight : realWidth;
+			final int maybeFlippedHeight = isCandidatePortrait ? realWidth : realHeight;
+			final double aspectRatio = (double) maybeFlippedWidth / (double) maybeFlippedHeight;
+			final double distortion = Math.abs(aspectRatio - screenAspectRatio);
+			if (distortion > MAX_ASPECT_DISTORTION) {
+				if (DEBUG) Log.i(TAG, String.format("skipped by MAX_ASPECT_DISTORTION screen=%f,aspect=%f,distortion=%f",
+					screenAspectRatio, aspectRatio, distortion));
+				continue;
+			}
+			if ((maybeFlippedWidth == width) && (maybeFlippedHeight == height)) {
+				// the size fit perfectly
+				if (DEBUG) Log.i(TAG, "Found preview size exactly matching screen size: " + realWidth + "x" + realHeight);
+				return i;
+			}
+			// keep the first one of same pixels to select same size as stable sort
+			if (realPixels > bestPixels) {
+				best = i;
+				bestPixels = realPixels;
+			}
+		}
+		if (DEBUG) Log.i(TAG, "Using largest suitable preview size: " + best);
+		return best;
+	}
+
+	/**
+	 * get the size that has the aspect ratio of width x height and the specific area.</br>
+	 * this is used to negotiate the preview size for multiple views
+	 * without mixing the width and the height of the views that have different aspect ratio.
+	 * @param width
+	 * @param height
+	 * @param area area of the result, the size is not scaled down if this is smaller than width x height
+	 * @return
+	 */
+	public static Point scaleToArea(int width, int height, long area) {
+		final long pixels = (long)width * height;
+		if ((pixels <= 0) || (area <= pixels)) {
+			return new Point(width, height);
+		}
+		final double scale = Math.sqrt(area / (double)pixels);
+		return new Point((int)Math.round(width * scale), (int)Math.round(height * scale));
+	}
+
+	/**
+	 * select focus-mode(macro-mode is given priority over other mode)
+	 * @param supportedModes
+	 * @param macroMode
+	 * @param autofocus
+	 * @return null if no requested focus-mode is available
+	 */
+	public static String selectFocusMode(Collection<String> supportedModes,
+		boolean macroMode, boolean autofocus) {
+
+		String focusMode = null;
+		// if macroMode is true, try to set macro-mode preferentially
+		if (macroMode) {
+			focusMode = findSettableValue(supportedModes, FOCUS_MODES_CALLING_MACRO);
+		}
+		// if macroMode is false ot macro-mode is not available and macroMode is true
+		// try to set auto-focus mode
+		if (autofocus && (focusMode == null)) {
+			focusMode = findSettableValue(supportedModes, FOCUS_MODES_CALLING_AF);
+		}
+		return focusMode;
+	}
+
+	/**
+	 * get whether the focus-mode can auto-focus
+	 * @param focusMode
+	 * @return
+	 */
+	public static boolean canAutoFocus(String focusMode) {
+		return FOCUS_MODES_CALLING_AF.contains(focusMode);
+	}
+
+	/**
+	 * get whether the focus-mode is macro-mode
+	 * @param focusMode
+	 * @return
+	 */
+	public static boolean canMacroMode(String focusMode) {
+		return FOCUS_MODES_CALLING_MACRO.contains(focusMode);
+	}
+
+	/**
+	 * select an available value from the list
+	 * @param supportedValues
+	 * @param desiredValues
+	 * @return
+	 */
+	public static String findSettableValue(Collection<String> supportedValues,
+		Collection<String> desiredValues) {
+
+		if (DEBUG) Log.i(TAG, "Supported values: " + supportedValues);
+		String result = null;
+		if (supportedValues != null) {
+			for (String desiredValue : desiredValues) {
+				if (supportedValues.contains(desiredValue)) {
+					result = desiredValue;
+					break;
+				}
+			}
+		}
+		if (DEBUG) Log.i(TAG, "Settable value: " + result);
+		return result;
+	}
+
+	/**
+	 * parse the list of sizes in the format of Camera.Parameters#flatten
+	 * (e.g. "preview-size-values=1280x720,640x480"), so capability lists
+	 * captured from real devices can be used with #findBestPreviewSize
+	 * @param sizes "WxH,WxH,..."
+	 * @return sizes as {width0, height0, width1, height1,...}, invalid entries are skipped
+	 */
+	public static int[] parseSizes(String sizes) {
+		if ((sizes == null) || (sizes.length() == 0)) return new int[0];
+		final String[] values = sizes.split(",");
+		final int[] result = new int[values.length * 2];
+		int n = 0;
+		for (int i = 0; i < values.length; i++) {
+			final String value = values[i].trim();
+			final int pos = value.indexOf('x');
+			if (pos <= 0) continue;
+			try {
+				final int width = Integer.parseInt(value.substring(0, pos));
+				final int height = Integer.parseInt(value.substring(pos + 1));
+				result[n++] = width;
+				result[n++] = height;
+			} catch (NumberFormatException e) {
+				if (DEBUG) Log.w(TAG, "invalid size:" + value);
+			}
+		}
+		if (n < result.length) {
+			final int[] trimmed = new int[n];
+			System.arraycopy(result, 0, trimmed, 0, n);
+			return trimmed;
+		}
+		return result;
+	}
+
+	/**
+	 * parse the list of values in the format of Camera.Parameters#flatten
+	 * (e.g. "focus-mode-values=auto,macro,continuous-picture")
+	 * @param values "value,value,..."
+	 * @return
+	 */
+	public static List<String> parseValues(String values) {
+		final List<String> result = new ArrayList<String>();
+		if ((values != null) && (values.length() > 0)) {
+			for (String value: values.split(",")) {
+				final String v = value.trim();
+				if (v.length() > 0) {
+					result.add(v);
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * convert the value from Display#getRotation to degrees
+	 * @param rotation Surface.ROTATION_XX
+	 * @return
+	 */
+	public static int getDegrees(int rotation) {
+		switch (rotation) {
+		case Surface.ROTATION_90: return 90;
+		case Surface.ROTATION_180: return 180;
+		case Surface.ROTATION_270: return 270;
+		case Surface.ROTATION_0:
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * get rotation of preview
+	 * @param sensorOrientation orientation of the camera sensor[degrees]
+	 * @param isFrontFace whether the camera is front camera
+	 * @param rotation the value from Display#getRotation
+	 * @param offset rotation offset value to adjust preview rotation[degrees]
+	 * @return [degrees], 0, 90, 180 or 270
+	 */
+	public static int getDisplayOrientation(int sensorOrientation, boolean isFrontFace,
+		int rotation, int offset) {
+
+		int degrees = getDegrees(rotation);
+		if (isFrontFace) {	// front camera
+			degrees = (sensorOrientation + offset + degrees) % 360;
+			degrees = (360 - degrees) % 360;  // compensate the mirror
+		} else {  // back camera
+			degrees = (sensorOrientation + offset - degrees + 360) % 360;
+		}
+		return degrees;
+	}
+
+	/**
+	 * get crop region of digital zoom with Camera2 API.</br>
+	 * the region is in the coordinates of the pixel array,
+	 * the origin of the active array may not be 0 so the region is offset by it.
+	 * @param active active array of the sensor
+	 * @param zoom 0 to maxZoom, #ZOOM_STEPS_PER_X steps for each 1x
+	 * @param maxZoom
+	 * @param dst
+	 * @return dst
+	 */
+	public static Rect getZoomCropRegion(Rect active, int zoom, int maxZoom, Rect dst) {
+		final float ratio = 1.0f + Math.max(0, Math.min(zoom, maxZoom)) / (float)ZOOM_STEPS_PER_X;
+		final int w = (int)(active.width() / ratio);
+		final int h = (int)(active.height() / ratio);
+		final int left = active.left + (active.width() - w) / 2;
+		final int top = active.top + (active.height() - h) / 2;
+		dst.set(left, top, left + w, top + h);
+		return dst;
+	}
+}
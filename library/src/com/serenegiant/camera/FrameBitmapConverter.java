@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+/**
+ * convert preview frames to Bitmaps that are obtained from BitmapPool.</br>
+ * The returned Bitmap should be returned with #release when you finished to use it.
+ */
+public class FrameBitmapConverter implements MemoryBudget.Resource {
+	private final BitmapPool mPool;
+	private final Rect mCrop = new Rect();
+	private int[] mPixels;
+
+	public FrameBitmapConverter(BitmapPool pool) {
+		mPool = pool;
+	}
+
+	/**
+	 * convert whole frame to ARGB_8888 Bitmap
+	 * @param frame
+	 * @param rotate whether the frame is rotated with PreviewFrame#getRotation
+	 * @return
+	 */
+	public Bitmap convert(PreviewFrame frame, boolean rotate) {
+		return convert(frame, null, rotate, Bitmap.Config.ARGB_8888);
+	}
+
+	/**
+	 * convert preview frame to Bitmap
+	 * @param frame
+	 * @param crop region of the frame(without screen rotation), null for full frame
+	 * @param rotate whether the frame is rotated with PreviewFrame#getRotation
+	 * @param config
+	 * @return null if crop region is out of the frame
+	 */
+	public Bitmap convert(PreviewFrame frame, Rect crop, boolean rotate, Bitmap.Config config) {
+		return convert(frame.data, frame.getWidth(), frame.getHeight(), frame.getFormat(),
+			crop, rotate ? frame.getRotation() : 0, config);
+	}
+
+	/**
+	 * convert preview frame to Bitmap
+	 * @param data
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12 or ImageFormat.YUY2
+	 * @param crop region of the frame, null for full frame
+	 * @param rotation 0, 90, 180 or 270
+	 * @param config
+	 * @return null if crop region is out of the frame
+	 */
+	public synchronized Bitmap convert(byte[] data, int width, int height, int format,
+		Rect crop, int rotation, Bitmap.Config config) {
+
+		if (crop != null) {
+			mCrop.set(crop);
+			if (!mCrop.intersect(0, 0, width, height)) return null;
+		} else {
+			mCrop.set(0, 0, width, height);
+		}
+		final int w = YuvConverter.getOutputWidth(mCrop, rotation);
+		final int h = YuvConverter.getOutputHeight(mCrop, rotation);
+		if ((mPixels == null) || (mPixels.length < w * h)) {
+			mPixels = new int[w * h];
+		}
+		YuvConverter.toARGB(data, width, height, format, mCrop, rotation, mPixels);
+		final Bitmap bitmap = mPool.obtain(w, h, config);
+		bitmap.setPixels(mPixels, 0, w, 0, 0, w, h);
+		return bitmap;
+	}
+
+	/**
+	 * return the Bitmap to the pool,
+	 * it is recycled if the pool was cleared for other frame size while it was used
+	 * @param bitmap
+	 */
+	public void release(Bitmap bitmap) {
+		mPool.release(bitmap);
+	}
+
+	/**
+	 * release working buffer, this is re-allocated when next frame is converted
+	 */
+	public synchronized void clear() {
+		mPixels = null;
+	}
+
+	/**
+	 * get size of working buffer
+	 * @return [bytes]
+	 */
+	@Override
+	public synchronized int getMemorySize() {
+		return mPixels != null ? mPixels.length * 4 : 0;
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			clear();
+		}
+	}
+}
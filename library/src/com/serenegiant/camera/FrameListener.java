@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+/**
+ * interface to receive preview frames that are delivered with callback buffers
+ * in addition to CameraView#onPreviewFrame.</br>
+ * This method is called on the camera thread and the frame is returned to the camera
+ * after all listeners returned. If you need to hold the frame, call PreviewFrame#acquire
+ * and PreviewFrame#release.
+ */
+public interface FrameListener {
+	/**
+	 * @param frame
+	 */
+	public void onPreviewFrame(PreviewFrame frame);
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.Arrays;
+
+import android.graphics.ImageFormat;
+
+/**
+ * exposure statistics of preview frame(luma histogram, mean, clipping and mean of each region).</br>
+ * All values are computed in one subsampled pass over the Y plane into reusable arrays.
+ */
+public class FrameStatistics {
+	/**
+	 * luma values equal or less than this are treated as clipped to black
+	 */
+	public static final int CLIP_LOW = 4;
+	/**
+	 * luma values equal or larger than this are treated as clipped to white
+	 */
+	public static final int CLIP_HIGH = 251;
+
+	private final int[] mHistogram = new int[256];
+	private int mGridCols = 1, mGridRows = 1;
+	private long[] mRegionSums = new long[1];
+	private int[] mRegionCounts = new int[1];
+	private float[] mRegionMeans = new float[1];
+	private int mSubsample = 2;
+	private int mSampleCount;
+	private float mMean;
+	private float mClippedLow, mClippedHigh;
+
+	/**
+	 * set grid to compute mean of each region
+	 * @param cols
+	 * @param rows
+	 */
+	public void setGrid(int cols, int rows) {
+		if ((cols < 1) || (rows < 1)) {
+			throw new IllegalArgumentException("grid should be 1x1 or larger");
+		}
+		if ((mGridCols != cols) || (mGridRows != rows)) {
+			mGridCols = cols;
+			mGridRows = rows;
+			mRegionSums = new long[cols * rows];
+			mRegionCounts = new int[cols * rows];
+			mRegionMeans = new float[cols * rows];
+		}
+	}
+
+	/**
+	 * set sampling interval, 1 means all pixels are used
+	 * @param subsample
+	 */
+	public void setSubsample(int subsample) {
+		mSubsample = subsample > 0 ? subsample : 1;
+	}
+
+	/**
+	 * compute statistics of the frame
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12 or ImageFormat.YUY2
+	 */
+	public void compute(byte[] src, int width, int height, int format) {
+		final int rowStride, pixelStride;
+		switch (format) {
+		case ImageFormat.YV12:
+			rowStride = (int)Math.ceil(width / 16.0) * 16;
+			pixelStride = 1;
+			break;
+		case ImageFormat.YUY2:
+			rowStride = width * 2;
+			pixelStride = 2;
+			break;
+		case ImageFormat.NV21:
+		default:
+			rowStride = width;
+			pixelStride = 1;
+			break;
+		}
+		final int[] histogram = mHistogram;
+		final long[] sums = mRegionSums;
+		final int[] counts = mRegionCounts;
+		Arrays.fill(histogram, 0);
+		Arrays.fill(sums, 0);
+		Arrays.fill(counts, 0);
+		final int step = mSubsample;
+		final int cols = mGridCols, rows = mGridRows;
+		long total = 0;
+		int n = 0;
+		for (int y = 0; y < height; y += step) {
+			final int regionRow = (y * rows / height) * cols;
+			int i = y * rowStride;
+			// the region changes only at these x positions, so avoid division for each pixel
+			int col = 0;
+			int nextColX = (width + cols - 1) / cols;
+			for (int x = 0; x < width; x += step, i += pixelStride * step) {
+				while (x >= nextColX) {
+					col++;
+					nextColX = ((col + 1) * width + cols - 1) / cols;
+				}
+				final int luma = src[i] & 0xff;
+				histogram[luma]++;
+				sums[regionRow + col] += luma;
+				counts[regionRow + col]++;
+				total += luma;
+				n++;
+			}
+		}
+		mSampleCount = n;
+		mMean = n > 0 ? total / (float)n : 0;
+		int low = 0, high = 0;
+		for (int i = 0; i <= CLIP_LOW; i++) low += histogram[i];
+		for (int i = CLIP_HIGH; i < 256; i++) high += histogram[i];
+		mClippedLow = n > 0 ? low * 100.0f / n : 0;
+		mClippedHigh = n > 0 ? high * 100.0f / n : 0;
+		for (int i = 0; i < sums.length; i++) {
+			mRegionMeans[i] = counts[i] > 0 ? sums[i] / (float)counts[i] : 0;
+		}
+	}
+
+	/**
+	 * get histogram of luma, the returned array is reused for next frame
+	 * @return 256 bins
+	 */
+	public int[] getHistogram() {
+		return mHistogram;
+	}
+
+	/**
+	 * get number of pixels that were sampled
+	 * @return
+	 */
+	public int getSampleCount() {
+		return mSampleCount;
+	}
+
+	/**
+	 * get mean of luma
+	 * @return 0-255
+	 */
+	public float getMean() {
+		return mMean;
+	}
+
+	/**
+	 * get percentage of pixels that were clipped to black
+	 * @return 0-100
+	 */
+	public float getClippedLow() {
+		return mClippedLow;
+	}
+
+	/**
+	 * get percentage of pixels that were clipped to white
+	 * @return 0-100
+	 */
+	public float getClippedHigh() {
+		return mClippedHigh;
+	}
+
+	public int getGridCols() {
+		return mGridCols;
+	}
+
+	public int getGridRows() {
+		return mGridRows;
+	}
+
+	/**
+	 * get mean of luma in the specific region
+	 * @param col
+	 * @param row
+	 * @return 0-255
+	 */
+	public float getRegionMean(int col, int row) {
+		return mRegionMeans[row * mGridCols + col];
+	}
+
+	/**
+	 * get means of all regions in row-major order, the returned array is reused for next frame
+	 * @return
+	 */
+	public float[] getRegionMeans() {
+		return mRegionMeans;
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+/**
+ * interface to receive pipeline stages of each preview frame
+ * for measuring end-to-end latency.</br>
+ * This method is called on the thread that processes the frame,
+ * so implementation should return as soon as possible and should not allocate.
+ */
+public interface FrameTracer {
+	/**
+	 * the camera filled the frame and it arrived at the camera thread
+	 */
+	public static final int STAGE_ARRIVED = 0;
+	/**
+	 * start of dispatching the frame to CameraView
+	 */
+	public static final int STAGE_DISPATCH_START = 1;
+	/**
+	 * end of dispatching the frame to CameraView
+	 */
+	public static final int STAGE_DISPATCH_END = 2;
+	/**
+	 * all consumers released the frame and it is returned to the pool
+	 */
+	public static final int STAGE_RECYCLED = 3;
+	/**
+	 * stage values equal or larger than this can be used by applications
+	 */
+	public static final int STAGE_USER = 100;
+
+	/**
+	 * @param frame
+	 * @param stage STAGE_XX
+	 * @param timeNs time when the stage was reached, based on System#nanoTime
+	 */
+	public void onFrameStage(PreviewFrame frame, int stage, long timeNs);
+}
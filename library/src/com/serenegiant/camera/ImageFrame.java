@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.nio.ByteBuffer;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CaptureResult;
+import android.media.Image;
+import android.os.Build;
+
+/**
+ * preview frame of CameraBackend(ImageFormat.YUV_420_888).</br>
+ * Each plane is accessed as the direct ByteBuffer of the Image without copying.
+ * The buffers are valid until the frame is released, the Image is returned
+ * to the ImageReader when the reference count becomes zero.
+ * Frames of fake backends(e.g. FakeCameraBackend of the JVM tests) have plain ByteBuffers and no Image.
+ * If you need to hold the frame after the callback returned, call #acquire and #release.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public final class ImageFrame {
+	private static final int NUM_PLANES = 3;
+
+	/**
+	 * owner of the frames that receives the frame when its reference count became zero
+	 */
+	/* package */interface Recycler {
+		/**
+		 * called on the thread that released the frame, the Image is already closed
+		 * @param frame
+		 */
+		public void recycle(ImageFrame frame);
+	}
+
+	private final Recycler mRecycler;
+	private Image mImage;
+	private final ByteBuffer[] mBuffers = new ByteBuffer[NUM_PLANES];
+	private final int[] mRowStrides = new int[NUM_PLANES];
+	private final int[] mPixelStrides = new int[NUM_PLANES];
+	private int mPlaneCount;
+	private int mWidth, mHeight, mFormat;
+	private long mTimestampNs;
+	private CaptureResult mResult;
+	private int mRefCount;
+	private long mSequence;
+	private int mRotation;
+	private boolean mIsFrontFace;
+
+	/* package */ImageFrame(Recycler recycler) {
+		mRecycler = recycler;
+	}
+
+	/* package */void onFilled(Image image, CaptureResult result,
+		long sequence, int rotation, boolean isFrontFace) {
+
+		mImage = image;
+		// Image#getPlanes returns new array on every call, keep the buffers while this frame is used
+		final Image.Plane[] planes = image.getPlanes();
+		mPlaneCount = Math.min(planes.length, NUM_PLANES);
+		for (int i = 0; i < mPlaneCount; i++) {
+			mBuffers[i] = planes[i].getBuffer();
+			mRowStrides[i] = planes[i].getRowStride();
+			mPixelStrides[i] = planes[i].getPixelStride();
+		}
+		mWidth = image.getWidth();
+		mHeight = image.getHeight();
+		mFormat = image.getFormat();
+		mTimestampNs = image.getTimestamp();
+		mResult = result;
+		mSequence = sequence;
+		mRotation = rotation;
+		mIsFrontFace = isFrontFace;
+		mRefCount = 1;
+	}
+
+	/**
+	 * set planes that are not backed by Image, this is used by FakeCameraBackend
+	 * @param buffers Y, U and V planes
+	 * @param rowStrides
+	 * @param pixelStrides
+	 * @param width
+	 * @param height
+	 * @param format
+	 * @param timestampNs
+	 * @param sequence
+	 * @param rotation
+	 * @param isFrontFace
+	 */
+	/* package */void onFilled(ByteBuffer[] buffers, int[] rowStrides, int[] pixelStrides,
+		int width, int height, int format, long timestampNs,
+		long sequence, int rotation, boolean isFrontFace) {
+
+		mImage = null;
+		mPlaneCount = Math.min(buffers.length, NUM_PLANES);
+		for (int i = 0; i < mPlaneCount; i++) {
+			mBuffers[i] = buffers[i];
+			mRowStrides[i] = rowStrides[i];
+			mPixelStrides[i] = pixelStrides[i];
+		}
+		mWidth = width;
+		mHeight = height;
+		mFormat = format;
+		mTimestampNs = timestampNs;
+		mResult = null;
+		mSequence = sequence;
+		mRotation = rotation;
+		mIsFrontFace = isFrontFace;
+		mRefCount = 1;
+	}
+
+	/**
+	 * increment reference count
+	 */
+	public synchronized void acquire() {
+		if (mRefCount <= 0) {
+			throw new IllegalStateException("frame is already released");
+		}
+		mRefCount++;
+	}
+
+	/**
+	 * decrement reference count, the Image is closed when the count becomes zero
+	 */
+	public void release() {
+		synchronized (this) {
+			if (mRefCount <= 0) return;
+			if (--mRefCount > 0) return;
+			if (mImage != null) {
+				mImage.close();
+				mImage = null;
+			}
+			for (int i = 0; i < NUM_PLANES; i++) {
+				mBuffers[i] = null;
+			}
+			mResult = null;
+		}
+		mRecycler.recycle(this);
+	}
+
+	/**
+	 * get the Image of this frame, this should not be closed directly
+	 * @return null if the frame is not backed by Image(e.g. FakeCameraBackend)
+	 */
+	public Image getImage() {
+		return mImage;
+	}
+
+	public int getWidth() {
+		return mWidth;
+	}
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * @return ImageFormat.YUV_420_888
+	 */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * get timestamp of the frame
+	 * @return [nanoseconds], time base is same as CaptureResult.SENSOR_TIMESTAMP
+	 */
+	public long getTimestampNs() {
+		return mTimestampNs;
+	}
+
+	/**
+	 * get sequence number of the frame since the preview started
+	 * @return
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * get rotation of the preview when this frame was captured
+	 * @return [degrees]
+	 */
+	public int getRotation() {
+		return mRotation;
+	}
+
+	public boolean isFrontFace() {
+		return mIsFrontFace;
+	}
+
+	public int getPlaneCount() {
+		return mPlaneCount;
+	}
+
+	/**
+	 * get direct buffer of the plane(0:Y, 1:U, 2:V) without copying
+	 * @param plane
+	 * @return
+	 */
+	public ByteBuffer getBuffer(int plane) {
+		return mBuffers[plane];
+	}
+
+	public int getRowStride(int plane) {
+		return mRowStrides[plane];
+	}
+
+	public int getPixelStride(int plane) {
+		return mPixelStrides[plane];
+	}
+
+	/**
+	 * get capture result(exposure time, sensitivity, focus state etc.) of this frame
+	 * @return null if the result did not arrive before the frame or the frame is not backed by Image
+	 */
+	public CaptureResult getCaptureResult() {
+		return mResult;
+	}
+}
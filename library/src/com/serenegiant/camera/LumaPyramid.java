@@ -0,0 +1,285 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.ImageFormat;
+
+/**
+ * downsampled pyramid of preview frame using 2x2 box filter.</br>
+ * level 1, 2 and 3 are 1/2, 1/4 and 1/8 size of the frame.
+ * Each level is computed lazily when it is accessed first time after #update
+ * and the buffers are reused while the frame size does not change.</br>
+ * The frame data passed to #update should not be modified/recycled
+ * until you finished to access the levels.
+ */
+public class LumaPyramid implements MemoryBudget.Resource {
+	public static final int MAX_LEVEL = 3;
+
+	private final byte[][] mLuma = new byte[MAX_LEVEL + 1][];
+	private final byte[][] mU = new byte[MAX_LEVEL + 1][];
+	private final byte[][] mV = new byte[MAX_LEVEL + 1][];
+	private final int[] mWidths = new int[MAX_LEVEL + 1];
+	private final int[] mHeights = new int[MAX_LEVEL + 1];
+	private boolean mChromaEnabled;
+	// source frame
+	private byte[] mSrc;
+	private int mFormat;
+	// maximum level that was already computed for current source frame
+	private int mValidLevel;
+
+	/**
+	 * set whether chroma(U/V) pyramid is also computed.
+	 * @param enabled
+	 */
+	public synchronized void setChromaEnabled(boolean enabled) {
+		if (mChromaEnabled != enabled) {
+			mChromaEnabled = enabled;
+			mValidLevel = 0;
+		}
+	}
+
+	public synchronized boolean isChromaEnabled() {
+		return mChromaEnabled;
+	}
+
+	/**
+	 * set source frame, levels are not computed until they are accessed
+	 * @param frame
+	 */
+	public void update(PreviewFrame frame) {
+		update(frame.data, frame.getWidth(), frame.getHeight(), frame.getFormat());
+	}
+
+	/**
+	 * set source frame, levels are not computed until they are accessed
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12 or ImageFormat.YUY2
+	 */
+	public synchronized void update(byte[] src, int width, int height, int format) {
+		mSrc = src;
+		mFormat = format;
+		mValidLevel = 0;
+		if ((mWidths[0] != width) || (mHeights[0] != height)) {
+			for (int level = 0; level <= MAX_LEVEL; level++) {
+				mWidths[level] = width >> level;
+				mHeights[level] = height >> level;
+				mLuma[level] = mU[level] = mV[level] = null;
+			}
+		}
+	}
+
+	public int getWidth(int level) {
+		return mWidths[level];
+	}
+
+	public int getHeight(int level) {
+		return mHeights[level];
+	}
+
+	/**
+	 * get luminance of the specific level
+	 * @param level 1 to MAX_LEVEL
+	 * @return getWidth(level) x getHeight(level) bytes
+	 */
+	public synchronized byte[] getLuma(int level) {
+		build(level);
+		return mLuma[level];
+	}
+
+	/**
+	 * get U of the specific level, chroma should be enabled
+	 * @param level 1 to MAX_LEVEL
+	 * @return getWidth(level) x getHeight(level) bytes
+	 */
+	public synchronized byte[] getU(int level) {
+		build(level);
+		return mU[level];
+	}
+
+	/**
+	 * get V of the specific level, chroma should be enabled
+	 * @param level 1 to MAX_LEVEL
+	 * @return getWidth(level) x getHeight(level) bytes
+	 */
+	public synchronized byte[] getV(int level) {
+		build(level);
+		return mV[level];
+	}
+
+	/**
+	 * release buffers
+	 */
+	public synchronized void clear() {
+		mSrc = null;
+		mValidLevel = 0;
+		for (int level = 0; level <= MAX_LEVEL; level++) {
+			mWidths[level] = mHeights[level] = 0;
+			mLuma[level] = mU[level] = mV[level] = null;
+		}
+	}
+
+	/**
+	 * get current size of buffers
+	 * @return [bytes]
+	 */
+	@Override
+	public synchronized int getMemorySize() {
+		int result = 0;
+		for (int level = 1; level <= MAX_LEVEL; level++) {
+			if (mLuma[level] != null) result += mLuma[level].length;
+			if (mU[level] != null) result += mU[level].length * 2;
+		}
+		return result;
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			clear();
+		}
+	}
+
+	private void build(int level) {
+		if ((level < 1) || (level > MAX_LEVEL)) {
+			throw new IllegalArgumentException("level should be 1 to " + MAX_LEVEL);
+		}
+		if (mSrc == null) {
+			throw new IllegalStateException("source frame is not set");
+		}
+		for (int i = mValidLevel + 1; i <= level; i++) {
+			final int w = mWidths[i], h = mHeights[i];
+			if (mLuma[i] == null) {
+				mLuma[i] = new byte[w * h];
+			}
+			if (mChromaEnabled && (mU[i] == null)) {
+				mU[i] = new byte[w * h];
+				mV[i] = new byte[w * h];
+			}
+			if (i == 1) {
+				buildFirstLevel();
+			} else {
+				downsample(mLuma[i - 1], mWidths[i - 1], mLuma[i], w, h);
+				if (mChromaEnabled) {
+					downsample(mU[i - 1], mWidths[i - 1], mU[i], w, h);
+					downsample(mV[i - 1], mWidths[i - 1], mV[i], w, h);
+				}
+			}
+			mValidLevel = i;
+		}
+	}
+
+	/**
+	 * compute level 1 from the source frame
+	 */
+	private void buildFirstLevel() {
+		final int width = mWidths[0], height = mHeights[0];
+		// layout of each plane
+		final int yRowStride, yPixelStride;
+		final int uOffset, vOffset, uvRowStride, uvPixelStride;
+		final boolean isYUY2;
+		switch (mFormat) {
+		case ImageFormat.YV12:
+			yRowStride = (int)Math.ceil(width / 16.0) * 16;
+			yPixelStride = 1;
+			uvRowStride = (int)Math.ceil((yRowStride / 2) / 16.0) * 16;
+			uvPixelStride = 1;
+			vOffset = yRowStride * height;
+			uOffset = vOffset + uvRowStride * (height / 2);
+			isYUY2 = false;
+			break;
+		case ImageFormat.YUY2:
+			yRowStride = width * 2;
+			yPixelStride = 2;
+			uvRowStride = width * 2;
+			uvPixelStride = 4;
+			uOffset = 1;
+			vOffset = 3;
+			isYUY2 = true;
+			break;
+		case ImageFormat.NV21:
+		default:
+			yRowStride = width;
+			yPixelStride = 1;
+			uvRowStride = width;
+			uvPixelStride = 2;
+			vOffset = width * height;
+			uOffset = vOffset + 1;
+			isYUY2 = false;
+			break;
+		}
+		final byte[] src = mSrc;
+		final byte[] dst = mLuma[1];
+		final int w = mWidths[1], h = mHeights[1];
+		final int step = yPixelStride * 2;
+		int ix = 0;
+		for (int y = 0; y < h; y++) {
+			int i0 = y * 2 * yRowStride;
+			int i1 = i0 + yRowStride;
+			for (int x = 0; x < w; x++, i0 += step, i1 += step) {
+				dst[ix++] = (byte)(((src[i0] & 0xff) + (src[i0 + yPixelStride] & 0xff)
+					+ (src[i1] & 0xff) + (src[i1 + yPixelStride] & 0xff) + 2) >> 2);
+			}
+		}
+		if (mChromaEnabled) {
+			final byte[] u = mU[1], v = mV[1];
+			ix = 0;
+			if (isYUY2) {
+				// chroma of YUY2 has full vertical resolution, average 2 rows
+				for (int y = 0; y < h; y++) {
+					int i0 = y * 2 * uvRowStride;
+					int i1 = i0 + uvRowStride;
+					for (int x = 0; x < w; x++, ix++, i0 += uvPixelStride, i1 += uvPixelStride) {
+						u[ix] = (byte)(((src[uOffset + i0] & 0xff) + (src[uOffset + i1] & 0xff) + 1) >> 1);
+						v[ix] = (byte)(((src[vOffset + i0] & 0xff) + (src[vOffset + i1] & 0xff) + 1) >> 1);
+					}
+				}
+			} else {
+				// chroma of NV21/YV12 already has half resolution
+				for (int y = 0; y < h; y++) {
+					int i = y * uvRowStride;
+					for (int x = 0; x < w; x++, ix++, i += uvPixelStride) {
+						u[ix] = src[uOffset + i];
+						v[ix] = src[vOffset + i];
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * downsample to half size with 2x2 box filter
+	 * @param src
+	 * @param srcWidth
+	 * @param dst
+	 * @param w width of dst
+	 * @param h height of dst
+	 */
+	private static void downsample(byte[] src, int srcWidth, byte[] dst, int w, int h) {
+		int ix = 0;
+		for (int y = 0; y < h; y++) {
+			int i0 = y * 2 * srcWidth;
+			int i1 = i0 + srcWidth;
+			for (int x = 0; x < w; x++, i0 += 2, i1 += 2) {
+				dst[ix++] = (byte)(((src[i0] & 0xff) + (src[i0 + 1] & 0xff)
+					+ (src[i1] & 0xff) + (src[i1 + 1] & 0xff) + 2) >> 2);
+			}
+		}
+	}
+}
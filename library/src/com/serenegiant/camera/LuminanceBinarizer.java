@@ -0,0 +1,599 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * pre-decode stage for barcode readers.</br>
+ * The luminance of the frame(or ROI) is binarized into reusable BitMatrix with
+ * block based adaptive threshold(same as ZXing's HybridBinarizer: 8x8 blocks and
+ * average of 5x5 blocks around each block) and the work is split into row bands
+ * that run in parallel. Blocks that have high density of black/white transitions
+ * are merged into candidate regions, so decoders can try small regions first
+ * instead of whole frame.</br>
+ * The result is valid until next #binarize call.
+ */
+public class LuminanceBinarizer implements MemoryBudget.Resource {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "LuminanceBinarizer" : null;
+
+	private static final int BLOCK_SIZE_POWER = 3;
+	private static final int BLOCK_SIZE = 1 << BLOCK_SIZE_POWER;
+	private static final int BLOCK_SIZE_MASK = BLOCK_SIZE - 1;
+	/**
+	 * blocks that have smaller luminance range than this are treated as flat
+	 */
+	private static final int MIN_DYNAMIC_RANGE = 24;
+	private static final long KEEP_ALIVE_SECONDS = 10;
+	private static final int PHASE_BLOCKS = 0;
+	private static final int PHASE_THRESHOLD = 1;
+	/**
+	 * default minimum transitions per pixel(horizontal and vertical) of the block in candidate regions
+	 */
+	public static final float DEFAULT_MIN_EDGE_DENSITY = 0.1f;
+	/**
+	 * default minimum number of connected blocks of a candidate region
+	 */
+	public static final int DEFAULT_MIN_CANDIDATE_BLOCKS = 6;
+
+	private final ThreadPoolExecutor mExecutor;
+	private final BandTask[] mTasks;
+	private final Object mBarrier = new Object();
+	private int mPhase;
+	private int mRemaining;
+	private RuntimeException mBandError;
+	// source of current frame
+	private byte[] mSrc;
+	private int mOffset, mRowStride, mPixelStride;
+	private int mWidth, mHeight;
+	private int mBlockCols, mBlockRows;
+	private final Rect mRoi = new Rect();
+	// values of each block
+	private int[] mBlackPoints;
+	private int[] mBlockMin;		// minimum luminance of the block, -1 if the block has enough dynamic range
+	private int[] mThresholds;
+	private int[] mEdges;			// number of transitions in the block
+	private final BitMatrix mMatrix = new BitMatrix();
+	// candidate regions
+	private float mMinEdgeDensity = DEFAULT_MIN_EDGE_DENSITY;
+	private int mMinCandidateBlocks = DEFAULT_MIN_CANDIDATE_BLOCKS;
+	private int[] mVisited;
+	private int[] mStack;
+	private final List<Rect> mCandidates = new ArrayList<Rect>();
+	private int mCandidateNum;
+	// statistics
+	private long mProcessedCount;
+	private long mTotalNs;
+
+	/**
+	 * constructor, use same number of threads as available processors
+	 */
+	public LuminanceBinarizer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * constructor
+	 * @param numThreads number of threads including the caller thread
+	 */
+	public LuminanceBinarizer(int numThreads) {
+		final int n = Math.max(1, numThreads);
+		mTasks = new BandTask[n];
+		for (int i = 0; i < n; i++) {
+			mTasks[i] = new BandTask();
+		}
+		if (n > 1) {
+			mExecutor = new ThreadPoolExecutor(n - 1, n - 1,
+				KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+			mExecutor.allowCoreThreadTimeOut(true);
+		} else {
+			mExecutor = null;
+		}
+	}
+
+	/**
+	 * set minimum transitions per pixel of the block in candidate regions
+	 * @param density horizontal and vertical transitions per pixel, 0 to 1
+	 */
+	public synchronized void setMinEdgeDensity(float density) {
+		mMinEdgeDensity = density;
+	}
+
+	public synchronized float getMinEdgeDensity() {
+		return mMinEdgeDensity;
+	}
+
+	/**
+	 * set minimum number of connected blocks(8x8 pixels) of a candidate region
+	 * @param blocks
+	 */
+	public synchronized void setMinCandidateBlocks(int blocks) {
+		mMinCandidateBlocks = Math.max(1, blocks);
+	}
+
+	public synchronized int getMinCandidateBlocks() {
+		return mMinCandidateBlocks;
+	}
+
+	/**
+	 * binarize the luminance of preview frame
+	 * @param frame
+	 * @param roi region of the frame(without screen rotation), null for full frame
+	 * @return false if the region is smaller than 8x8 pixels
+	 */
+	public boolean binarize(PreviewFrame frame, Rect roi) {
+		return binarize(frame.data, frame.getWidth(), frame.getHeight(), frame.getFormat(), roi);
+	}
+
+	/**
+	 * binarize the luminance of preview frame
+	 * @param src
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.NV21, ImageFormat.YV12 or ImageFormat.YUY2
+	 * @param roi region of the frame, null for full frame
+	 * @return false if the region is smaller than 8x8 pixels
+	 */
+	public boolean binarize(byte[] src, int width, int height, int format, Rect roi) {
+		switch (format) {
+		case ImageFormat.YV12:
+			return binarize(src, width, height, (int)Math.ceil(width / 16.0) * 16, 1, roi);
+		case ImageFormat.YUY2:
+			return binarize(src, width, height, width * 2, 2, roi);
+		case ImageFormat.NV21:
+		default:
+			return binarize(src, width, height, width, 1, roi);
+		}
+	}
+
+	/**
+	 * binarize the luminance plane
+	 * @param luma
+	 * @param width
+	 * @param height
+	 * @param rowStride bytes between rows
+	 * @param pixelStride bytes between pixels
+	 * @param roi region of the plane, null for whole plane
+	 * @return false if the region is smaller than 8x8 pixels
+	 */
+	public synchronized boolean binarize(byte[] luma, int width, int height,
+		int rowStride, int pixelStride, Rect roi) {
+
+		final long startNs = System.nanoTime();
+		mCandidateNum = 0;
+		if (roi != null) {
+			mRoi.set(roi);
+			if (!mRoi.intersect(0, 0, width, height)) return false;
+		} else {
+			mRoi.set(0, 0, width, height);
+		}
+		final int w = mRoi.width();
+		final int h = mRoi.height();
+		if ((w < BLOCK_SIZE) || (h < BLOCK_SIZE)) return false;
+		mSrc = luma;
+		mRowStride = rowStride;
+		mPixelStride = pixelStride;
+		mOffset = mRoi.top * rowStride + mRoi.left * pixelStride;
+		mWidth = w;
+		mHeight = h;
+		mBlockCols = (w + BLOCK_SIZE_MASK) >> BLOCK_SIZE_POWER;
+		mBlockRows = (h + BLOCK_SIZE_MASK) >> BLOCK_SIZE_POWER;
+		final int blocks = mBlockCols * mBlockRows;
+		if ((mBlackPoints == null) || (mBlackPoints.length < blocks)) {
+			mBlackPoints = new int[blocks];
+			mBlockMin = new int[blocks];
+			mThresholds = new int[blocks];
+			mEdges = new int[blocks];
+			mVisited = new int[blocks];
+			mStack = new int[blocks];
+		}
+		mMatrix.reset(w, h);
+		try {
+			runBands(PHASE_BLOCKS);
+			adjustFlatBlocks();
+			runBands(PHASE_THRESHOLD);
+			findCandidates();
+		} finally {
+			mSrc = null;
+		}
+		mProcessedCount++;
+		mTotalNs += System.nanoTime() - startNs;
+		return true;
+	}
+
+	/**
+	 * get binarized image of last frame, the size is same as #getRoi
+	 * @return
+	 */
+	public BitMatrix getBitMatrix() {
+		return mMatrix;
+	}
+
+	/**
+	 * get region of last frame that was binarized, you should not modify this
+	 * @return
+	 */
+	public Rect getRoi() {
+		return mRoi;
+	}
+
+	/**
+	 * get number of candidate regions of last frame
+	 * @return
+	 */
+	public synchronized int getCandidateCount() {
+		return mCandidateNum;
+	}
+
+	/**
+	 * get candidate region of last frame in frame coordinates.</br>
+	 * candidates are ordered by the position of their top-left block(raster order)
+	 * and each region has one block margin as quiet zone. you should not modify the returned Rect.
+	 * @param index
+	 * @return
+	 */
+	public synchronized Rect getCandidate(int index) {
+		if ((index < 0) || (index >= mCandidateNum)) {
+			throw new IndexOutOfBoundsException("index=" + index + ",count=" + mCandidateNum);
+		}
+		return mCandidates.get(index);
+	}
+
+	public synchronized long getProcessedCount() {
+		return mProcessedCount;
+	}
+
+	/**
+	 * get average processing time of each frame
+	 * @return [milliseconds]
+	 */
+	public synchronized float getAverageTimeMs() {
+		return mProcessedCount > 0 ? (mTotalNs / 1000000.0f) / mProcessedCount : 0;
+	}
+
+	/**
+	 * get the number of frames that can be processed in a second with current frame size
+	 * @return [frames/second]
+	 */
+	public synchronized float getFramesPerSecond() {
+		return mTotalNs > 0 ? mProcessedCount * 1000000000.0f / mTotalNs : 0;
+	}
+
+	public synchronized void resetStatistics() {
+		mProcessedCount = mTotalNs = 0;
+	}
+
+	/**
+	 * get size of working buffers
+	 * @return [bytes]
+	 */
+	@Override
+	public synchronized int getMemorySize() {
+		return mMatrix.getMemorySize() + (mBlackPoints != null ? mBlackPoints.length * 4 * 6 : 0);
+	}
+
+	@Override
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			clear();
+		}
+	}
+
+	/**
+	 * release working buffers, they are re-allocated when next frame is binarized
+	 */
+	public synchronized void clear() {
+		mMatrix.clear();
+		mBlackPoints = mBlockMin = mThresholds = mEdges = mVisited = mStack = null;
+		mCandidateNum = 0;
+	}
+
+	/**
+	 * stop worker threads, this instance can not be used after this call
+	 */
+	public void release() {
+		if (mExecutor != null) {
+			mExecutor.shutdown();
+		}
+	}
+
+	/**
+	 * run current phase on row bands and wait for all of them
+	 * @param phase
+	 */
+	private void runBands(int phase) {
+		final int n = Math.min(mTasks.length, mBlockRows);
+		mPhase = phase;
+		for (int i = 0; i < n; i++) {
+			mTasks[i].mFromRow = mBlockRows * i / n;
+			mTasks[i].mToRow = mBlockRows * (i + 1) / n;
+		}
+		synchronized (mBarrier) {
+			mRemaining = n;
+			mBandError = null;
+		}
+		for (int i = 1; i < n; i++) {
+			try {
+				mExecutor.execute(mTasks[i]);
+			} catch (RejectedExecutionException e) {
+				// already released, run on the caller thread
+				mTasks[i].run();
+			}
+		}
+		// first band runs on the caller thread
+		mTasks[0].run();
+		boolean interrupted = false;
+		final RuntimeException error;
+		synchronized (mBarrier) {
+			while (mRemaining > 0) {
+				try {
+					mBarrier.wait();
+				} catch (InterruptedException e) {
+					// workers still use the buffers, keep waiting
+					interrupted = true;
+				}
+			}
+			error = mBandError;
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		if (error != null) {
+			throw error;
+		}
+	}
+
+	/**
+	 * task to process a band of block rows, these are reused for every frame
+	 */
+	private final class BandTask implements Runnable {
+		private int mFromRow, mToRow;
+
+		@Override
+		public void run() {
+			try {
+				if (mPhase == PHASE_BLOCKS) {
+					calculateBlocks(mFromRow, mToRow);
+				} else {
+					threshold(mFromRow, mToRow);
+				}
+			} catch (RuntimeException e) {
+				Log.w(TAG, e);
+				synchronized (mBarrier) {
+					if (mBandError == null) {
+						mBandError = e;
+					}
+				}
+			} finally {
+				synchronized (mBarrier) {
+					if (--mRemaining == 0) {
+						mBarrier.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * calculate average and dynamic range of each block
+	 * @param fromRow
+	 * @param toRow
+	 */
+	private void calculateBlocks(int fromRow, int toRow) {
+		final byte[] src = mSrc;
+		final int rowStride = mRowStride, pixelStride = mPixelStride;
+		final int cols = mBlockCols;
+		// the last block is aligned to the right/bottom edge
+		final int maxXOffset = mWidth - BLOCK_SIZE;
+		final int maxYOffset = mHeight - BLOCK_SIZE;
+		for (int by = fromRow; by < toRow; by++) {
+			final int yOffset = Math.min(by << BLOCK_SIZE_POWER, maxYOffset);
+			for (int bx = 0; bx < cols; bx++) {
+				final int xOffset = Math.min(bx << BLOCK_SIZE_POWER, maxXOffset);
+				int sum = 0, min = 0xff, max = 0;
+				int offset = mOffset + yOffset * rowStride + xOffset * pixelStride;
+				for (int yy = 0; yy < BLOCK_SIZE; yy++, offset += rowStride) {
+					for (int xx = 0, i = offset; xx < BLOCK_SIZE; xx++, i += pixelStride) {
+						final int pixel = src[i] & 0xff;
+						sum += pixel;
+						if (pixel < min) min = pixel;
+						if (pixel > max) max = pixel;
+					}
+				}
+				final int ix = by * cols + bx;
+				mBlackPoints[ix] = sum >> (BLOCK_SIZE_POWER * 2);
+				mBlockMin[ix] = (max - min > MIN_DYNAMIC_RANGE) ? -1 : min;
+			}
+		}
+	}
+
+	/**
+	 * adjust black point of flat blocks with the neighbors.</br>
+	 * This depends on the previous blocks, so this runs on the caller thread
+	 * but it is cheap because it only visits each block once.
+	 */
+	private void adjustFlatBlocks() {
+		final int cols = mBlockCols, rows = mBlockRows;
+		final int[] blackPoints = mBlackPoints;
+		for (int by = 0; by < rows; by++) {
+			for (int bx = 0; bx < cols; bx++) {
+				final int ix = by * cols + bx;
+				final int min = mBlockMin[ix];
+				if (min < 0) continue;
+				// flat block is assumed as white unless the neighbors are darker than it
+				int average = min / 2;
+				if ((by > 0) && (bx > 0)) {
+					final int averageNeighbor = (blackPoints[ix - cols]
+						+ 2 * blackPoints[ix - 1] + blackPoints[ix - cols - 1]) / 4;
+					if (min < averageNeighbor) {
+						average = averageNeighbor;
+					}
+				}
+				blackPoints[ix] = average;
+			}
+		}
+	}
+
+	/**
+	 * calculate threshold of each block as the average of 5x5 blocks around it,
+	 * binarize the pixels and count transitions of each block
+	 * @param fromRow
+	 * @param toRow
+	 */
+	private void threshold(int fromRow, int toRow) {
+		final int cols = mBlockCols, rows = mBlockRows;
+		final int[] blackPoints = mBlackPoints;
+		final int[] thresholds = mThresholds;
+		final int[] edges = mEdges;
+		for (int by = fromRow; by < toRow; by++) {
+			final int top = Math.max(0, Math.min(by - 2, rows - 5));
+			final int bottom = Math.min(rows, top + 5);
+			for (int bx = 0; bx < cols; bx++) {
+				final int left = Math.max(0, Math.min(bx - 2, cols - 5));
+				final int right = Math.min(cols, left + 5);
+				int sum = 0;
+				for (int y = top; y < bottom; y++) {
+					for (int x = left, i = y * cols + left; x < right; x++, i++) {
+						sum += blackPoints[i];
+					}
+				}
+				final int ix = by * cols + bx;
+				thresholds[ix] = sum / ((bottom - top) * (right - left));
+				edges[ix] = 0;
+			}
+		}
+		final byte[] src = mSrc;
+		final int rowStride = mRowStride, pixelStride = mPixelStride;
+		final int width = mWidth;
+		final BitMatrix matrix = mMatrix;
+		final int[] bits = matrix.getBits();
+		final int rowSize = matrix.getRowSize();
+		final int fromY = fromRow << BLOCK_SIZE_POWER;
+		final int toY = Math.min(toRow << BLOCK_SIZE_POWER, mHeight);
+		for (int y = fromY; y < toY; y++) {
+			final int blockRow = (y >> BLOCK_SIZE_POWER) * cols;
+			// previous row of other band may be still written, so vertical transitions
+			// on the first row of the band are not counted
+			final int prevRow = y > fromY ? (y - 1) * rowSize : -1;
+			int offset = mOffset + y * rowStride;
+			int word = 0, prevBit = 0, count = 0;
+			for (int x = 0; x < width; x++, offset += pixelStride) {
+				final int bit = (src[offset] & 0xff) <= thresholds[blockRow + (x >> BLOCK_SIZE_POWER)] ? 1 : 0;
+				word |= bit << (x & 31);
+				if ((x > 0) && (bit != prevBit)) count++;
+				if ((prevRow >= 0) && (bit != ((bits[prevRow + (x >> 5)] >>> (x & 31)) & 1))) count++;
+				prevBit = bit;
+				if (((x & BLOCK_SIZE_MASK) == BLOCK_SIZE_MASK) || (x == width - 1)) {
+					edges[blockRow + (x >> BLOCK_SIZE_POWER)] += count;
+					count = 0;
+				}
+				if ((x & 31) == 31) {
+					matrix.setWord(y, x >> 5, word);
+					word = 0;
+				}
+			}
+			if ((width & 31) != 0) {
+				matrix.setWord(y, (width - 1) >> 5, word);
+			}
+		}
+	}
+
+	/**
+	 * merge connected blocks that have high edge density into candidate regions
+	 */
+	private void findCandidates() {
+		final int cols = mBlockCols, rows = mBlockRows;
+		final int blocks = cols * rows;
+		final int minEdges = (int)(mMinEdgeDensity * BLOCK_SIZE * BLOCK_SIZE * 2);
+		final int[] edges = mEdges;
+		final int[] visited = mVisited;
+		final int[] stack = mStack;
+		Arrays.fill(visited, 0, blocks, 0);
+		for (int i = 0; i < blocks; i++) {
+			if ((visited[i] != 0) || (edges[i] < minEdges)) continue;
+			// flood fill 4-connected blocks
+			int sp = 0;
+			stack[sp++] = i;
+			visited[i] = 1;
+			int count = 0;
+			int minX = cols, minY = rows, maxX = -1, maxY = -1;
+			while (sp > 0) {
+				final int j = stack[--sp];
+				final int bx = j % cols, by = j / cols;
+				count++;
+				if (bx < minX) minX = bx;
+				if (bx > maxX) maxX = bx;
+				if (by < minY) minY = by;
+				if (by > maxY) maxY = by;
+				if ((bx > 0) && (visited[j - 1] == 0) && (edges[j - 1] >= minEdges)) {
+					visited[j - 1] = 1;
+					stack[sp++] = j - 1;
+				}
+				if ((bx < cols - 1) && (visited[j + 1] == 0) && (edges[j + 1] >= minEdges)) {
+					visited[j + 1] = 1;
+					stack[sp++] = j + 1;
+				}
+				if ((by > 0) && (visited[j - cols] == 0) && (edges[j - cols] >= minEdges)) {
+					visited[j - cols] = 1;
+					stack[sp++] = j - cols;
+				}
+				if ((by < rows - 1) && (visited[j + cols] == 0) && (edges[j + cols] >= minEdges)) {
+					visited[j + cols] = 1;
+					stack[sp++] = j + cols;
+				}
+			}
+			if (count >= mMinCandidateBlocks) {
+				addCandidate(minX, minY, maxX, maxY);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "findCandidates:" + mCandidateNum);
+	}
+
+	/**
+	 * add candidate region with one block margin
+	 * @param minX
+	 * @param minY
+	 * @param maxX
+	 * @param maxY
+	 */
+	private void addCandidate(int minX, int minY, int maxX, int maxY) {
+		final Rect rect;
+		if (mCandidateNum < mCandidates.size()) {
+			rect = mCandidates.get(mCandidateNum);
+		} else {
+			rect = new Rect();
+			mCandidates.add(rect);
+		}
+		rect.set(mRoi.left + Math.max(0, (minX - 1) << BLOCK_SIZE_POWER),
+			mRoi.top + Math.max(0, (minY - 1) << BLOCK_SIZE_POWER),
+			mRoi.left + Math.min(mWidth, (maxX + 2) << BLOCK_SIZE_POWER),
+			mRoi.top + Math.min(mHeight, (maxY + 2) << BLOCK_SIZE_POWER));
+		mCandidateNum++;
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * central memory budget of pooled resources in the camera pipeline.</br>
+ * This tracks memory usage of registered resources and asks them to shrink
+ * when memory is getting low(ComponentCallbacks2#onTrimMemory).
+ */
+public class MemoryBudget {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "MemoryBudget" : null;
+
+	/**
+	 * interface of pooled resource that is managed by MemoryBudget
+	 */
+	public interface Resource {
+		/**
+		 * get current memory usage of this resource
+		 * @return [bytes]
+		 */
+		public int getMemorySize();
+		/**
+		 * shrink this resource, the resource should be rebuilt lazily when it is needed again
+		 * @param level ComponentCallbacks2.TRIM_MEMORY_XX
+		 */
+		public void trimMemory(int level);
+	}
+
+	private final List<Resource> mResources = new ArrayList<Resource>();
+	private final List<String> mNames = new ArrayList<String>();
+	private long mLimit;
+
+	/**
+	 * register resource
+	 * @param name name for reporting
+	 * @param resource
+	 */
+	public synchronized void register(String name, Resource resource) {
+		if (!mResources.contains(resource)) {
+			mResources.add(resource);
+			mNames.add(name);
+		}
+	}
+
+	public synchronized void unregister(Resource resource) {
+		final int ix = mResources.indexOf(resource);
+		if (ix >= 0) {
+			mResources.remove(ix);
+			mNames.remove(ix);
+		}
+	}
+
+	/**
+	 * set limit of total memory usage
+	 * @param limit [bytes], 0 means unlimited
+	 */
+	public synchronized void setLimit(long limit) {
+		mLimit = limit > 0 ? limit : 0;
+	}
+
+	public synchronized long getLimit() {
+		return mLimit;
+	}
+
+	/**
+	 * get total memory usage of registered resources
+	 * @return [bytes]
+	 */
+	public synchronized long getUsage() {
+		long result = 0;
+		for (Resource resource: mResources) {
+			result += resource.getMemorySize();
+		}
+		return result;
+	}
+
+	/**
+	 * get available memory in the limit
+	 * @param exclude resource whose memory usage is not counted, can be null
+	 * @return [bytes], Long.MAX_VALUE if unlimited
+	 */
+	public synchronized long getAvailable(Resource exclude) {
+		if (mLimit <= 0) return Long.MAX_VALUE;
+		long usage = 0;
+		for (Resource resource: mResources) {
+			if (resource != exclude) {
+				usage += resource.getMemorySize();
+			}
+		}
+		return mLimit - usage;
+	}
+
+	public synchronized boolean isOverBudget() {
+		return (mLimit > 0) && (getUsage() > mLimit);
+	}
+
+	/**
+	 * ask all registered resources to shrink
+	 * @param level ComponentCallbacks2.TRIM_MEMORY_XX
+	 */
+	public void trimMemory(int level) {
+		final Resource[] resources;
+		synchronized (this) {
+			if (DEBUG) Log.v(TAG, "trimMemory:level=" + level + ",usage=" + getUsage());
+			resources = mResources.toArray(new Resource[mResources.size()]);
+		}
+		for (Resource resource: resources) {
+			resource.trimMemory(level);
+		}
+		if (DEBUG) Log.v(TAG, "trimMemory:finished,usage=" + getUsage());
+	}
+
+	/**
+	 * get memory usage of each resource
+	 * @return
+	 */
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder("MemoryBudget{usage=").append(getUsage())
+			.append(",limit=").append(mLimit);
+		final int n = mResources.size();
+		for (int i = 0; i < n; i++) {
+			sb.append(',').append(mNames.get(i)).append('=').append(mResources.get(i).getMemorySize());
+		}
+		return sb.append('}').toString();
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * preview frame that is managed by PreviewFramePool.</br>
+ * The byte array of this frame is used as the callback buffer of the camera
+ * and it is returned to the camera when the reference count becomes zero.</br>
+ * If you need to hold this frame after #onPreviewFrame returned,
+ * call #acquire and call #release when you finished to use it.
+ */
+public final class PreviewFrame {
+	/**
+	 * frame data, this array is used as the callback buffer of the camera
+	 */
+	public final byte[] data;
+	private final PreviewFramePool mPool;
+	private final int mGeneration;
+	/**
+	 * direct ByteBuffer that has same size as #data, null if the pool does not use direct buffer.
+	 * this buffer is allocated only once and its address never change while this frame is alive.
+	 */
+	private final ByteBuffer mDirectBuffer;
+	private boolean mDirectBufferValid;
+	private int mRefCount;
+	// frame metadata, these are updated every time the camera filled this frame
+	private long mTimestampNs;
+	private long mSequence;
+	private int mDroppedFrames;
+	private int mWidth, mHeight;
+	private int mFormat;
+	private int mRotation;
+	private boolean mIsFrontFace;
+	// exposure statistics, computed only once per frame when first requested
+	private FrameStatistics mStatistics;
+	private boolean mStatisticsValid;
+
+	/* package */PreviewFrame(final PreviewFramePool pool, final int generation,
+		final int bufferSize, final boolean useDirectBuffer) {
+
+		mPool = pool;
+		mGeneration = generation;
+		data = new byte[bufferSize];
+		mDirectBuffer = useDirectBuffer
+			? ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.nativeOrder()) : null;
+	}
+
+	/**
+	 * get direct ByteBuffer that has the contents of this frame.</br>
+	 * The contents are copied from #data only once per frame when this method is called first time,
+	 * so native analyzers can read the frame without copying/pinning the Java array.
+	 * @return null if direct buffer is not enabled on the pool
+	 */
+	public synchronized ByteBuffer getDirectBuffer() {
+		if (mDirectBuffer != null) {
+			if (!mDirectBufferValid) {
+				mDirectBuffer.clear();
+				mDirectBuffer.put(data);
+				mDirectBufferValid = true;
+			}
+			mDirectBuffer.rewind();
+		}
+		return mDirectBuffer;
+	}
+
+	/**
+	 * increment the reference count to hold this frame after the callback returned
+	 * @return this frame
+	 */
+	public synchronized PreviewFrame acquire() {
+		mRefCount++;
+		return this;
+	}
+
+	/**
+	 * decrement the reference count.</br>
+	 * The buffer is returned to the camera when the reference count becomes zero.
+	 */
+	public void release() {
+		final boolean recycle;
+		synchronized (this) {
+			if (mRefCount <= 0) return;
+			recycle = (--mRefCount == 0);
+		}
+		if (recycle) {
+			mPool.recycle(this);
+		}
+	}
+
+	public synchronized boolean isInUse() {
+		return mRefCount > 0;
+	}
+
+	/**
+	 * get arrival time of this frame
+	 * @return monotonic time[nano seconds] based on System#nanoTime
+	 */
+	public long getTimestampNs() {
+		return mTimestampNs;
+	}
+
+	/**
+	 * get sequence number of this frame, this value increases by one for every frame
+	 * in the order of arrival.</br>
+	 * This is assigned when the camera returned the buffer, so it never has gaps
+	 * even if the camera dropped frames. Use #getDroppedFrames to find dropped frames.
+	 * @return
+	 */
+	public long getSequence() {
+		return mSequence;
+	}
+
+	/**
+	 * get estimated number of frames that were dropped just before this frame.</br>
+	 * This is estimated from the interval of arrival time against the longest frame interval
+	 * of the preview fps range, so it is a lower bound and always 0 if the fps range is unknown.
+	 * @return
+	 */
+	public int getDroppedFrames() {
+		return mDroppedFrames;
+	}
+
+	/**
+	 * get width of preview frame(without screen rotation)
+	 * @return
+	 */
+	public int getWidth() {
+		return mWidth;
+	}
+
+	/**
+	 * get height of preview frame(without screen rotation)
+	 * @return
+	 */
+	public int getHeight() {
+		return mHeight;
+	}
+
+	/**
+	 * get preview format
+	 * @return ImageFormat.XX
+	 */
+	public int getFormat() {
+		return mFormat;
+	}
+
+	/**
+	 * get rotation degrees that was applied to the preview display
+	 * @return 0, 90, 180 or 270
+	 */
+	public int getRotation() {
+		return mRotation;
+	}
+
+	public boolean isFrontFace() {
+		return mIsFrontFace;
+	}
+
+	/**
+	 * get exposure statistics of this frame.</br>
+	 * The statistics are computed when this method is called first time for each frame
+	 * and shared by all consumers of this frame.
+	 * @return null if statistics is not enabled on the pool
+	 */
+	public synchronized FrameStatistics getStatistics() {
+		if (!mPool.isStatisticsEnabled()) return null;
+		if (!mStatisticsValid) {
+			if (mStatistics == null) {
+				mStatistics = new FrameStatistics();
+			}
+			mPool.configure(mStatistics);
+			mStatistics.compute(data, mWidth, mHeight, mFormat);
+			mStatisticsValid = true;
+		}
+		return mStatistics;
+	}
+
+	/**
+	 * notify pipeline stage of this frame to the tracer of the pool.</br>
+	 * You can call this method with your own stage value(>= FrameTracer#STAGE_USER)
+	 * @param stage
+	 */
+	public void trace(int stage) {
+		mPool.trace(this, stage);
+	}
+
+	/**
+	 * called from PreviewFramePool when the camera filled this frame
+	 */
+	/* package */synchronized void onFilled(long timestampNs, long sequence, int droppedFrames,
+		int width, int height, int format, int rotation, boolean isFrontFace) {
+
+		mRefCount = 1;
+		mDirectBufferValid = false;
+		mStatisticsValid = false;
+		mTimestampNs = timestampNs;
+		mSequence = sequence;
+		mDroppedFrames = droppedFrames;
+		mWidth = width;
+		mHeight = height;
+		mFormat = format;
+		mRotation = rotation;
+		mIsFrontFace = isFrontFace;
+	}
+
+	/* package */int getGeneration() {
+		return mGeneration;
+	}
+
+	/* package */int getBufferSize() {
+		return data.length;
+	}
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+import android.util.Log;
+
+/**
+ * pool of PreviewFrame that are used as callback buffers of the camera.</br>
+ * The buffers are re-allocated only when the buffer size or the number of buffers changed,
+ * otherwise same buffers(and their direct ByteBuffers) are reused while this pool is alive.
+ */
+public class PreviewFramePool {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "PreviewFramePool" : null;
+
+	/**
+	 * destination of the buffers that are not used by consumers.</br>
+	 * this is the Camera while previewing, replay sources without device can also receive them.
+	 */
+	public interface BufferQueue {
+		public void addCallbackBuffer(byte[] buffer);
+	}
+
+	private final List<PreviewFrame> mFrames = new ArrayList<PreviewFrame>();
+	private BufferQueue mQueue;
+	private int mBufferSize;
+	private boolean mUseDirectBuffer;
+	private int mGeneration;
+	// current frame information that is set to each frame
+	private int mWidth, mHeight, mFormat, mRotation;
+	private boolean mIsFrontFace;
+	private long mSequence;
+	// longest frame interval of the preview fps range, 0 if unknown
+	private long mMaxIntervalNs;
+	private long mLastTimestampNs;
+	private long mDroppedFrameCount;
+	private volatile FrameTracer mTracer;
+	// configuration of exposure statistics
+	private volatile boolean mStatisticsEnabled;
+	private int mGridCols = 1, mGridRows = 1;
+	private int mSubsample = 2;
+
+	/**
+	 * set whether each frame has direct ByteBuffer or not.</br>
+	 * this value is applied when the buffers are re-allocated next time.
+	 * @param useDirectBuffer
+	 */
+	public synchronized void setUseDirectBuffer(boolean useDirectBuffer) {
+		if (mUseDirectBuffer != useDirectBuffer) {
+			mUseDirectBuffer = useDirectBuffer;
+			mBufferSize = 0;	// force re-allocation
+		}
+	}
+
+	public synchronized boolean isUseDirectBuffer() {
+		return mUseDirectBuffer;
+	}
+
+	/**
+	 * set information of frames that will be delivered after this call
+	 * @param width width of preview frame
+	 * @param height height of preview frame
+	 * @param format ImageFormat.XX
+	 * @param rotation rotation degrees of preview display
+	 * @param isFrontFace
+	 */
+	public synchronized void setFrameInfo(int width, int height, int format,
+		int rotation, boolean isFrontFace) {
+
+		mWidth = width;
+		mHeight = height;
+		mFormat = format;
+		mRotation = rotation;
+		mIsFrontFace = isFrontFace;
+		// interval from the last frame of previous setting is meaningless
+		mLastTimestampNs = 0;
+	}
+
+	/**
+	 * set preview fps range to estimate dropped frames from the interval of arrival time
+	 * @param minFps minimum frame rate of the preview fps range, 0 if unknown
+	 */
+	public synchronized void setMinFrameRate(float minFps) {
+		mMaxIntervalNs = minFps > 0 ? (long)(1000000000L / minFps) : 0;
+	}
+
+	/**
+	 * get estimated number of frames that were dropped since this pool was created
+	 * @return
+	 */
+	public synchronized long getDroppedFrameCount() {
+		return mDroppedFrameCount;
+	}
+
+	/**
+	 * set tracer to receive pipeline stages of each frame
+	 * @param tracer null to disable tracing
+	 */
+	public void setTracer(FrameTracer tracer) {
+		mTracer = tracer;
+	}
+
+	/**
+	 * set whether exposure statistics are available from PreviewFrame#getStatistics
+	 * @param enabled
+	 * @param gridCols number of columns of the grid for mean of each region
+	 * @param gridRows number of rows of the grid for mean of each region
+	 * @param subsample sampling interval of pixels
+	 */
+	public synchronized void setStatistics(boolean enabled, int gridCols, int gridRows, int subsample) {
+		if ((gridCols < 1) || (gridRows < 1)) {
+			throw new IllegalArgumentException("grid should be 1x1 or larger");
+		}
+		mGridCols = gridCols;
+		mGridRows = gridRows;
+		mSubsample = subsample;
+		mStatisticsEnabled = enabled;
+	}
+
+	public boolean isStatisticsEnabled() {
+		return mStatisticsEnabled;
+	}
+
+	/**
+	 * apply current configuration of statistics
+	 * @param statistics
+	 */
+	/* package */synchronized void configure(FrameStatistics statistics) {
+		statistics.setGrid(mGridCols, mGridRows);
+		statistics.setSubsample(mSubsample);
+	}
+
+	/**
+	 * allocate buffers if the requested size or number are different from current ones
+	 * @param num number of buffers
+	 * @param bufferSize size of each buffer[bytes]
+	 * @return true if the buffers were re-allocated
+	 */
+	public synchronized boolean resize(int num, int bufferSize) {
+		if ((mBufferSize == bufferSize) && (mFrames.size() == num)) {
+			return false;
+		}
+		if (DEBUG) Log.v(TAG, String.format("resize:num=%d,bufferSize=%d", num, bufferSize));
+		mFrames.clear();
+		mGeneration++;
+		mBufferSize = bufferSize;
+		for (int i = 0; i < num; i++) {
+			mFrames.add(new PreviewFrame(this, mGeneration, bufferSize, mUseDirectBuffer));
+		}
+		return true;
+	}
+
+	/**
+	 * set camera and add all buffers that are not used now as callback buffers.</br>
+	 * the buffer queue of the camera should be cleared before calling this method.
+	 * @param camera
+	 */
+	public void attach(final Camera camera) {
+		attach(camera != null ? new BufferQueue() {
+			@Override
+			public void addCallbackBuffer(byte[] buffer) {
+				camera.addCallbackBuffer(buffer);
+			}
+		} : null);
+	}
+
+	/**
+	 * set the queue and add all buffers that are not used now to it.
+	 * @param queue
+	 */
+	public synchronized void attach(BufferQueue queue) {
+		mQueue = queue;
+		if (queue != null) {
+			for (PreviewFrame frame: mFrames) {
+				if (!frame.isInUse()) {
+					queue.addCallbackBuffer(frame.data);
+				}
+			}
+		}
+	}
+
+	/**
+	 * remove the camera, buffers released after this call are not returned to the camera
+	 */
+	public synchronized void detach() {
+		mQueue = null;
+	}
+
+	/**
+	 * remove buffers that are not used by consumers until the number of buffers becomes num.</br>
+	 * Removed buffers that are still queued in the camera are dropped when the camera returns them.
+	 * The pool is rebuilt by next #resize with larger number.
+	 * @param num
+	 */
+	public synchronized void shrink(int num) {
+		for (int i = mFrames.size() - 1; (i >= 0) && (mFrames.size() > num); i--) {
+			if (!mFrames.get(i).isInUse()) {
+				mFrames.remove(i);
+			}
+		}
+		if (DEBUG) Log.v(TAG, "shrink:num=" + mFrames.size());
+	}
+
+	/**
+	 * get total size of buffers including direct ByteBuffers
+	 * @return [bytes]
+	 */
+	public synchronized int getMemorySize() {
+		return mFrames.size() * mBufferSize * (mUseDirectBuffer ? 2 : 1);
+	}
+
+	/**
+	 * release all buffers
+	 */
+	public synchronized void clear() {
+		mQueue = null;
+		mFrames.clear();
+		mGeneration++;
+		mBufferSize = 0;
+	}
+
+	/**
+	 * get the frame that has the specific buffer and mark it as in use.
+	 * @param data the buffer that was passed from the camera
+	 * @return null if the buffer does not belong to this pool
+	 */
+	public PreviewFrame obtain(byte[] data) {
+		final long timestampNs = System.nanoTime();
+		PreviewFrame result = null;
+		synchronized (this) {
+			// indexed loop to avoid allocating Iterator for every frame
+			final int n = mFrames.size();
+			for (int i = 0; i < n; i++) {
+				final PreviewFrame frame = mFrames.get(i);
+				if (frame.data == data) {
+					final int dropped = estimateDroppedFrames(timestampNs);
+					frame.onFilled(timestampNs, mSequence++, dropped,
+						mWidth, mHeight, mFormat, mRotation, mIsFrontFace);
+					result = frame;
+					break;
+				}
+			}
+		}
+		if (result != null) {
+			trace(result, FrameTracer.STAGE_ARRIVED);
+		}
+		return result;
+	}
+
+	/**
+	 * estimate the number of dropped frames from the interval of arrival time.</br>
+	 * The interval is compared with the longest interval of the fps range
+	 * so the frames are not counted as dropped when the camera lowered the frame rate.
+	 * should be called while holding the lock of this pool
+	 * @param timestampNs
+	 * @return
+	 */
+	private int estimateDroppedFrames(long timestampNs) {
+		int dropped = 0;
+		if ((mMaxIntervalNs > 0) && (mLastTimestampNs > 0)) {
+			final long interval = timestampNs - mLastTimestampNs;
+			// allow the jitter of callback up to half interval
+			if (interval > mMaxIntervalNs + mMaxIntervalNs / 2) {
+				dropped = (int)((interval + mMaxIntervalNs / 2) / mMaxIntervalNs) - 1;
+				mDroppedFrameCount += dropped;
+			}
+		}
+		mLastTimestampNs = timestampNs;
+		return dropped;
+	}
+
+	/**
+	 * notify pipeline stage of the frame to the tracer
+	 * @param frame
+	 * @param stage
+	 */
+	/* package */void trace(PreviewFrame frame, int stage) {
+		final FrameTracer tracer = mTracer;
+		if (tracer != null) {
+			tracer.onFrameStage(frame, stage, System.nanoTime());
+		}
+	}
+
+	/**
+	 * called from PreviewFrame#release when the reference count becomes zero
+	 * @param frame
+	 */
+	/* package */void recycle(PreviewFrame frame) {
+		trace(frame, FrameTracer.STAGE_RECYCLED);
+		synchronized (this) {
+			// ignore the frame that was allocated for previous preview size
+			if ((mQueue != null) && (frame.getGeneration() == mGeneration)) {
+				mQueue.addCallbackBuffer(frame.data);
+			}
+		}
+	}
+
+	public synchronized int getBufferSize() {
+		return mBufferSize;
+	}
+
+	public synchronized int getBufferNum() {
+		return mFrames.size();
+	}
+
+	/**
+	 * calculate the buffer size for preview frame
+	 * @param width
+	 * @param height
+	 * @param format ImageFormat.XX
+	 * @return
+	 */
+	public static int getFrameBufferSize(int width, int height, int format) {
+		if (format == ImageFormat.YV12) {
+			// stride of each plane of YV12 is aligned to 16 bytes
+			final int yStride = (int)Math.ceil(width / 16.0) * 16;
+			final int uvStride = (int)Math.ceil((yStride / 2) / 16.0) * 16;
+			return yStride * height + uvStride * height;
+		}
+		return width * height * ImageFormat.getBitsPerPixel(format) / 8;
+	}
+}
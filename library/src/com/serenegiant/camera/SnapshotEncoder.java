@@ -0,0 +1,504 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * encode preview frames to JPEG/PNG on bounded worker threads.</br>
+ * Each frame is held while it is waiting in the queue and converted to ARGB pixels,
+ * and returned to the camera before compressing. The number of held frames is limited
+ * by #setMaxHeldFrames so that at least one callback buffer is always left to the camera.
+ * If the queue is full or too many frames are held, requested frame is skipped
+ * and counted as dropped.
+ */
+public class SnapshotEncoder implements MemoryBudget.Resource {
+	private static final boolean DEBUG = false; // TODO set false when production
+	private static final String TAG = DEBUG ? "SnapshotEncoder" : null;
+
+	private static final long KEEP_ALIVE_SECONDS = 10;
+
+	/**
+	 * callback interface to receive encoded snapshots
+	 */
+	public interface Callback {
+		/**
+		 * called on the worker thread when a snapshot was encoded.</br>
+		 * data is reused for next snapshot, so you should copy it
+		 * if you need it after this method returned.
+		 * @param data encoded image
+		 * @param length length of encoded image[bytes]
+		 * @param width width of the image
+		 * @param height height of the image
+		 * @param sequence sequence number of the source frame
+		 * @param timestampNs arrival time of the source frame
+		 */
+		public void onSnapshot(byte[] data, int length, int width, int height,
+			long sequence, long timestampNs);
+	}
+
+	/**
+	 * ByteArrayOutputStream that can access its internal buffer to avoid copying
+	 */
+	private static final class ReusableOutputStream extends ByteArrayOutputStream {
+		public ReusableOutputStream() {
+			super(256 * 1024);
+		}
+		public byte[] getBuffer() {
+			return buf;
+		}
+		public int getCapacity() {
+			return buf.length;
+		}
+		/**
+		 * shrink internal buffer to initial size
+		 */
+		public void trim() {
+			reset();
+			if (buf.length > 256 * 1024) {
+				buf = new byte[256 * 1024];
+			}
+		}
+	}
+
+	/**
+	 * reusable working objects, a task borrows one from the pool while it is running.</br>
+	 * the worker holds the lock of this object while encoding.
+	 */
+	private static final class WorkBuffer {
+		private ReusableOutputStream mOutputStream;
+		private int[] mPixels;
+		private Bitmap mBitmap;
+
+		private synchronized int getMemorySize() {
+			return (mOutputStream != null ? mOutputStream.getCapacity() : 0)
+				+ (mPixels != null ? mPixels.length * 4 : 0)
+				+ (mBitmap != null ? mBitmap.getRowBytes() * mBitmap.getHeight() : 0);
+		}
+
+		private synchronized void trim() {
+			mOutputStream = null;
+			mPixels = null;
+			if (mBitmap != null) {
+				mBitmap.recycle();
+				mBitmap = null;
+			}
+		}
+
+		private Bitmap getBitmap(int width, int height) {
+			if ((mBitmap == null) || (mBitmap.getWidth() != width) || (mBitmap.getHeight() != height)) {
+				if (mBitmap != null) {
+					mBitmap.recycle();
+				}
+				mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			}
+			return mBitmap;
+		}
+
+		private ReusableOutputStream getOutputStream() {
+			if (mOutputStream == null) {
+				mOutputStream = new ReusableOutputStream();
+			}
+			return mOutputStream;
+		}
+
+		private int[] getPixels(int num) {
+			if ((mPixels == null) || (mPixels.length < num)) {
+				mPixels = new int[num];
+			}
+			return mPixels;
+		}
+	}
+
+	// one work buffer for each worker thread, worker threads may be re-created after keep-alive
+	// but the number of buffers never exceeds the number of threads
+	private final WorkBuffer[] mWorkBuffers;
+	private final BlockingQueue<WorkBuffer> mWorkBufferPool;
+
+	/**
+	 * encoding task, these are pooled and reused
+	 */
+	private final class EncodeTask implements Runnable {
+		private PreviewFrame mFrame;
+		private final Rect mCrop = new Rect();
+		private Bitmap.CompressFormat mFormat;
+		private int mQuality;
+		private Callback mCallback;
+
+		@Override
+		public void run() {
+			final long startNs = System.nanoTime();
+			final PreviewFrame frame = mFrame;
+			final Callback callback = mCallback;
+			mFrame = null;
+			mCallback = null;
+			// never empty because the number of running tasks is limited by the number of threads
+			final WorkBuffer work = mWorkBufferPool.poll();
+			try {
+				synchronized (work) {
+					final int rotation = frame.getRotation();
+					final int width = YuvConverter.getOutputWidth(mCrop, rotation);
+					final int height = YuvConverter.getOutputHeight(mCrop, rotation);
+					final int[] pixels = work.getPixels(width * height);
+					final long sequence = frame.getSequence();
+					final long timestampNs = frame.getTimestampNs();
+					try {
+						YuvConverter.toARGB(frame.data, frame.getWidth(), frame.getHeight(),
+							frame.getFormat(), mCrop, rotation, pixels);
+					} finally {
+						// return the buffer to the camera as soon as possible
+						releaseFrame(frame);
+					}
+					final Bitmap bitmap = work.getBitmap(width, height);
+					bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
+					final ReusableOutputStream out = work.getOutputStream();
+					out.reset();
+					bitmap.compress(mFormat, mQuality, out);
+					onEncoded(startNs);
+					callback.onSnapshot(out.getBuffer(), out.size(), width, height, sequence, timestampNs);
+				}
+			} catch (Exception e) {
+				Log.w(TAG, e);
+			} finally {
+				if (work != null) {
+					mWorkBufferPool.offer(work);
+				}
+				mTaskPool.offer(this);
+			}
+		}
+	}
+
+	private final ThreadPoolExecutor mExecutor;
+	private final BlockingQueue<EncodeTask> mTaskPool;
+	private final int mQueueSize;
+	// number of frames that are acquired by queued/running tasks and its limit
+	private int mHeldFrames;
+	private int mMaxHeldFrames;
+	// pending request of snapshot/burst
+	private int mRequestCount;
+	private final Rect mRequestCrop = new Rect();
+	private boolean mRequestFullFrame;
+	private Bitmap.CompressFormat mRequestFormat;
+	private int mRequestQuality;
+	private Callback mRequestCallback;
+	// statistics
+	private long mEncodedCount, mDroppedCount;
+	private long mTotalEncodeNs;
+	private long mFirstEncodeStartNs, mLastEncodeEndNs;
+
+	/**
+	 * constructor
+	 * @param numThreads number of worker threads
+	 * @param queueSize maximum number of frames that are waiting for encoding
+	 */
+	public SnapshotEncoder(int numThreads, int queueSize) {
+		mQueueSize = queueSize;
+		mMaxHeldFrames = numThreads + queueSize;
+		mExecutor = new ThreadPoolExecutor(numThreads, numThreads,
+			KEEP_ALIVE_SECONDS, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(queueSize));
+		mExecutor.allowCoreThreadTimeOut(true);
+		mTaskPool = new ArrayBlockingQueue<EncodeTask>(numThreads + queueSize);
+		for (int i = 0; i < numThreads + queueSize; i++) {
+			mTaskPool.add(new EncodeTask());
+		}
+		mWorkBuffers = new WorkBuffer[numThreads];
+		mWorkBufferPool = new ArrayBlockingQueue<WorkBuffer>(numThreads);
+		for (int i = 0; i < numThreads; i++) {
+			mWorkBuffers[i] = new WorkBuffer();
+			mWorkBufferPool.add(mWorkBuffers[i]);
+		}
+	}
+
+	/**
+	 * set maximum number of frames that are held by queued/running tasks.</br>
+	 * This should be smaller than the number of callback buffers,
+	 * otherwise burst snapshots can hold all buffers and stop preview frames.
+	 * @param max 0 means all frames are dropped
+	 */
+	public synchronized void setMaxHeldFrames(int max) {
+		mMaxHeldFrames = max > 0 ? max : 0;
+	}
+
+	public synchronized int getMaxHeldFrames() {
+		return mMaxHeldFrames;
+	}
+
+	/**
+	 * get number of frames that are held by queued/running tasks now
+	 * @return
+	 */
+	public synchronized int getHeldFrames() {
+		return mHeldFrames;
+	}
+
+	/**
+	 * request to encode next frames
+	 * @param count number of frames to encode, 1 for snapshot and larger than 1 for burst
+	 * @param crop region of the frame to encode, null for full frame
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 */
+	public synchronized void request(int count, Rect crop, Bitmap.CompressFormat format,
+		int quality, Callback callback) {
+
+		if (callback == null) {
+			throw new NullPointerException("Callback must not be null");
+		}
+		if ((crop != null) && crop.isEmpty()) {
+			throw new IllegalArgumentException("crop is empty:" + crop);
+		}
+		mRequestCount = count;
+		mRequestFullFrame = (crop == null);
+		if (crop != null) {
+			mRequestCrop.set(crop);
+		}
+		mRequestFormat = format;
+		mRequestQuality = quality;
+		mRequestCallback = callback;
+	}
+
+	/**
+	 * cancel pending snapshot/burst request, the frames in the queue are still encoded
+	 */
+	public synchronized void cancel() {
+		mRequestCount = 0;
+		mRequestCallback = null;
+	}
+
+	/**
+	 * get whether there is pending snapshot/burst request
+	 * @return
+	 */
+	public synchronized boolean isRequested() {
+		return mRequestCount > 0;
+	}
+
+	/**
+	 * called for every preview frame, queue the frame if snapshot/burst was requested
+	 * @param frame
+	 */
+	public synchronized void onFrame(PreviewFrame frame) {
+		if (mRequestCount > 0) {
+			if (!mRequestFullFrame
+				&& !mRequestCrop.intersects(0, 0, frame.getWidth(), frame.getHeight())) {
+				// the crop will never match following frames, finish the request
+				Log.w(TAG, "crop is outside of the frame, request is canceled:" + mRequestCrop);
+				cancel();
+				return;
+			}
+			if (encode(frame, mRequestFullFrame ? null : mRequestCrop,
+				mRequestFormat, mRequestQuality, mRequestCallback)) {
+
+				if (--mRequestCount == 0) {
+					mRequestCallback = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * queue the frame to encode
+	 * @param frame
+	 * @param crop region of the frame to encode, null for full frame
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 * @return false if the frame was dropped because of back-pressure or the crop is outside of the frame
+	 */
+	public boolean encode(PreviewFrame frame, Rect crop, Bitmap.CompressFormat format,
+		int quality, Callback callback) {
+
+		final EncodeTask task = mTaskPool.poll();
+		if (task == null) {
+			onDropped();
+			return false;
+		}
+		if (crop != null) {
+			task.mCrop.set(crop);
+			if (!task.mCrop.intersect(0, 0, frame.getWidth(), frame.getHeight())) {
+				mTaskPool.offer(task);
+				return false;
+			}
+		} else {
+			task.mCrop.set(0, 0, frame.getWidth(), frame.getHeight());
+		}
+		if (!acquireFrame(frame)) {
+			mTaskPool.offer(task);
+			onDropped();
+			return false;
+		}
+		task.mFrame = frame;
+		task.mFormat = format;
+		task.mQuality = quality;
+		task.mCallback = callback;
+		try {
+			mExecutor.execute(task);
+		} catch (RejectedExecutionException e) {
+			task.mFrame = null;
+			task.mCallback = null;
+			releaseFrame(frame);
+			mTaskPool.offer(task);
+			onDropped();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * hold the frame if the number of held frames does not reach the limit
+	 * @param frame
+	 * @return false if the frame can not be held
+	 */
+	private synchronized boolean acquireFrame(PreviewFrame frame) {
+		if (mHeldFrames >= mMaxHeldFrames) return false;
+		mHeldFrames++;
+		frame.acquire();
+		return true;
+	}
+
+	private void releaseFrame(PreviewFrame frame) {
+		synchronized (this) {
+			mHeldFrames--;
+		}
+		frame.release();
+	}
+
+	private synchronized void onDropped() {
+		mDroppedCount++;
+		if (DEBUG) Log.v(TAG, "dropped:" + mDroppedCount);
+	}
+
+	private synchronized void onEncoded(long startNs) {
+		final long endNs = System.nanoTime();
+		if (mEncodedCount == 0) {
+			mFirstEncodeStartNs = startNs;
+		}
+		mEncodedCount++;
+		mTotalEncodeNs += endNs - startNs;
+		mLastEncodeEndNs = endNs;
+	}
+
+	/**
+	 * get number of frames that are waiting for encoding or being encoded now
+	 * @return
+	 */
+	public int getQueueDepth() {
+		return mExecutor.getQueue().size() + mExecutor.getActiveCount();
+	}
+
+	/**
+	 * get whether the encoder can not keep up with requested frame rate.</br>
+	 * you should reduce burst rate while this returns true.
+	 * @return
+	 */
+	public boolean isBackPressured() {
+		synchronized (this) {
+			if (mHeldFrames >= mMaxHeldFrames) return true;
+		}
+		return mExecutor.getQueue().size() >= (mQueueSize * 3 + 3) / 4;
+	}
+
+	public synchronized long getEncodedCount() {
+		return mEncodedCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+
+	/**
+	 * get average time to encode one frame
+	 * @return [milliseconds]
+	 */
+	public synchronized float getAverageEncodeTimeMs() {
+		return mEncodedCount > 0 ? mTotalEncodeNs / (mEncodedCount * 1000000.0f) : 0;
+	}
+
+	/**
+	 * get encode throughput since first encoding
+	 * @return [frames per second]
+	 */
+	public synchronized float getThroughput() {
+		final long duration = mLastEncodeEndNs - mFirstEncodeStartNs;
+		return duration > 0 ? mEncodedCount * 1000000000.0f / duration : 0;
+	}
+
+	public synchronized void resetStatistics() {
+		mEncodedCount = mDroppedCount = 0;
+		mTotalEncodeNs = 0;
+		mFirstEncodeStartNs = mLastEncodeEndNs = 0;
+	}
+
+	/**
+	 * get total size of work buffers of all worker threads
+	 * @return [bytes]
+	 */
+	@Override
+	public int getMemorySize() {
+		int result = 0;
+		for (WorkBuffer work: mWorkBuffers) {
+			result += work.getMemorySize();
+		}
+		return result;
+	}
+
+	/**
+	 * release work buffers, they are re-allocated when next frame is encoded
+	 * @param level
+	 */
+	@Override
+	public void trimMemory(int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			for (WorkBuffer work: mWorkBuffers) {
+				work.trim();
+			}
+		}
+	}
+
+	/**
+	 * stop worker threads and return the frames waiting in the queue to the pool,
+	 * this instance can not be used after this call.
+	 * the frames that are being converted now are returned when the conversion finished.
+	 */
+	public void release() {
+		cancel();
+		final List<Runnable> pending = mExecutor.shutdownNow();
+		for (Runnable runnable: pending) {
+			final EncodeTask task = (EncodeTask)runnable;
+			final PreviewFrame frame = task.mFrame;
+			task.mFrame = null;
+			task.mCallback = null;
+			if (frame != null) {
+				releaseFrame(frame);
+				onDropped();
+			}
+			mTaskPool.offer(task);
+		}
+	}
+}
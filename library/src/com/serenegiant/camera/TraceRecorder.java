@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.os.Process;
+
+/**
+ * recorder of camera thread events and frame pipeline stages.</br>
+ * Events are recorded into preallocated ring buffer without allocation
+ * and dumped as Chrome trace-event JSON(chrome://tracing, Perfetto) on demand.
+ * When the ring buffer is full, the oldest events are overwritten.</br>
+ * Recording takes the lock of this instance, this is uncontended in most cases
+ * because frame stages are recorded on the camera thread, but other threads that record
+ * at the same time(e.g. snapshot workers) wait for each other.
+ */
+public class TraceRecorder implements FrameTracer {
+	private static final char PHASE_BEGIN = 'B';
+	private static final char PHASE_END = 'E';
+	private static final char PHASE_INSTANT = 'i';
+	private static final int MAX_THREADS = 32;
+	/**
+	 * number of application stages(STAGE_USER + n) whose name ids are cached
+	 */
+	private static final int MAX_USER_STAGES = 32;
+
+	private final int mCapacity;
+	private final long[] mTimestamps;
+	private final int[] mNameIds;
+	private final char[] mPhases;
+	private final int[] mTids;
+	private final long[] mArgs;
+	private int mHead, mCount;
+	private volatile boolean mEnabled;
+	// names of events
+	private final List<String> mNames = new ArrayList<String>();
+	private final Map<String, Integer> mNameIdMap = new HashMap<String, Integer>();
+	// names of threads that recorded events
+	private final int[] mThreadIds = new int[MAX_THREADS];
+	private final String[] mThreadNames = new String[MAX_THREADS];
+	private int mThreadNum;
+	// name ids of frame stages
+	private final int mFrameArrivedId, mFrameDispatchId, mFrameRecycledId;
+	// name id + 1 of other stages, 0 means not registered yet
+	private final int[] mStageIds = new int[STAGE_USER + MAX_USER_STAGES];
+
+	/**
+	 * constructor
+	 * @param capacity maximum number of events in the ring buffer
+	 */
+	public TraceRecorder(int capacity) {
+		mCapacity = capacity;
+		mTimestamps = new long[capacity];
+		mNameIds = new int[capacity];
+		mPhases = new char[capacity];
+		mTids = new int[capacity];
+		mArgs = new long[capacity];
+		mFrameArrivedId = registerName("frame arrived");
+		mFrameDispatchId = registerName("frame dispatch");
+		mFrameRecycledId = registerName("frame recycled");
+	}
+
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * register name of event, you can use returned id for #begin/#end/#instant
+	 * @param name
+	 * @return id of the name
+	 */
+	public synchronized int registerName(String name) {
+		Integer id = mNameIdMap.get(name);
+		if (id == null) {
+			id = mNames.size();
+			mNames.add(name);
+			mNameIdMap.put(name, id);
+		}
+		return id;
+	}
+
+	/**
+	 * record start of event on current thread
+	 * @param nameId
+	 */
+	public void begin(int nameId) {
+		if (mEnabled) record(PHASE_BEGIN, nameId, System.nanoTime(), -1);
+	}
+
+	/**
+	 * record end of event on current thread
+	 * @param nameId
+	 */
+	public void end(int nameId) {
+		if (mEnabled) record(PHASE_END, nameId, System.nanoTime(), -1);
+	}
+
+	/**
+	 * record start of event on current thread
+	 * @param name
+	 */
+	public void begin(String name) {
+		if (mEnabled) record(PHASE_BEGIN, registerName(name), System.nanoTime(), -1);
+	}
+
+	/**
+	 * record end of event on current thread
+	 * @param name
+	 */
+	public void end(String name) {
+		if (mEnabled) record(PHASE_END, registerName(name), System.nanoTime(), -1);
+	}
+
+	/**
+	 * record instant event on current thread
+	 * @param nameId
+	 * @param arg additional value, negative value is not recorded
+	 */
+	public void instant(int nameId, long arg) {
+		if (mEnabled) record(PHASE_INSTANT, nameId, System.nanoTime(), arg);
+	}
+
+	@Override
+	public void onFrameStage(PreviewFrame frame, int stage, long timeNs) {
+		if (!mEnabled) return;
+		switch (stage) {
+		case STAGE_ARRIVED:
+			record(PHASE_INSTANT, mFrameArrivedId, timeNs, frame.getSequence());
+			break;
+		case STAGE_DISPATCH_START:
+			record(PHASE_BEGIN, mFrameDispatchId, timeNs, frame.getSequence());
+			break;
+		case STAGE_DISPATCH_END:
+			record(PHASE_END, mFrameDispatchId, timeNs, frame.getSequence());
+			break;
+		case STAGE_RECYCLED:
+			record(PHASE_INSTANT, mFrameRecycledId, timeNs, frame.getSequence());
+			break;
+		default:
+			record(PHASE_INSTANT, getStageNameId(stage), timeNs, frame.getSequence());
+			break;
+		}
+	}
+
+	/**
+	 * get name id of the stage, the name is registered only at the first time
+	 * unless the stage is out of the cache(negative or STAGE_USER + MAX_USER_STAGES or larger)
+	 * @param stage
+	 * @return
+	 */
+	private int getStageNameId(int stage) {
+		if ((stage < 0) || (stage >= mStageIds.length)) {
+			return registerName("frame stage " + stage);
+		}
+		int id = mStageIds[stage] - 1;
+		if (id < 0) {
+			// racy but harmless, registerName returns the same id for the same name
+			id = registerName("frame stage " + stage);
+			mStageIds[stage] = id + 1;
+		}
+		return id;
+	}
+
+	private synchronized void record(char phase, int nameId, long timeNs, long arg) {
+		final int tid = Process.myTid();
+		final int ix = (mHead + mCount) % mCapacity;
+		if (mCount < mCapacity) {
+			mCount++;
+		} else {
+			mHead = (mHead + 1) % mCapacity;
+		}
+		mTimestamps[ix] = timeNs;
+		mNameIds[ix] = nameId;
+		mPhases[ix] = phase;
+		mTids[ix] = tid;
+		mArgs[ix] = arg;
+		// remember the name of the thread when it recorded first time
+		for (int i = 0; i < mThreadNum; i++) {
+			if (mThreadIds[i] == tid) return;
+		}
+		if (mThreadNum < MAX_THREADS) {
+			mThreadIds[mThreadNum] = tid;
+			mThreadNames[mThreadNum] = Thread.currentThread().getName();
+			mThreadNum++;
+		}
+	}
+
+	/**
+	 * remove all recorded events
+	 */
+	public synchronized void clear() {
+		mHead = mCount = 0;
+	}
+
+	public synchronized int getCount() {
+		return mCount;
+	}
+
+	/**
+	 * write recorded events as Chrome trace-event JSON
+	 * @param file
+	 * @throws IOException
+	 */
+	public void dump(File file) throws IOException {
+		final Writer writer = new BufferedWriter(new FileWriter(file));
+		try {
+			dump(writer);
+		} finally {
+			writer.close();
+		}
+	}
+
+	/**
+	 * write recorded events as Chrome trace-event JSON
+	 * @param writer
+	 * @throws IOException
+	 */
+	public synchronized void dump(Writer writer) throws IOException {
+		final int pid = Process.myPid();
+		writer.write("{\"traceEvents\":[");
+		boolean first = true;
+		for (int i = 0; i < mThreadNum; i++) {
+			if (!first) writer.write(',');
+			first = false;
+			writer.write("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + pid
+				+ ",\"tid\":" + mThreadIds[i] + ",\"args\":{\"name\":\"" + escape(mThreadNames[i]) + "\"}}");
+		}
+		for (int i = 0; i < mCount; i++) {
+			final int ix = (mHead + i) % mCapacity;
+			if (!first) writer.write(',');
+			first = false;
+			final StringBuilder sb = new StringBuilder("\n{\"name\":\"")
+				.append(escape(mNames.get(mNameIds[ix])))
+				.append("\",\"cat\":\"camera\",\"ph\":\"").append(mPhases[ix])
+				.append("\",\"ts\":").append(mTimestamps[ix] / 1000).append('.')
+				.append(String.format("%03d", mTimestamps[ix] % 1000))
+				.append(",\"pid\":").append(pid)
+				.append(",\"tid\":").append(mTids[ix]);
+			if (mPhases[ix] == PHASE_INSTANT) {
+				sb.append(",\"s\":\"t\"");
+			}
+			if (mArgs[ix] >= 0) {
+				sb.append(",\"args\":{\"seq\":").append(mArgs[ix]).append('}');
+			}
+			writer.write(sb.append('}').toString());
+		}
+		writer.write("\n]}\n");
+	}
+
+	private static String escape(String s) {
+		return s.replace("\\", "\\\\").replace("\"", "\\\"");
+	}
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+
+/**
+ * helper class to convert preview frame(NV21/YV12/YUY2) to ARGB pixels
+ * with cropping and rotation in one pass
+ */
+public final class YuvConverter {
+
+	private YuvConverter() {
+	}
+
+	/**
+	 * get width of output image
+	 * @param crop
+	 * @param rotation 0, 90, 180 or 270
+	 * @return
+	 */
+	public static int getOutputWidth(Rect crop, int rotation) {
+		return (rotation == 90) || (rotation == 270) ? crop.height() : crop.width();
+	}
+
+	/**
+	 * get height of output image
+	 * @param crop
+	 * @param rotation 0, 90, 180 or 270
+	 * @return
+	 */
+	public static int getOutputHeight(Rect crop, int rotation) {
+		return (rotation == 90) || (rotation == 270) ? crop.width() : crop.height();
+	}
+
+	/**
+	 * convert preview frame to ARGB pixels.</br>
+	 * The cropped region is rotated clockwise by the specific degrees.
+	 * @param src preview frame
+	 * @param width width of preview frame
+	 * @param height height of preview frame
+	 * @param format ImageFormat.NV21, ImageFormat.YV12 or ImageFormat.YUY2
+	 * @param crop region to convert, this should be in the frame
+	 * @param rotation 0, 90, 180 or 270
+	 * @param dst ARGB pixels, the size should be equal or larger than crop.width() * crop.height()
+	 */
+	public static void toARGB(byte[] src, int width, int height, int format,
+		Rect crop, int rotation, int[] dst) {
+
+		// layout of each plane
+		final int yRowStride, yPixelStride;
+		final int uOffset, vOffset, uvRowStride, uvPixelStride, uvRowShift;
+		switch (format) {
+		case ImageFormat.YV12:
+		{
+			yRowStride = (int)Math.ceil(width / 16.0) * 16;
+			yPixelStride = 1;
+			uvRowStride = (int)Math.ceil((yRowStride / 2) / 16.0) * 16;
+			uvPixelStride = 1;
+			uvRowShift = 1;
+			vOffset = yRowStride * height;
+			uOffset = vOffset + uvRowStride * (height / 2);
+			break;
+		}
+		case ImageFormat.YUY2:
+			// Y0 U0 Y1 V0, chroma is shared by 2 horizontal pixels
+			yRowStride = width * 2;
+			yPixelStride = 2;
+			uvRowStride = width * 2;
+			uvPixelStride = 4;
+			uvRowShift = 0;
+			uOffset = 1;
+			vOffset = 3;
+			break;
+		case ImageFormat.NV21:
+		default:
+			// Y plane followed by interleaved V/U plane
+			yRowStride = width;
+			yPixelStride = 1;
+			uvRowStride = width;
+			uvPixelStride = 2;
+			uvRowShift = 1;
+			vOffset = width * height;
+			uOffset = vOffset + 1;
+			break;
+		}
+		// source position for output(0,0) and its steps for x/y direction of output
+		final int cw = crop.width(), ch = crop.height();
+		final int sx0, sy0, sxdx, sydx, sxdy, sydy;
+		switch (rotation) {
+		case 90:	sx0 = 0;		sy0 = ch - 1;	sxdx = 0;	sydx = -1;	sxdy = 1;	sydy = 0; break;
+		case 180:	sx0 = cw - 1;	sy0 = ch - 1;	sxdx = -1;	sydx = 0;	sxdy = 0;	sydy = -1; break;
+		case 270:	sx0 = cw - 1;	sy0 = 0;		sxdx = 0;	sydx = 1;	sxdy = -1;	sydy = 0; break;
+		default:	sx0 = 0;		sy0 = 0;		sxdx = 1;	sydx = 0;	sxdy = 0;	sydy = 1; break;
+		}
+		final int outWidth = getOutputWidth(crop, rotation);
+		final int outHeight = getOutputHeight(crop, rotation);
+		int ix = 0;
+		for (int oy = 0; oy < outHeight; oy++) {
+			int sx = crop.left + sx0 + oy * sxdy;
+			int sy = crop.top + sy0 + oy * sydy;
+			for (int ox = 0; ox < outWidth; ox++, sx += sxdx, sy += sydx) {
+				final int uv = (sy >> uvRowShift) * uvRowStride + (sx >> 1) * uvPixelStride;
+				dst[ix++] = yuvToARGB(src[sy * yRowStride + sx * yPixelStride] & 0xff,
+					src[uOffset + uv] & 0xff, src[vOffset + uv] & 0xff);
+			}
+		}
+	}
+
+	/**
+	 * convert YUV(BT.601) to ARGB
+	 * @param y
+	 * @param u
+	 * @param v
+	 * @return
+	 */
+	public static int yuvToARGB(int y, int u, int v) {
+		final int c = (y < 16 ? 0 : y - 16) * 298;
+		final int d = u - 128;
+		final int e = v - 128;
+		int r = (c + 409 * e + 128) >> 8;
+		int g = (c - 100 * d - 208 * e + 128) >> 8;
+		int b = (c + 516 * d + 128) >> 8;
+		r = r < 0 ? 0 : (r > 255 ? 255 : r);
+		g = g < 0 ? 0 : (g > 255 ? 255 : g);
+		b = b < 0 ? 0 : (b > 255 ? 255 : b);
+		return 0xff000000 | (r << 16) | (g << 8) | b;
+	}
+}
@@ -19,21 +19,38 @@ package com.serenegiant.widget;
 
 import java.io.IOException;
 
+import com.serenegiant.camera.CameraInfoCache;
 import com.serenegiant.camera.CameraManager;
+import com.serenegiant.camera.CameraSession;
+import com.serenegiant.camera.FrameBitmapConverter;
+import com.serenegiant.camera.ImageFrame;
+import com.serenegiant.camera.PreviewFrame;
+import com.serenegiant.camera.SnapshotEncoder;
 import com.serenegiant.cameralib.R;
 
+import android.annotation.SuppressLint;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.graphics.RectF;
 import android.hardware.Camera;
 import android.hardware.Camera.AutoFocusCallback;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.util.DisplayMetrics;
 import android.util.Log;
+import android.view.Display;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
+import android.view.WindowManager;
 import android.widget.FrameLayout;
 
 public class CameraView extends FrameLayout
-	implements Camera.PreviewCallback, AutoFocusCallback {
+	implements Camera.PreviewCallback, AutoFocusCallback, CameraManager.Host {
 
 	private static final boolean DEBUG = true;	// TODO set to false when production
 	protected final String TAG = DEBUG ? getClass().getSimpleName() : null;
@@ -49,7 +66,8 @@ public class CameraView extends FrameLayout
 	 */
 	private final SurfaceView mSurfaceView;
 	/**
-	 * reference to the camera manager instance
+	 * reference to the camera manager instance of this view,
+	 * the manager of the session is used instead while this view is the primary view of the session
 	 */
 	private CameraManager mCameraManager;
 	/**
@@ -57,6 +75,24 @@ public class CameraView extends FrameLayout
 	 * set true in #surfaceCreated and clear in #surfaceDestroyed</br>
 	 */
 	private boolean mSurfaceExist;
+	/**
+	 * shared camera session, null if this view uses the camera by itself
+	 */
+	private volatile CameraSession mSession;
+	/**
+	 * synchronize object to draw frames of the session on the drawer thread
+	 */
+	private final Object mDrawSync = new Object();
+	private final RectF mDrawRect = new RectF();
+	/**
+	 * thread to convert and draw frames of the session while this view is attached to it
+	 */
+	private volatile SecondaryDrawer mSecondaryDrawer;
+	private volatile int mDroppedSecondaryFrames;
+	/**
+	 * callbacks to receive memory trim requests(API>=14)
+	 */
+	private Object mComponentCallbacks;
 		
 	@SuppressWarnings("deprecation")
 	public CameraView(Context context, AttributeSet attrs) {
@@ -66,13 +102,23 @@ public class CameraView extends FrameLayout
         mCameraID = attributesArray.getInt(R.styleable.CameraView_camera_id, 0);
 		final boolean isMacroMode = attributesArray.getBoolean(R.styleable.CameraView_focus_mode_macro, false);
 		final boolean isEffectMono = attributesArray.getBoolean(R.styleable.CameraView_effect_mono, false);
+		final boolean hasRotOffset = attributesArray.hasValue(R.styleable.CameraView_rotation_offset);
 		final int rot_offset = attributesArray.getInt(R.styleable.CameraView_rotation_offset, 0);
+		final boolean useCamera2 = attributesArray.getBoolean(R.styleable.CameraView_use_camera2, false);
 		attributesArray.recycle();
 		attributesArray = null;
 		
+		// prefetch CameraInfo of all cameras to switch camera quickly
+		CameraInfoCache.prefetch();
 		mCameraManager = getCameraManager();
 		mCameraManager.setFocusMode(isMacroMode, true, isEffectMono);
-		mCameraManager.setRotationOffset(rot_offset);
+		if (hasRotOffset) {
+			// otherwise the quirk of this device is applied
+			mCameraManager.setRotationOffset(rot_offset);
+		}
+		if (useCamera2) {
+			mCameraManager.setBackend(CameraManager.BACKEND_CAMERA2);
+		}
 		// create SurfaceView
 		mSurfaceView = new SurfaceView(context);
 		final SurfaceHolder holder = mSurfaceView.getHolder();
@@ -85,6 +131,71 @@ public class CameraView extends FrameLayout
 		addView(mSurfaceView);
 	}
 
+	@SuppressLint("NewApi")
+	@Override
+	protected void onAttachedToWindow() {
+		super.onAttachedToWindow();
+		if ((Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH)
+			&& (mComponentCallbacks == null)) {
+			final ComponentCallbacks2 callbacks = new ComponentCallbacks2() {
+				@Override
+				public void onTrimMemory(int level) {
+					CameraView.this.onTrimMemory(level);
+				}
+				@Override
+				public void onLowMemory() {
+					CameraView.this.onLowMemory();
+				}
+				@Override
+				public void onConfigurationChanged(Configuration newConfig) {
+				}
+			};
+			getContext().getApplicationContext().registerComponentCallbacks(callbacks);
+			mComponentCallbacks = callbacks;
+		}
+		if (mSession != null) {
+			mSession.attach(this);
+			startSecondaryDrawer();
+		}
+	}
+
+	@SuppressLint("NewApi")
+	@Override
+	protected void onDetachedFromWindow() {
+		if (mSession != null) {
+			// keep the session to attach again when this view is re-attached
+			getCameraManager().removeEvent(mAutoFocusRunnable);
+			mSession.detach(this);
+			releaseSharedCameraManager(mSession);
+			stopSecondaryDrawer();
+		}
+		if (mComponentCallbacks != null) {
+			getContext().getApplicationContext().unregisterComponentCallbacks(
+				(ComponentCallbacks2)mComponentCallbacks);
+			mComponentCallbacks = null;
+		}
+		super.onDetachedFromWindow();
+	}
+
+	/**
+	 * shrink pooled buffers/bitmaps of the camera pipeline.</br>
+	 * This is called automatically on API>=14, you can call this
+	 * from Activity#onTrimMemory on older devices.
+	 * @param level ComponentCallbacks2.TRIM_MEMORY_XX
+	 */
+	public void onTrimMemory(int level) {
+		if (DEBUG) Log.v(TAG, "onTrimMemory:level=" + level);
+		getCameraManager().trimMemory(level);
+	}
+
+	/**
+	 * release pooled buffers/bitmaps of the camera pipeline as much as possible
+	 */
+	public void onLowMemory() {
+		if (DEBUG) Log.v(TAG, "onLowMemory:");
+		getCameraManager().onLowMemory();
+	}
+
 	@Override
 	public void onWindowFocusChanged(boolean hasWindowFocus) {
 		super.onWindowFocusChanged(hasWindowFocus);
@@ -112,12 +223,22 @@ public class CameraView extends FrameLayout
 	 */
 	public synchronized void pause() {
 		if (DEBUG) Log.v(TAG, "pause:");
-		if (mCameraManager != null) {
-			mCameraManager.removeEvent(mAutoFocusRunnable);
-			mCameraManager.closeCamera();
+		final CameraManager manager = getCameraManager();
+		manager.removeEvent(mAutoFocusRunnable);
+		// secondary view of the session never opens the camera
+		if ((mSession == null) || mSession.isPrimary(this)) {
+			manager.closeCamera();
 		}
 	}
 
+	/**
+	 * get whether the surface of this view exists
+	 * @return
+	 */
+	public boolean hasSurface() {
+		return mSurfaceExist;
+	}
+
 	/**
 	 * callbacks for SufaceView (these methods are called from UI thread)
 	 */
@@ -126,6 +247,11 @@ public class CameraView extends FrameLayout
 		public final void surfaceCreated(final SurfaceHolder holder) {
 			if (DEBUG) Log.v(TAG, "surfaceCreated");
 			mSurfaceExist = true;
+			final CameraSession session = mSession;
+			if (session != null) {
+				// take over the camera if no other view shows the preview
+				session.onSurfaceCreated(CameraView.this);
+			}
 			resumeCamera();
 		}
 
@@ -140,8 +266,17 @@ public class CameraView extends FrameLayout
 		public final void surfaceDestroyed(SurfaceHolder holder) {
 			if (DEBUG) Log.v(TAG, "surfaceDestroyed");
 			// when destroied surface
-			mSurfaceExist = false;
-			pause();
+			synchronized (mDrawSync) {
+				mSurfaceExist = false;
+			}
+			final CameraSession session = mSession;
+			if ((session != null) && session.isPrimary(CameraView.this)) {
+				// move the preview to other view of the session without closing the camera
+				getCameraManager().removeEvent(mAutoFocusRunnable);
+				session.onSurfaceDestroyed(CameraView.this);
+			} else {
+				pause();
+			}
 		}
 	};
 
@@ -152,6 +287,184 @@ public class CameraView extends FrameLayout
 	@Override
 	public void onPreviewFrame(byte[] data, Camera camera) {
 	}
+
+	/**
+	 * callback method when preview frame is available with callback buffer</br>
+	 * This method is called only when the number of callback buffers is set
+	 * and the frame is returned to the camera after this method returned.
+	 * If you need to hold the frame, call PreviewFrame#acquire and PreviewFrame#release.</br>
+	 * Default implementation just calls #onPreviewFrame(byte[], Camera).
+	 * @param frame
+	 * @param camera
+	 */
+	@Override
+	public void onPreviewFrame(PreviewFrame frame, Camera camera) {
+		onPreviewFrame(frame.data, camera);
+	}
+
+	/**
+	 * callback method when preview frame is available with Camera2 API(YUV_420_888)</br>
+	 * This method is called only when the number of callback buffers is set.
+	 * The planes of the frame are the buffers of ImageReader without copying,
+	 * if you need to hold the frame, call ImageFrame#acquire and ImageFrame#release.</br>
+	 * This method do nothing in CameraView. You can override this if you need.
+	 * @param frame
+	 */
+	@Override
+	public void onPreviewFrame(ImageFrame frame) {
+	}
+
+	/**
+	 * callback method when preview frame of the shared session is available
+	 * on secondary view(the view that does not open the camera).</br>
+	 * This is called on camera thread of the primary view and the frame is returned
+	 * to the camera after this method returned unless it is acquired. Default implementation
+	 * hands the frame to the drawer thread of this view that draws it on the SurfaceView(API>=11),
+	 * the frame is dropped if the previous frame is still being drawn.
+	 * Then #onPreviewFrame(PreviewFrame, Camera) is called with null camera.
+	 * @param frame
+	 */
+	public void onSecondaryPreviewFrame(PreviewFrame frame) {
+		// never take mDrawSync here, it is held while drawing
+		final SecondaryDrawer drawer = mSecondaryDrawer;
+		if ((drawer != null) && !drawer.offer(frame)) {
+			mDroppedSecondaryFrames++;
+		}
+		onPreviewFrame(frame, null);
+	}
+
+	/**
+	 * get number of frames of the session that were not drawn
+	 * because this view was still drawing the previous frame
+	 * @return
+	 */
+	public int getDroppedSecondaryFrameCount() {
+		return mDroppedSecondaryFrames;
+	}
+
+	/**
+	 * convert the frame of the session to Bitmap and draw it on the SurfaceView.</br>
+	 * this is called on the drawer thread
+	 * @param frame
+	 */
+	@SuppressLint("NewApi")
+	private void drawSecondaryFrame(PreviewFrame frame) {
+		final CameraSession session = mSession;
+		if ((session == null) || (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB)) return;
+		final FrameBitmapConverter converter = session.getBitmapConverter();
+		synchronized (mDrawSync) {
+			if (mSurfaceExist && (converter != null)) {
+				final Bitmap bitmap = converter.convert(frame, true);
+				try {
+					final SurfaceHolder holder = mSurfaceView.getHolder();
+					final Canvas canvas = holder.lockCanvas();
+					if (canvas != null) {
+						try {
+							mDrawRect.set(0, 0, canvas.getWidth(), canvas.getHeight());
+							if (frame.isFrontFace()) {
+								// mirror like the preview of front camera
+								canvas.scale(-1, 1, mDrawRect.centerX(), mDrawRect.centerY());
+							}
+							canvas.drawBitmap(bitmap, null, mDrawRect, null);
+						} finally {
+							holder.unlockCanvasAndPost(canvas);
+						}
+					}
+				} finally {
+					converter.release(bitmap);
+				}
+			}
+		}
+	}
+
+	/**
+	 * start the drawer thread when this view is attached to the session, this is called on UI thread
+	 */
+	private void startSecondaryDrawer() {
+		if (mSecondaryDrawer == null) {
+			final SecondaryDrawer drawer = new SecondaryDrawer();
+			drawer.start();
+			mSecondaryDrawer = drawer;
+		}
+	}
+
+	/**
+	 * stop the drawer thread when this view is detached from the session, this is called on UI thread
+	 */
+	private void stopSecondaryDrawer() {
+		final SecondaryDrawer drawer = mSecondaryDrawer;
+		mSecondaryDrawer = null;
+		if (drawer != null) {
+			drawer.finish();
+		}
+	}
+
+	/**
+	 * thread to draw frames of the session off the camera thread.</br>
+	 * Only one frame is held at a time, so each secondary view holds at most one callback buffer.
+	 */
+	private final class SecondaryDrawer extends Thread {
+		private PreviewFrame mFrame;
+		private boolean mRunning = true;
+
+		public SecondaryDrawer() {
+			super("SecondaryDrawer");
+		}
+
+		/**
+		 * hand the frame to this thread, this is called on camera thread
+		 * @param frame
+		 * @return false if the previous frame is still being drawn and the frame is dropped
+		 */
+		public synchronized boolean offer(PreviewFrame frame) {
+			if (!mRunning || (mFrame != null)) return false;
+			mFrame = frame.acquire();
+			notify();
+			return true;
+		}
+
+		/**
+		 * terminate this thread, the frame that is not drawn yet is released
+		 */
+		public synchronized void finish() {
+			mRunning = false;
+			notify();
+		}
+
+		@Override
+		public void run() {
+			for ( ; ; ) {
+				final PreviewFrame frame;
+				synchronized (this) {
+					while (mRunning && (mFrame == null)) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							mRunning = false;
+						}
+					}
+					if (!mRunning) break;
+					frame = mFrame;
+				}
+				try {
+					drawSecondaryFrame(frame);
+				} catch (Exception e) {
+					Log.w(TAG, e);
+				} finally {
+					synchronized (this) {
+						mFrame = null;
+					}
+					frame.release();
+				}
+			}
+			synchronized (this) {
+				if (mFrame != null) {
+					mFrame.release();
+					mFrame = null;
+				}
+			}
+		}
+	}
 	
 	/**
 	 * callback method when auto-focus finished
@@ -161,7 +474,8 @@ public class CameraView extends FrameLayout
 		if (DEBUG) Log.v(TAG, "onAutoFocus:success=" + success);
 		// if aoto-focus successed, request next after 2 seconds.
 		// if failed, request next after 200 milliseconds
-		mCameraManager.queueEvent(mAutoFocusRunnable, success ? 2000 : 200);
+		getCameraManager().queueEvent(mAutoFocusRunnable, mAutoFocusRunnable,
+			CameraManager.PRIORITY_AUTOFOCUS, success ? 2000 : 200);
 	}
 
 	/**
@@ -171,7 +485,7 @@ public class CameraView extends FrameLayout
 		@Override
 		public void run() {
 			if (DEBUG) Log.v(TAG, "autoFocus:");
-			mCameraManager.autoFocus(CameraView.this);
+			getCameraManager().autoFocus(CameraView.this);
 		}		
 	};
 
@@ -183,7 +497,9 @@ public class CameraView extends FrameLayout
 	 */
 	protected synchronized void openCamera(final SurfaceHolder holder) {
 		if (DEBUG) Log.v(TAG, "openCamera:");
-		mCameraManager.OpenCamera(mCameraID,  holder);
+		// secondary view of the session receives frames from the primary view
+		if ((mSession != null) && !mSession.isPrimary(this)) return;
+		getCameraManager().OpenCamera(mCameraID,  holder);
 	}
 
 	
@@ -193,7 +509,12 @@ public class CameraView extends FrameLayout
 	 */
 	protected synchronized final void setupCameraParams() {
 		if (DEBUG) Log.v(TAG, "setupCameraParams:");
-		mCameraManager.setupCameraParams(getWidth(), getHeight(), this);
+		if (mSession != null) {
+			// preview size is negotiated with all views of the session
+			mSession.requestSetup();
+		} else {
+			getCameraManager().setupCameraParams(getWidth(), getHeight(), this);
+		}
 	}
 
 	/**
@@ -212,12 +533,19 @@ public class CameraView extends FrameLayout
 	 * @param camera_id
 	 */
 	public synchronized final void setCameraID(int camera_id) {
+		if (mSession != null) {
+			if (DEBUG) Log.w(TAG, "setCameraID:camera id can not be changed while sharing the session");
+			return;
+		}
 		if (mCameraID != camera_id) {	// select different camera?
-			// try to close current selected camera
-			mCameraManager.closeCamera();
 			mCameraID = camera_id;
-			resumeCamera();
-			setupCameraParams();
+			if (mSurfaceExist) {
+				// close current camera and open new one on camera thread
+				final CameraManager manager = getCameraManager();
+				manager.removeEvent(mAutoFocusRunnable);
+				manager.switchCamera(camera_id, mSurfaceView.getHolder(),
+					getWidth(), getHeight(), this);
+			}
 		}
 	}
 
@@ -225,6 +553,60 @@ public class CameraView extends FrameLayout
 		return mCameraID;
 	}
 
+	/**
+	 * share the camera with other views and frame consumers.</br>
+	 * The first view attached to the session opens the camera and the others draw
+	 * the frames of it, so only one camera is opened for multiple views.
+	 * The session is supported only with Camera API(not Camera2),
+	 * because frames are shared through the callback buffers of Camera API.
+	 * @param session the session from CameraSession#getSession, null to stop sharing
+	 * @throws IllegalStateException if this view uses Camera2 backend
+	 */
+	public synchronized void setSession(CameraSession session) {
+		if (mSession == session) return;
+		if ((session != null) && (getCameraManager().getBackend() == CameraManager.BACKEND_CAMERA2)) {
+			throw new IllegalStateException("CameraSession is not supported with Camera2 backend");
+		}
+		if (mSession != null) {
+			// the session hands over the camera to other view or closes it
+			getCameraManager().removeEvent(mAutoFocusRunnable);
+			mSession.detach(this);
+			releaseSharedCameraManager(mSession);
+			stopSecondaryDrawer();
+		} else {
+			// release the camera that this view opened
+			pause();
+		}
+		mSession = session;
+		if (session != null) {
+			mCameraID = session.getCameraID();
+			if (getWindowToken() != null) {
+				session.attach(this);
+				startSecondaryDrawer();
+			}
+		}
+		resume();
+	}
+
+	public CameraSession getSession() {
+		return mSession;
+	}
+
+	/**
+	 * replace the CameraManager of this view with new one if the session still uses it
+	 * for other view(the manager is handed over with the opened camera)
+	 * @param session
+	 */
+	private void releaseSharedCameraManager(CameraSession session) {
+		final CameraManager shared = mCameraManager;
+		if ((shared != null) && (session.getCameraManager() == shared)) {
+			if (DEBUG) Log.v(TAG, "releaseSharedCameraManager:");
+			final CameraManager manager = createCameraManager();
+			manager.copySettings(shared);
+			mCameraManager = manager;
+		}
+	}
+
 	/**
 	 * create CameraManager instance when it is not created yet.</br>
 	 * this method is called from #getCameraManager if necessary.
@@ -236,11 +618,18 @@ public class CameraView extends FrameLayout
 	}
 	
 	/**
-	 * return CameraManager
+	 * return CameraManager that controls the camera of this view.</br>
+	 * while this view is the primary view of the session, this is the manager of the session
+	 * that may be created by other view.
 	 * @return
 	 */
 	public final CameraManager getCameraManager() {
 		if (DEBUG) Log.v(TAG, "getCameraManager:");
+		final CameraSession session = mSession;
+		if ((session != null) && session.isPrimary(this)) {
+			final CameraManager manager = session.getCameraManager();
+			if (manager != null) return manager;
+		}
 		if (mCameraManager == null)
 			mCameraManager = createCameraManager();
 		return mCameraManager;
@@ -253,7 +642,7 @@ public class CameraView extends FrameLayout
 	 * @param offset
 	 */
 	public void setRotationOffset(int offset) {
-		mCameraManager.setRotationOffset(offset);
+		getCameraManager().setRotationOffset(offset);
 	}
 	
 	/**
@@ -261,7 +650,7 @@ public class CameraView extends FrameLayout
 	 * @return
 	 */
 	public int getRotationOffset() {
-		return mCameraManager.getRotationOffset();
+		return getCameraManager().getRotationOffset();
 	}
 	
 	/**
@@ -269,7 +658,7 @@ public class CameraView extends FrameLayout
 	 * @return
 	 */
 	public final boolean isPortrite() {
-		return mCameraManager.isPortrite();
+		return getCameraManager().isPortrite();
 	}
 	
 	/**
@@ -277,7 +666,7 @@ public class CameraView extends FrameLayout
 	 * @return
 	 */
 	public boolean isMacroMode() {
-		return mCameraManager.isMacroMode();
+		return getCameraManager().isMacroMode();
 	}
 	
 	/**
@@ -285,13 +674,93 @@ public class CameraView extends FrameLayout
 	 * @param isMacroMode
 	 */
 	public void setMacroMode(boolean isMacroMode) {
-		mCameraManager.setMacroMode(isMacroMode);
+		getCameraManager().setMacroMode(isMacroMode);
 	}
 	
+	/**
+	 * select camera API, the camera is reopened if it is already opened with other API
+	 * @param backend CameraManager.BACKEND_CAMERA or CameraManager.BACKEND_CAMERA2
+	 * @return false if the backend is not available on this device
+	 */
+	public boolean setCameraBackend(int backend) {
+		return getCameraManager().setBackend(backend);
+	}
+
+	public int getCameraBackend() {
+		return getCameraManager().getBackend();
+	}
+
+	/**
+	 * set the number of callback buffers for continuous frame delivery</br>
+	 * 0 means one-shot preview callback(default)
+	 * @param num
+	 * @param useDirectBuffer whether each frame also has direct ByteBuffer for native analyzers
+	 */
+	public void setCallbackBufferNum(int num, boolean useDirectBuffer) {
+		final CameraManager manager = getCameraManager();
+		manager.setUseDirectBuffer(useDirectBuffer);
+		manager.setCallbackBufferNum(num);
+	}
+
+	/**
+	 * take a snapshot from next preview frame and encode it on worker thread</br>
+	 * This is available only when callback buffers are used.
+	 * @param crop region of the frame(without screen rotation), null for full frame
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 * @return false if callback buffers are not used
+	 */
+	public boolean takeSnapshot(Rect crop, Bitmap.CompressFormat format, int quality,
+		SnapshotEncoder.Callback callback) {
+		return getCameraManager().takeSnapshot(1, crop, format, quality, callback);
+	}
+
+	/**
+	 * take snapshots from next preview frames continuously and encode them on worker threads</br>
+	 * Frames are skipped while the encoder is back-pressured.
+	 * @param count number of snapshots
+	 * @param crop region of the frame(without screen rotation), null for full frame
+	 * @param format
+	 * @param quality
+	 * @param callback
+	 * @return false if callback buffers are not used
+	 */
+	public boolean takeBurst(int count, Rect crop, Bitmap.CompressFormat format, int quality,
+		SnapshotEncoder.Callback callback) {
+		return getCameraManager().takeSnapshot(count, crop, format, quality, callback);
+	}
+
+	/**
+	 * get rotation of the default display
+	 * @return Surface.ROTATION_XX
+	 */
+	@Override
+	public int getDisplayRotation() {
+		return getDefaultDisplay().getRotation();
+	}
+
+	/**
+	 * get whether the default display is portrait
+	 * @return
+	 */
+	@Override
+	public boolean isDisplayPortrait() {
+		final DisplayMetrics metrics = new DisplayMetrics();
+		getDefaultDisplay().getMetrics(metrics);
+		return metrics.widthPixels < metrics.heightPixels;
+	}
+
+	private Display getDefaultDisplay() {
+		return ((WindowManager)getContext()
+			.getSystemService(Context.WINDOW_SERVICE)).getDefaultDisplay();
+	}
+
 	/**
 	 * request to start preview, synonym of requestPreviewFrame in this class
 	 * @param force
 	 */
+	@Override
 	public void startRead(boolean force) {
 		requestPreviewFrame();
 	}
@@ -301,7 +770,10 @@ public class CameraView extends FrameLayout
 	 */
 	public synchronized void requestPreviewFrame() {
 		if (DEBUG) Log.v(TAG, "requestPreviewFrame");
-		final Camera camera = mCameraManager.getCamera();
+		// frames are delivered continuously when using callback buffers
+		final CameraManager manager = getCameraManager();
+		if (manager.isCallbackBufferMode()) return;
+		final Camera camera = manager.getCamera();
 		if (camera != null) {
 			camera.setOneShotPreviewCallback(this);
 		}
@@ -0,0 +1,28 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.cameralib;
+
+/**
+ * stand-in for R that aapt generates on Android build, only to compile the library on JVM.</br>
+ * The resources are not packaged, tests read res/xml directly
+ * and create CameraQuirks with their own SharedPreferences.
+ */
+public final class R {
+	public static final class xml {
+		public static final int camera_quirks = 0;
+	}
+}
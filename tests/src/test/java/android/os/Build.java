@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the framework Build,
+ * android-all reads them from the system properties through native methods.
+ */
+public class Build {
+	public static final String MANUFACTURER = "jvm";
+	public static final String MODEL = "test";
+
+	public static class VERSION {
+		public static final int SDK_INT = VERSION_CODES.LOLLIPOP;
+	}
+
+	public static class VERSION_CODES {
+		public static final int JELLY_BEAN = 16;
+		public static final int JELLY_BEAN_MR1 = 17;
+		public static final int JELLY_BEAN_MR2 = 18;
+		public static final int KITKAT = 19;
+		public static final int LOLLIPOP = 21;
+	}
+}
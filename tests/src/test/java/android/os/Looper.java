@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * JVM stand-in for the framework Looper.</br>
+ * android-all needs the native MessageQueue, this one keeps the messages in a PriorityQueue
+ * ordered by the uptime and the posting order. Only what the library uses is implemented.
+ */
+public final class Looper {
+	private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<Looper>();
+
+	private final Thread mThread;
+	private final PriorityQueue<Message> mQueue = new PriorityQueue<Message>();
+	private long mSequence;
+	private boolean mQuit;
+
+	private Looper() {
+		mThread = Thread.currentThread();
+	}
+
+	public static void prepare() {
+		if (sThreadLocal.get() != null) {
+			throw new RuntimeException("Only one Looper may be created per thread");
+		}
+		sThreadLocal.set(new Looper());
+	}
+
+	public static Looper myLooper() {
+		return sThreadLocal.get();
+	}
+
+	public static void loop() {
+		final Looper me = myLooper();
+		if (me == null) {
+			throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+		}
+		for ( ; ; ) {
+			final Message msg = me.next();
+			if (msg == null) return;	// quit
+			msg.mCallback.run();
+		}
+	}
+
+	public Thread getThread() {
+		return mThread;
+	}
+
+	public synchronized void quit() {
+		mQuit = true;
+		mQueue.clear();
+		notifyAll();
+	}
+
+	/*package*/synchronized boolean enqueue(Handler target, Runnable callback, long uptimeMillis) {
+		if (mQuit) return false;
+		mQueue.add(new Message(target, callback, uptimeMillis, mSequence++));
+		notifyAll();
+		return true;
+	}
+
+	/*package*/synchronized void remove(Handler target, Runnable callback) {
+		for (final Iterator<Message> iter = mQueue.iterator(); iter.hasNext(); ) {
+			final Message msg = iter.next();
+			if ((msg.mTarget == target) && (msg.mCallback == callback)) {
+				iter.remove();
+			}
+		}
+	}
+
+	private synchronized Message next() {
+		for ( ; ; ) {
+			if (mQuit) return null;
+			final Message msg = mQueue.peek();
+			final long delay = msg != null ? msg.mWhen - SystemClock.uptimeMillis() : 0;
+			if ((msg != null) && (delay <= 0)) {
+				return mQueue.poll();
+			}
+			try {
+				wait(delay);
+			} catch (final InterruptedException e) {
+				return null;
+			}
+		}
+	}
+
+	private static final class Message implements Comparable<Message> {
+		private final Handler mTarget;
+		private final Runnable mCallback;
+		private final long mWhen;
+		private final long mSequence;
+
+		private Message(Handler target, Runnable callback, long when, long sequence) {
+			mTarget = target;
+			mCallback = callback;
+			mWhen = when;
+			mSequence = sequence;
+		}
+
+		@Override
+		public int compareTo(Message other) {
+			if (mWhen != other.mWhen) {
+				return mWhen < other.mWhen ? -1 : 1;
+			}
+			return mSequence < other.mSequence ? -1 : (mSequence == other.mSequence ? 0 : 1);
+		}
+	}
+}
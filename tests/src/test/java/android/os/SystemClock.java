@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+/**
+ * JVM stand-in for the framework SystemClock, the uptime is counted from the class loading.
+ */
+public final class SystemClock {
+	private static final long START_NS = System.nanoTime();
+
+	private SystemClock() {
+	}
+
+	public static long uptimeMillis() {
+		return (System.nanoTime() - START_NS) / 1000000L;
+	}
+
+	public static long elapsedRealtime() {
+		return uptimeMillis();
+	}
+
+	public static void sleep(long ms) {
+		try {
+			Thread.sleep(ms);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
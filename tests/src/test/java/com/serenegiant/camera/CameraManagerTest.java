@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Rect;
+import android.hardware.Camera;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.view.Surface;
+import android.view.SurfaceHolder;
+
+/**
+ * lifecycle of CameraManager(open, setup, switch, close and zoom) with Camera2 backend
+ * that is replaced with FakeCameraBackend.
+ */
+public class CameraManagerTest {
+	private static final long TIMEOUT_MS = 3000;
+	private static final int[] SIZES = {
+		1280, 720, 960, 720, 800, 480, 640, 480, 320, 240,
+	};
+	private static final List<String> FOCUS_MODES = Arrays.asList(
+		Camera.Parameters.FOCUS_MODE_AUTO, Camera.Parameters.FOCUS_MODE_CONTINUOUS_VIDEO);
+	private static final int SENSOR_ORIENTATION = 90;
+	private static final int MAX_ZOOM = 30;
+	// active array that does not start at the origin of the pixel array
+	private static final Rect ACTIVE_ARRAY = new Rect(8, 6, 8 + 1280, 6 + 720);
+	private static final int VIEW_WIDTH = 800, VIEW_HEIGHT = 480;
+
+	private TestHost mHost;
+	private TestHolder mHolder;
+	private TestCameraManager mManager;
+
+	@Before
+	public void setUp() {
+		mHost = new TestHost();
+		mHolder = new TestHolder();
+		mManager = new TestCameraManager(mHost);
+		assertTrue(mManager.setBackend(CameraManager.BACKEND_CAMERA2));
+		mManager.setCallbackBufferNum(3);
+		mManager.setFocusMode(false, true, false);
+	}
+
+	@After
+	public void tearDown() throws InterruptedException {
+		mManager.closeCamera();
+		for (FakeCameraBackend camera: mManager.getBackends()) {
+			waitUntilClosed(camera);
+		}
+	}
+
+	@Test
+	public void openAndSetupStartsPreviewAtNegotiatedSize() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		final int best = CameraUtils.findBestPreviewSize(SIZES, VIEW_WIDTH, VIEW_HEIGHT);
+		assertEquals(0, camera.getCameraID());
+		assertEquals(SIZES[best * 2], camera.getPreviewWidth());
+		assertEquals(SIZES[best * 2 + 1], camera.getPreviewHeight());
+		assertEquals(CameraUtils.selectFocusMode(FOCUS_MODES, false, true), camera.getFocusMode());
+		assertEquals(SENSOR_ORIENTATION, camera.getRotation());
+		assertEquals(1, mManager.getAppliedSetupCount());
+		assertEquals(1, mHost.getStartReadCount());
+	}
+
+	@Test
+	public void setupIsDeferredUntilSurfaceHasPreviewSize() throws InterruptedException {
+		mManager.OpenCamera(0, mHolder);
+		mManager.setupCameraParams(VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		final FakeCameraBackend camera = mManager.getBackends().get(0);
+		assertFalse(camera.isPreviewing());
+		// the surface was resized to the preview size, setup again like surfaceChanged
+		assertEquals(mManager.getPreviewSize().x, mHolder.getSurfaceFrame().width());
+		assertEquals(mManager.getPreviewSize().y, mHolder.getSurfaceFrame().height());
+		mManager.setupCameraParams(VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		assertTrue(camera.isPreviewing());
+	}
+
+	@Test
+	public void setupWithSameParametersIsSkipped() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		mManager.setupCameraParams(VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		assertTrue(camera.isPreviewing());
+		assertEquals(1, mManager.getAppliedSetupCount());
+		assertEquals(1, mManager.getSkippedSetupCount());
+	}
+
+	@Test
+	public void switchCameraClosesCurrentAndOpensOther() throws InterruptedException {
+		final FakeCameraBackend back = startPreview(0);
+		mManager.switchCamera(1, mHolder, VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		assertEquals(2, mManager.getBackends().size());
+		final FakeCameraBackend other = mManager.getBackends().get(1);
+		assertFalse(back.isOpened());
+		assertEquals(1, other.getCameraID());
+		assertTrue(other.isPreviewing());
+		assertEquals(2, mManager.getAppliedSetupCount());
+	}
+
+	@Test
+	public void closeCameraClosesBackendBeforeReturn() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		mManager.closeCamera();
+		assertFalse(camera.isOpened());
+		assertFalse(camera.isPreviewing());
+		assertFalse(mManager.isActive());
+	}
+
+	@Test
+	public void closeCameraRunsBeforeQueuedEvents() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		final CountDownLatch running = new CountDownLatch(1);
+		final AtomicBoolean queuedEventRan = new AtomicBoolean();
+		mManager.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				running.countDown();
+				SystemClock.sleep(100);
+			}
+		});
+		mManager.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				queuedEventRan.set(true);
+			}
+		});
+		assertTrue(running.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		// running event is not interrupted, the close runs next and the queued event is discarded
+		mManager.closeCamera();
+		assertFalse(camera.isOpened());
+		assertFalse(queuedEventRan.get());
+	}
+
+	@Test
+	public void closeCameraOnCameraThreadDoesNotWait() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		final CountDownLatch returned = new CountDownLatch(1);
+		mManager.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				mManager.closeCamera();
+				returned.countDown();
+			}
+		});
+		assertTrue(returned.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+		waitUntilClosed(camera);
+	}
+
+	@Test
+	public void openFailureKeepsCameraClosed() throws InterruptedException {
+		mManager.setFailOpen(true);
+		mManager.OpenCamera(0, mHolder);
+		mManager.setupCameraParams(VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		final FakeCameraBackend camera = mManager.getBackends().get(0);
+		assertFalse(camera.isOpened());
+		assertEquals(0, mManager.getAppliedSetupCount());
+	}
+
+	@Test
+	public void zoomCropIsOffsetByActiveArray() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		// 10 steps = 2x
+		for (int i = 0; i < CameraUtils.ZOOM_STEPS_PER_X; i++) {
+			mManager.zoomIn();
+		}
+		sync();
+		assertEquals(CameraUtils.ZOOM_STEPS_PER_X, camera.getZoom());
+		final int w = ACTIVE_ARRAY.width() / 2, h = ACTIVE_ARRAY.height() / 2;
+		final int left = ACTIVE_ARRAY.left + w / 2, top = ACTIVE_ARRAY.top + h / 2;
+		assertEquals(new Rect(left, top, left + w, top + h), camera.getCropRegion());
+	}
+
+	@Test
+	public void rotationOffsetIsAppliedToFrames() throws InterruptedException {
+		mManager.setRotationOffset(180);
+		final FakeCameraBackend camera = startPreview(0);
+		assertEquals((SENSOR_ORIENTATION + 180) % 360, camera.getRotation());
+	}
+
+	@Test
+	public void rotationQuirkIsAppliedToFrames() throws InterruptedException {
+		mManager.getQuirks().setRotationOffset(0, 90);
+		final FakeCameraBackend camera = startPreview(0);
+		assertEquals((SENSOR_ORIENTATION + 90) % 360, camera.getRotation());
+		assertEquals(90, mManager.getRotationOffset());
+	}
+
+	@Test
+	public void framesAreDeliveredToHost() throws InterruptedException {
+		final FakeCameraBackend camera = startPreview(0);
+		assertTrue(camera.deliverFrame(1000L));
+		assertTrue(camera.deliverFrame(2000L));
+		assertEquals(2, mHost.getFrameCount());
+		assertEquals(camera.getPreviewWidth(), mHost.getLastFrameWidth());
+	}
+
+	/**
+	 * open the camera and start preview at VIEW_WIDTH x VIEW_HEIGHT
+	 * @param cameraID
+	 * @return the backend that was opened
+	 */
+	private FakeCameraBackend startPreview(int cameraID) throws InterruptedException {
+		final int best = CameraUtils.findBestPreviewSize(SIZES, VIEW_WIDTH, VIEW_HEIGHT);
+		mHolder.setFixedSize(SIZES[best * 2], SIZES[best * 2 + 1]);
+		mManager.OpenCamera(cameraID, mHolder);
+		mManager.setupCameraParams(VIEW_WIDTH, VIEW_HEIGHT, null);
+		sync();
+		final List<FakeCameraBackend> backends = mManager.getBackends();
+		final FakeCameraBackend camera = backends.get(backends.size() - 1);
+		assertTrue(camera.isPreviewing());
+		return camera;
+	}
+
+	/**
+	 * wait until all lifecycle events that were requested before are executed on camera thread
+	 */
+	private void sync() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		// user events run after lifecycle events that are queued at that time
+		mManager.queueEvent(new Runnable() {
+			@Override
+			public void run() {
+				latch.countDown();
+			}
+		});
+		assertTrue("camera thread did not respond", latch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+	}
+
+	private static void waitUntilClosed(FakeCameraBackend camera) throws InterruptedException {
+		final long limit = System.currentTimeMillis() + TIMEOUT_MS;
+		while (camera.isOpened() && (System.currentTimeMillis() < limit)) {
+			Thread.sleep(10);
+		}
+		assertFalse("camera was not closed", camera.isOpened());
+	}
+
+	/**
+	 * CameraManager that opens FakeCameraBackend and keeps quirks in memory
+	 */
+	private static final class TestCameraManager extends CameraManager {
+		private final List<FakeCameraBackend> mBackends = new ArrayList<FakeCameraBackend>();
+		private volatile boolean mFailOpen;
+
+		public TestCameraManager(Host host) {
+			super(host);
+		}
+
+		public void setFailOpen(boolean failOpen) {
+			mFailOpen = failOpen;
+		}
+
+		public List<FakeCameraBackend> getBackends() {
+			synchronized (mBackends) {
+				return new ArrayList<FakeCameraBackend>(mBackends);
+			}
+		}
+
+		@Override
+		protected CameraBackend createBackend(Handler handler, CameraBackend.Callback callback) {
+			final FakeCameraBackend camera = new FakeCameraBackend(callback, SIZES, FOCUS_MODES,
+				SENSOR_ORIENTATION, false, MAX_ZOOM);
+			camera.setActiveArray(ACTIVE_ARRAY);
+			camera.setFailOpen(mFailOpen);
+			synchronized (mBackends) {
+				mBackends.add(camera);
+			}
+			return camera;
+		}
+
+		@Override
+		protected CameraQuirks createQuirks(Context context) {
+			return new CameraQuirks(new MemoryPreferences(), "test/model");
+		}
+	}
+
+	/**
+	 * host in landscape without View, tasks for UI thread are run immediately
+	 */
+	private static final class TestHost implements CameraManager.Host {
+		private int mStartReadCount;
+		private int mFrameCount;
+		private int mLastFrameWidth;
+
+		@Override
+		public Context getContext() {
+			return null;
+		}
+
+		@Override
+		public int getDisplayRotation() {
+			return Surface.ROTATION_0;
+		}
+
+		@Override
+		public boolean isDisplayPortrait() {
+			return false;
+		}
+
+		@Override
+		public boolean post(Runnable action) {
+			action.run();
+			return true;
+		}
+
+		@Override
+		public synchronized void startRead(boolean force) {
+			mStartReadCount++;
+		}
+
+		@Override
+		public void onPreviewFrame(PreviewFrame frame, Camera camera) {
+		}
+
+		@Override
+		public synchronized void onPreviewFrame(ImageFrame frame) {
+			assertNotNull(frame.getBuffer(0));
+			mFrameCount++;
+			mLastFrameWidth = frame.getWidth();
+		}
+
+		public synchronized int getStartReadCount() {
+			return mStartReadCount;
+		}
+
+		public synchronized int getFrameCount() {
+			return mFrameCount;
+		}
+
+		public synchronized int getLastFrameWidth() {
+			return mLastFrameWidth;
+		}
+	}
+
+	/**
+	 * SurfaceHolder without Surface, only the size is kept
+	 */
+	private static final class TestHolder implements SurfaceHolder {
+		private final Rect mFrame = new Rect();
+
+		@Override
+		public synchronized void setFixedSize(int width, int height) {
+			mFrame.set(0, 0, width, height);
+		}
+
+		@Override
+		public synchronized Rect getSurfaceFrame() {
+			return new Rect(mFrame);
+		}
+
+		@Override
+		public Surface getSurface() {
+			return null;
+		}
+
+		@Override
+		public void addCallback(Callback callback) {
+		}
+
+		@Override
+		public void removeCallback(Callback callback) {
+		}
+
+		@Override
+		public boolean isCreating() {
+			return false;
+		}
+
+		@Override
+		@SuppressWarnings("deprecation")
+		public void setType(int type) {
+		}
+
+		@Override
+		public void setSizeFromLayout() {
+		}
+
+		@Override
+		public void setFormat(int format) {
+		}
+
+		@Override
+		public void setKeepScreenOn(boolean screenOn) {
+		}
+
+		@Override
+		public Canvas lockCanvas() {
+			return null;
+		}
+
+		@Override
+		public Canvas lockCanvas(Rect dirty) {
+			return null;
+		}
+
+		@Override
+		public void unlockCanvasAndPost(Canvas canvas) {
+		}
+	}
+}
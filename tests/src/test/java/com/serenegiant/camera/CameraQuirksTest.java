@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import android.graphics.Point;
+
+/**
+ * record, lookup and invalidation of CameraQuirks, and the bundled table
+ */
+public class CameraQuirksTest {
+	private static final String MODEL = "maker/model";
+	private static final int CAMERA_ID = 1;
+	private static final int[] SIZES = {
+		1280, 720, 960, 720, 800, 480, 640, 480, 320, 240,
+	};
+	private static final String TABLE =
+		"<camera-quirks>"
+		+ "<quirk model=\"" + MODEL + "\" camera=\"1\" name=\"rotation_offset\" value=\"180\" />"
+		+ "<quirk model=\"" + MODEL + "\" camera=\"1\" name=\"preview_size_800x480\" value=\"640x480\" />"
+		+ "<quirk model=\"" + MODEL + "\" camera=\"0\" name=\"no_nv21\" value=\"true\" />"
+		+ "<quirk model=\"other/model\" camera=\"1\" name=\"rotation_offset\" value=\"90\" />"
+		+ "</camera-quirks>";
+
+	private MemoryPreferences mPreferences;
+	private CameraQuirks mQuirks;
+
+	@Before
+	public void setUp() {
+		mPreferences = new MemoryPreferences();
+		mQuirks = new CameraQuirks(mPreferences, MODEL);
+	}
+
+	@Test
+	public void unknownQuirksReturnDefaults() {
+		assertEquals(0, mQuirks.getRotationOffset(CAMERA_ID, 0));
+		assertFalse(mQuirks.isNV21Unsupported(CAMERA_ID));
+		assertNull(mQuirks.getPreviewSize(CAMERA_ID, 800, 480));
+	}
+
+	@Test
+	public void recordedQuirksAreReadBackPerCamera() {
+		mQuirks.setRotationOffset(CAMERA_ID, 270);
+		mQuirks.setNV21Unsupported(CAMERA_ID);
+		// same preferences on next launch
+		final CameraQuirks quirks = new CameraQuirks(mPreferences, MODEL);
+		assertEquals(270, quirks.getRotationOffset(CAMERA_ID, 0));
+		assertTrue(quirks.isNV21Unsupported(CAMERA_ID));
+		assertEquals(0, quirks.getRotationOffset(0, 0));
+		assertFalse(quirks.isNV21Unsupported(0));
+		// other model does not see them
+		assertEquals(0, new CameraQuirks(mPreferences, "other/model").getRotationOffset(CAMERA_ID, 0));
+	}
+
+	@Test
+	public void validAppliedPreviewSizeIsRecorded() {
+		assertTrue(mQuirks.recordPreviewSize(CAMERA_ID, 800, 480, new Point(640, 480), SIZES));
+		assertEquals(new Point(640, 480), mQuirks.getValidPreviewSize(CAMERA_ID, 800, 480, SIZES));
+		assertNull(mQuirks.getValidPreviewSize(CAMERA_ID, 960, 720, SIZES));
+	}
+
+	@Test
+	public void rejectedPreviewSizeIsNeverRecorded() {
+		// not supported
+		assertFalse(mQuirks.recordPreviewSize(CAMERA_ID, 800, 480, new Point(720, 480), SIZES));
+		// supported, but out of the pixel limits
+		assertFalse(mQuirks.recordPreviewSize(CAMERA_ID, 800, 480, new Point(1280, 720), SIZES));
+		assertFalse(mQuirks.recordPreviewSize(CAMERA_ID, 800, 480, new Point(320, 240), SIZES));
+		assertNull(mQuirks.getPreviewSize(CAMERA_ID, 800, 480));
+		assertTrue(mPreferences.getAll().isEmpty());
+	}
+
+	@Test
+	public void staleRecordIsRemovedOnLookup() {
+		mQuirks.setPreviewSize(CAMERA_ID, 800, 480, new Point(640, 480));
+		// e.g. the size was dropped by OS update
+		final int[] sizes = { 1280, 720, 800, 480 };
+		assertNull(mQuirks.getValidPreviewSize(CAMERA_ID, 800, 480, sizes));
+		assertNull(mQuirks.getPreviewSize(CAMERA_ID, 800, 480));
+		assertTrue(mPreferences.getAll().isEmpty());
+	}
+
+	@Test
+	public void invalidRecordedValueIsIgnored() {
+		mQuirks.put(CAMERA_ID, CameraQuirks.KEY_PREVIEW_SIZE + "800x480", "broken");
+		mQuirks.put(CAMERA_ID, CameraQuirks.KEY_ROTATION_OFFSET, "broken");
+		assertNull(mQuirks.getPreviewSize(CAMERA_ID, 800, 480));
+		assertEquals(0, mQuirks.getRotationOffset(CAMERA_ID, 0));
+	}
+
+	@Test
+	public void clearRemovesOnlyThisModel() {
+		final CameraQuirks other = new CameraQuirks(mPreferences, "other/model");
+		mQuirks.setRotationOffset(CAMERA_ID, 90);
+		other.setRotationOffset(CAMERA_ID, 180);
+		mQuirks.clear();
+		assertEquals(0, mQuirks.getRotationOffset(CAMERA_ID, 0));
+		assertEquals(180, other.getRotationOffset(CAMERA_ID, 0));
+	}
+
+	@Test
+	public void defaultsOfTheModelAreLoadedFromTable() throws Exception {
+		final Map<String, String> defaults = new HashMap<String, String>();
+		CameraQuirks.loadDefaults(newParser(new StringReader(TABLE)), MODEL, defaults);
+		assertEquals(3, defaults.size());
+		assertEquals("180", defaults.get("1/rotation_offset"));
+		assertEquals("true", defaults.get("0/no_nv21"));
+	}
+
+	@Test
+	public void recordedValueOverridesTable() throws Exception {
+		mQuirks.loadDefaults(newParser(new StringReader(TABLE)));
+		assertEquals(180, mQuirks.getRotationOffset(CAMERA_ID, 0));
+		assertTrue(mQuirks.isNV21Unsupported(0));
+		assertEquals(new Point(640, 480), mQuirks.getValidPreviewSize(CAMERA_ID, 800, 480, SIZES));
+		mQuirks.setRotationOffset(CAMERA_ID, 0);
+		assertEquals(0, mQuirks.getRotationOffset(CAMERA_ID, 90));
+		// removing the record falls back to the table
+		mQuirks.remove(CAMERA_ID, CameraQuirks.KEY_ROTATION_OFFSET);
+		assertEquals(180, mQuirks.getRotationOffset(CAMERA_ID, 0));
+	}
+
+	@Test
+	public void invalidTableEntryIsIgnoredButKept() throws Exception {
+		mQuirks.loadDefaults(newParser(new StringReader(TABLE)));
+		// 640x480 is not supported by this camera
+		final int[] sizes = { 1280, 720, 800, 480 };
+		assertNull(mQuirks.getValidPreviewSize(CAMERA_ID, 800, 480, sizes));
+		// nothing is recorded, the table itself is not changed
+		assertTrue(mPreferences.getAll().isEmpty());
+		assertEquals(new Point(640, 480), mQuirks.getPreviewSize(CAMERA_ID, 800, 480));
+	}
+
+	@Test
+	public void bundledTableIsParsable() throws Exception {
+		final File file = new File(System.getProperty("library.res", "../library/res"),
+			"xml/camera_quirks.xml");
+		assertTrue(file.getPath(), file.isFile());
+		final Reader reader = new FileReader(file);
+		try {
+			final Map<String, String> defaults = new HashMap<String, String>();
+			CameraQuirks.loadDefaults(newParser(reader), MODEL, defaults);
+			// every entry of the bundled table is cameraID/name=value
+			for (Map.Entry<String, String> entry: defaults.entrySet()) {
+				assertTrue(entry.getKey(), entry.getKey().matches("\\d+/\\w+"));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	private static XmlPullParser newParser(Reader reader) throws XmlPullParserException, IOException {
+		final XmlPullParser parser = new KXmlParser();
+		parser.setInput(reader);
+		return parser;
+	}
+}
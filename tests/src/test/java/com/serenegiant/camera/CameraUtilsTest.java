@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import android.graphics.Point;
+
+/**
+ * size negotiation of CameraSession
+ */
+public class CameraUtilsTest {
+
+	@Test
+	public void largerViewOfOtherAspectKeepsPrimaryAspect() {
+		// primary is landscape 800x480, secondary is portrait 480x800 of same area
+		assertEquals(new Point(800, 480), CameraUtils.scaleToArea(800, 480, 480 * 800));
+		// the bounding size(800x800) would select the preview size for square view
+		final Point size = CameraUtils.scaleToArea(800, 480, 1000 * 1000);
+		assertEquals(800 / 480.0, size.x / (double)size.y, 0.01);
+		assertEquals(1000 * 1000, size.x * size.y, 1000 * 1000 * 0.01);
+	}
+
+	@Test
+	public void smallerViewsDoNotScaleDown() {
+		assertEquals(new Point(1280, 720), CameraUtils.scaleToArea(1280, 720, 320 * 240));
+	}
+
+	@Test
+	public void negotiatedSizeSelectsPreviewForPrimaryAspect() {
+		final int[] sizes = { 1280, 720, 960, 720, 800, 480, 640, 480 };
+		// 4:3 secondary must not turn 16:9-ish primary into 4:3 preview
+		final Point size = CameraUtils.scaleToArea(800, 480, 960 * 720);
+		final int best = CameraUtils.findBestPreviewSize(sizes, size.x, size.y);
+		assertEquals(800, sizes[best * 2]);
+		assertEquals(480, sizes[best * 2 + 1]);
+	}
+}
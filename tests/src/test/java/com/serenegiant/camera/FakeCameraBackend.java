@@ -0,0 +1,363 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.hardware.Camera.AutoFocusCallback;
+import android.view.SurfaceHolder;
+
+/**
+ * CameraBackend without camera device, to run CameraManager and frame consumers on JVM.</br>
+ * The capabilities are given to the constructor, e.g. the lists that were captured from
+ * real devices and parsed with CameraUtils#parseSizes and CameraUtils#parseValues.
+ * Frames are delivered synchronously on the thread that calls #deliverFrame with I420 planes
+ * that are allocated once for the preview size. Like ImageReader, frames are dropped
+ * while consumers hold all images, and held frames stay valid after #stopPreview.
+ * Requests from CameraManager are recorded to check them.
+ */
+public class FakeCameraBackend implements CameraBackend {
+	private static final int NUM_PLANES = 3;
+
+	private final Callback mCallback;
+	private final int[] mSizes;
+	private final List<String> mFocusModes;
+	private final int mSensorOrientation;
+	private final boolean mIsFrontFace;
+	private final int mMaxZoom;
+	private boolean mFailOpen;
+	private int mCameraID = -1;
+	private boolean mOpened;
+	// current preview
+	private boolean mPreviewing;
+	private int mWidth, mHeight;
+	private int mNumImages;
+	private int mRotation;
+	private String mFocusMode;
+	private boolean mMonoEffect;
+	private int mZoom;
+	private final Rect mActiveArray = new Rect();
+	private final Rect mCropRegion = new Rect();
+	private final ByteBuffer[] mPlanes = new ByteBuffer[NUM_PLANES];
+	private final int[] mRowStrides = new int[NUM_PLANES];
+	private final int[] mPixelStrides = new int[NUM_PLANES];
+	// frames
+	private final List<ImageFrame> mFramePool = new ArrayList<ImageFrame>();
+	private int mAllocatedFrames;
+	private final ImageFrame.Recycler mRecycler = new ImageFrame.Recycler() {
+		@Override
+		public void recycle(ImageFrame frame) {
+			synchronized (mFramePool) {
+				mFramePool.add(frame);
+			}
+		}
+	};
+	private long mSequence;
+	private long mDeliveredCount, mDroppedCount;
+	// auto-focus
+	private boolean mAutoFocusResult = true;
+	private int mAutoFocusCount;
+
+	/**
+	 * constructor
+	 * @param callback
+	 * @param sizes supported preview sizes as {width0, height0, width1, height1,...}
+	 * @param focusModes supported focus-modes(Camera.Parameters.FOCUS_MODE_XX)
+	 * @param sensorOrientation [degrees]
+	 * @param isFrontFace
+	 * @param maxZoom number of zoom steps, 0 if zoom is not supported
+	 */
+	public FakeCameraBackend(Callback callback, int[] sizes, List<String> focusModes,
+		int sensorOrientation, boolean isFrontFace, int maxZoom) {
+
+		mCallback = callback;
+		mSizes = sizes != null ? sizes.clone() : new int[0];
+		mFocusModes = new ArrayList<String>();
+		if (focusModes != null) {
+			mFocusModes.addAll(focusModes);
+		}
+		mSensorOrientation = sensorOrientation;
+		mIsFrontFace = isFrontFace;
+		mMaxZoom = maxZoom;
+		// the largest size at the origin, change this with #setActiveArray
+		for (int i = 0; i + 1 < mSizes.length; i += 2) {
+			if (mSizes[i] * mSizes[i + 1] > mActiveArray.width() * mActiveArray.height()) {
+				mActiveArray.set(0, 0, mSizes[i], mSizes[i + 1]);
+			}
+		}
+		mCropRegion.set(mActiveArray);
+	}
+
+	/**
+	 * set active array of the sensor in the coordinates of the pixel array,
+	 * the crop region of the zoom is calculated with this like Camera2Backend
+	 * @param active
+	 */
+	public synchronized void setActiveArray(Rect active) {
+		mActiveArray.set(active);
+		CameraUtils.getZoomCropRegion(mActiveArray, mZoom, mMaxZoom, mCropRegion);
+	}
+
+	/**
+	 * set whether #open fails like the camera is used by other app
+	 * @param failOpen
+	 */
+	public synchronized void setFailOpen(boolean failOpen) {
+		mFailOpen = failOpen;
+	}
+
+	/**
+	 * set the result of auto-focus that is notified to the callback
+	 * @param focused
+	 */
+	public synchronized void setAutoFocusResult(boolean focused) {
+		mAutoFocusResult = focused;
+	}
+
+	@Override
+	public boolean open(int cameraID) {
+		final boolean success;
+		synchronized (this) {
+			success = !mFailOpen;
+			mCameraID = cameraID;
+			mOpened = success;
+		}
+		mCallback.onOpened(success);
+		return success;
+	}
+
+	@Override
+	public synchronized boolean isOpened() {
+		return mOpened;
+	}
+
+	@Override
+	public boolean isFrontFace() {
+		return mIsFrontFace;
+	}
+
+	@Override
+	public int getSensorOrientation() {
+		return mSensorOrientation;
+	}
+
+	@Override
+	public int[] getOutputSizes(boolean withReader) {
+		return mSizes.clone();
+	}
+
+	@Override
+	public List<String> getFocusModes() {
+		return new ArrayList<String>(mFocusModes);
+	}
+
+	@Override
+	public int getMaxZoom() {
+		return mMaxZoom;
+	}
+
+	@Override
+	public synchronized boolean startPreview(SurfaceHolder holder, int width, int height,
+		int numImages, String focusMode, boolean monoEffect, int rotation) {
+
+		if (!mOpened) return false;
+		if (!isSupportedSize(width, height)) return false;
+		if ((focusMode != null) && !mFocusModes.contains(focusMode)) return false;
+		if ((width != mWidth) || (height != mHeight)) {
+			// allocate I420 planes for new size
+			final int uvWidth = (width + 1) / 2;
+			final int uvHeight = (height + 1) / 2;
+			mPlanes[0] = ByteBuffer.allocateDirect(width * height);
+			mPlanes[1] = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+			mPlanes[2] = ByteBuffer.allocateDirect(uvWidth * uvHeight);
+			mRowStrides[0] = width;
+			mRowStrides[1] = mRowStrides[2] = uvWidth;
+			mPixelStrides[0] = mPixelStrides[1] = mPixelStrides[2] = 1;
+			mWidth = width;
+			mHeight = height;
+		}
+		mNumImages = numImages;
+		mFocusMode = focusMode;
+		mMonoEffect = monoEffect;
+		mRotation = rotation;
+		mSequence = 0;
+		mPreviewing = true;
+		return true;
+	}
+
+	private boolean isSupportedSize(int width, int height) {
+		for (int i = 0; i + 1 < mSizes.length; i += 2) {
+			if ((mSizes[i] == width) && (mSizes[i + 1] == height)) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public synchronized void stopPreview() {
+		mPreviewing = false;
+	}
+
+	@Override
+	public synchronized boolean setFocusMode(String focusMode) {
+		if (!mPreviewing || !mFocusModes.contains(focusMode)) return false;
+		mFocusMode = focusMode;
+		return true;
+	}
+
+	@Override
+	public synchronized void setZoom(int zoom) {
+		if (!mPreviewing) return;
+		mZoom = Math.max(0, Math.min(zoom, mMaxZoom));
+		CameraUtils.getZoomCropRegion(mActiveArray, mZoom, mMaxZoom, mCropRegion);
+	}
+
+	@Override
+	public void autoFocus(AutoFocusCallback callback) {
+		final boolean focused;
+		synchronized (this) {
+			if (!mPreviewing) return;
+			mAutoFocusCount++;
+			focused = mAutoFocusResult;
+		}
+		if (callback != null) {
+			callback.onAutoFocus(focused, null);
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		mPreviewing = false;
+		mOpened = false;
+	}
+
+	/**
+	 * copy I420 frame into the planes that are delivered by #deliverFrame
+	 * @param i420 Y plane followed by U and V planes, size should be same as the preview size
+	 */
+	public synchronized void fillFrame(byte[] i420) {
+		if (mPlanes[0] == null) {
+			throw new IllegalStateException("preview is not started");
+		}
+		int offset = 0;
+		for (int i = 0; i < NUM_PLANES; i++) {
+			final ByteBuffer plane = mPlanes[i];
+			plane.clear();
+			final int length = Math.min(plane.capacity(), i420.length - offset);
+			if (length <= 0) break;
+			plane.put(i420, offset, length);
+			plane.clear();
+			offset += length;
+		}
+	}
+
+	/**
+	 * deliver current planes to Callback#onFrame on the caller thread
+	 * @param timestampNs timestamp of the frame
+	 * @return false if the frame was dropped because preview is not started
+	 * or all images are held by consumers
+	 */
+	public boolean deliverFrame(long timestampNs) {
+		final ImageFrame frame;
+		synchronized (this) {
+			if (!mPreviewing || (mNumImages <= 0)) return false;
+			synchronized (mFramePool) {
+				if (mAllocatedFrames - mFramePool.size() >= mNumImages) {
+					mDroppedCount++;
+					return false;
+				}
+				if (!mFramePool.isEmpty()) {
+					frame = mFramePool.remove(mFramePool.size() - 1);
+				} else {
+					frame = new ImageFrame(mRecycler);
+					mAllocatedFrames++;
+				}
+			}
+			for (int i = 0; i < NUM_PLANES; i++) {
+				mPlanes[i].clear();
+			}
+			frame.onFilled(mPlanes, mRowStrides, mPixelStrides, mWidth, mHeight,
+				ImageFormat.YUV_420_888, timestampNs, mSequence++, mRotation, mIsFrontFace);
+			mDeliveredCount++;
+		}
+		try {
+			mCallback.onFrame(frame);
+		} finally {
+			frame.release();
+		}
+		return true;
+	}
+
+	/**
+	 * get camera id that was passed to #open
+	 * @return -1 if not opened yet
+	 */
+	public synchronized int getCameraID() {
+		return mCameraID;
+	}
+
+	public synchronized boolean isPreviewing() {
+		return mPreviewing;
+	}
+
+	public synchronized int getPreviewWidth() {
+		return mWidth;
+	}
+
+	public synchronized int getPreviewHeight() {
+		return mHeight;
+	}
+
+	public synchronized int getRotation() {
+		return mRotation;
+	}
+
+	public synchronized String getFocusMode() {
+		return mFocusMode;
+	}
+
+	public synchronized boolean isMonoEffect() {
+		return mMonoEffect;
+	}
+
+	public synchronized int getZoom() {
+		return mZoom;
+	}
+
+	/**
+	 * get crop region that was applied with current zoom
+	 * @return copy of the region
+	 */
+	public synchronized Rect getCropRegion() {
+		return new Rect(mCropRegion);
+	}
+
+	public synchronized int getAutoFocusCount() {
+		return mAutoFocusCount;
+	}
+
+	public synchronized long getDeliveredCount() {
+		return mDeliveredCount;
+	}
+
+	public synchronized long getDroppedCount() {
+		return mDroppedCount;
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 saki@serenegiant
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.serenegiant.camera;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import android.content.SharedPreferences;
+
+/**
+ * SharedPreferences on memory for CameraQuirks on JVM, listeners are not supported.
+ */
+public class MemoryPreferences implements SharedPreferences {
+	private final Map<String, Object> mValues = new HashMap<String, Object>();
+
+	@Override
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<String, Object>(mValues);
+	}
+
+	@Override
+	public synchronized String getString(String key, String defValue) {
+		return mValues.containsKey(key) ? (String)mValues.get(key) : defValue;
+	}
+
+	@Override
+	@SuppressWarnings("unchecked")
+	public synchronized Set<String> getStringSet(String key, Set<String> defValues) {
+		return mValues.containsKey(key) ? new HashSet<String>((Set<String>)mValues.get(key)) : defValues;
+	}
+
+	@Override
+	public synchronized int getInt(String key, int defValue) {
+		return mValues.containsKey(key) ? (Integer)mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized long getLong(String key, long defValue) {
+		return mValues.containsKey(key) ? (Long)mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized float getFloat(String key, float defValue) {
+		return mValues.containsKey(key) ? (Float)mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean getBoolean(String key, boolean defValue) {
+		return mValues.containsKey(key) ? (Boolean)mValues.get(key) : defValue;
+	}
+
+	@Override
+	public synchronized boolean contains(String key) {
+		return mValues.containsKey(key);
+	}
+
+	@Override
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+
+	@Override
+	public void registerOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	@Override
+	public void unregisterOnSharedPreferenceChangeListener(OnSharedPreferenceChangeListener listener) {
+	}
+
+	private final class MemoryEditor implements Editor {
+		private final Map<String, Object> mChanges = new HashMap<String, Object>();
+		private final Set<String> mRemoved = new HashSet<String>();
+		private boolean mClear;
+
+		@Override
+		public Editor putString(String key, String value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putStringSet(String key, Set<String> values) {
+			return put(key, values != null ? new HashSet<String>(values) : null);
+		}
+
+		@Override
+		public Editor putInt(String key, int value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putLong(String key, long value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putFloat(String key, float value) {
+			return put(key, value);
+		}
+
+		@Override
+		public Editor putBoolean(String key, boolean value) {
+			return put(key, value);
+		}
+
+		@Override
+		public synchronized Editor remove(String key) {
+			mRemoved.add(key);
+			return this;
+		}
+
+		@Override
+		public synchronized Editor clear() {
+			mClear = true;
+			return this;
+		}
+
+		@Override
+		public boolean commit() {
+			apply();
+			return true;
+		}
+
+		@Override
+		public synchronized void apply() {
+			synchronized (MemoryPreferences.this) {
+				if (mClear) {
+					mValues.clear();
+				}
+				for (final String key: mRemoved) {
+					mValues.remove(key);
+				}
+				for (final Map.Entry<String, Object> entry: mChanges.entrySet()) {
+					if (entry.getValue() != null) {
+						mValues.put(entry.getKey(), entry.getValue());
+					} else {
+						mValues.remove(entry.getKey());
+					}
+				}
+			}
+		}
+
+		private synchronized Editor put(String key, Object value) {
+			mChanges.put(key, value);
+			return this;
+		}
+	}
+}